@@ -24,6 +24,7 @@ import static com.adobe.testing.s3mock.util.AwsHttpHeaders.RANGE;
 import static com.adobe.testing.s3mock.util.AwsHttpHeaders.X_AMZ_CONTENT_SHA256;
 import static com.adobe.testing.s3mock.util.AwsHttpHeaders.X_AMZ_COPY_SOURCE;
 import static com.adobe.testing.s3mock.util.AwsHttpHeaders.X_AMZ_COPY_SOURCE_RANGE;
+import static com.adobe.testing.s3mock.util.AwsHttpHeaders.X_AMZ_DATE;
 import static com.adobe.testing.s3mock.util.AwsHttpHeaders.X_AMZ_METADATA_DIRECTIVE;
 import static com.adobe.testing.s3mock.util.AwsHttpHeaders.X_AMZ_SERVER_SIDE_ENCRYPTION;
 import static com.adobe.testing.s3mock.util.AwsHttpHeaders.X_AMZ_SERVER_SIDE_ENCRYPTION_AWS_KMS_KEY_ID;
@@ -44,7 +45,6 @@ import static com.adobe.testing.s3mock.util.MetadataUtil.getUserMetadata;
 import static com.adobe.testing.s3mock.util.StringEncoding.decode;
 import static com.adobe.testing.s3mock.util.StringEncoding.encode;
 import static org.apache.commons.lang3.StringUtils.isBlank;
-import static org.apache.commons.lang3.StringUtils.isEmpty;
 import static org.apache.commons.lang3.StringUtils.isNotBlank;
 import static org.apache.commons.lang3.StringUtils.isNotEmpty;
 import static org.apache.commons.lang3.StringUtils.substringAfter;
@@ -66,7 +66,6 @@ import static org.springframework.http.MediaType.APPLICATION_XML_VALUE;
 import com.adobe.testing.s3mock.dto.BatchDeleteRequest;
 import com.adobe.testing.s3mock.dto.BatchDeleteResponse;
 import com.adobe.testing.s3mock.dto.Bucket;
-import com.adobe.testing.s3mock.dto.BucketContents;
 import com.adobe.testing.s3mock.dto.CompleteMultipartUploadRequest;
 import com.adobe.testing.s3mock.dto.CompleteMultipartUploadResult;
 import com.adobe.testing.s3mock.dto.CopyObjectResult;
@@ -85,37 +84,28 @@ import com.adobe.testing.s3mock.dto.Part;
 import com.adobe.testing.s3mock.dto.Range;
 import com.adobe.testing.s3mock.dto.Tag;
 import com.adobe.testing.s3mock.dto.Tagging;
-import com.adobe.testing.s3mock.store.FileStore;
+import com.adobe.testing.s3mock.store.ObjectListing;
+import com.adobe.testing.s3mock.store.ObjectStore;
 import com.adobe.testing.s3mock.store.S3Exception;
 import com.adobe.testing.s3mock.store.S3Object;
+import com.adobe.testing.s3mock.store.S3ObjectData;
+import com.adobe.testing.s3mock.util.AwsChunkSignatureVerifier;
 import com.adobe.testing.s3mock.util.AwsChunkedDecodingInputStream;
-import com.adobe.testing.s3mock.util.DigestUtil;
-import com.adobe.testing.s3mock.util.StringEncoding;
-import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
-import java.io.FileInputStream;
+import com.adobe.testing.s3mock.util.ContinuationTokens;
+import com.fasterxml.jackson.databind.ObjectMapper;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.OutputStream;
-import java.nio.file.Files;
-import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
-import java.util.Comparator;
 import java.util.Date;
-import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Objects;
-import java.util.Set;
 import java.util.UUID;
-import java.util.concurrent.ConcurrentHashMap;
 import java.util.stream.Collectors;
 import javax.servlet.ServletInputStream;
 import javax.servlet.http.HttpServletRequest;
-import org.apache.commons.io.IOUtils;
-import org.apache.commons.io.input.BoundedInputStream;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.http.HttpHeaders;
@@ -154,17 +144,28 @@ class FileStoreController {
 
   private static final Owner TEST_OWNER = new Owner(123, "s3-mock-file-store");
 
-  private static final Comparator<String> KEY_COMPARATOR = Comparator.naturalOrder();
-  private static final Comparator<BucketContents> BUCKET_CONTENTS_COMPARATOR =
-      Comparator.comparing(BucketContents::getKey, KEY_COMPARATOR);
-
   private static final MediaType FALLBACK_MEDIA_TYPE = new MediaType("binary", "octet-stream");
 
-  private final Map<String, String> fileStorePagingStateCache = new ConcurrentHashMap<>();
-  private final FileStore fileStore;
+  private final ObjectStore fileStore;
+  private final ContinuationTokens continuationTokens;
+  private final String chunkSignatureSecretKey;
+  private final ObjectMapper xmlMapper;
 
-  public FileStoreController(FileStore fileStore) {
+  /**
+   * Constructs a new {@link FileStoreController}.
+   *
+   * @param fileStore the store of buckets and objects.
+   * @param continuationTokens creates and resolves the continuation tokens of ListObjectsV2.
+   * @param chunkSignatureSecretKey secret access key to verify the chunk signatures of uploads
+   *     with. Optional.
+   * @param xmlMapper the XML mapper of the message converter, to stream listings with.
+   */
+  public FileStoreController(ObjectStore fileStore, ContinuationTokens continuationTokens,
+      String chunkSignatureSecretKey, ObjectMapper xmlMapper) {
     this.fileStore = fileStore;
+    this.continuationTokens = continuationTokens;
+    this.chunkSignatureSecretKey = chunkSignatureSecretKey;
+    this.xmlMapper = xmlMapper;
   }
 
   //================================================================================================
@@ -277,7 +278,8 @@ class FileStoreController {
    * @param prefix {@link String} find object names they starts with prefix
    * @param encodingType whether to use URL encoding (encodingtype="url") or not
    *
-   * @return {@link ListBucketResult} a list of objects in Bucket
+   * @return the {@link ListBucketResult} of the objects in the bucket, streamed by a
+   *     {@link ListBucketResultWriter}
    * @deprecated Long since replaced by ListObjectsV2, {@see #listObjectsInsideBucketV2}
    */
   @RequestMapping(
@@ -288,7 +290,7 @@ class FileStoreController {
       }
   )
   @Deprecated
-  public ResponseEntity<ListBucketResult> listObjectsInsideBucket(
+  public ResponseEntity<StreamingResponseBody> listObjectsInsideBucket(
       @PathVariable final String bucketName,
       @RequestParam(required = false) final String prefix,
       @RequestParam(required = false) final String delimiter,
@@ -309,34 +311,25 @@ class FileStoreController {
     final boolean useUrlEncoding = Objects.equals("url", encodingType);
 
     try {
-      List<BucketContents> contents = getBucketContents(bucketName, prefix);
-      contents = filterBucketContentsBy(contents, marker);
-
-      boolean isTruncated = false;
-      String nextMarker = null;
-
-      Set<String> commonPrefixes = collapseCommonPrefixes(prefix, delimiter, contents);
-      contents = filterBucketContentsBy(contents, commonPrefixes);
-      if (maxKeys < contents.size()) {
-        contents = contents.subList(0, maxKeys);
-        isTruncated = true;
-        if (maxKeys > 0) {
-          nextMarker = contents.get(maxKeys - 1).getKey();
-        }
-      }
+      final ObjectListing listing =
+          fileStore.listObjects(bucketName, prefix, delimiter, marker, maxKeys);
 
       String returnPrefix = prefix;
-      Set<String> returnCommonPrefixes = commonPrefixes;
 
       if (useUrlEncoding) {
-        contents = applyUrlEncoding(contents);
         returnPrefix = isNotBlank(prefix) ? encode(prefix) : prefix;
-        returnCommonPrefixes = applyUrlEncoding(commonPrefixes);
       }
 
-      return ResponseEntity.ok(
-          new ListBucketResult(bucketName, returnPrefix, marker, maxKeys, isTruncated,
-              encodingType, nextMarker, contents, returnCommonPrefixes));
+      return ResponseEntity.ok()
+          .contentType(MediaType.APPLICATION_XML)
+          .body(new ListBucketResultWriter(xmlMapper, listing, useUrlEncoding, TEST_OWNER)
+              .leading("Name", bucketName)
+              .leading("Prefix", returnPrefix)
+              .leading("Marker", marker)
+              .leading("MaxKeys", maxKeys)
+              .leading("IsTruncated", listing.isTruncated())
+              .leading("EncodingType", encodingType)
+              .leading("NextMarker", listing.getNextMarker()));
     } catch (final IOException e) {
       LOG.error("Object(s) could not retrieved from bucket {}", bucketName, e);
       return ResponseEntity.status(INTERNAL_SERVER_ERROR).build();
@@ -355,7 +348,8 @@ class FileStoreController {
    *     body.
    * @param continuationToken {@link String} pagination token returned by previous request
    *
-   * @return {@link ListBucketResultV2} a list of objects in Bucket
+   * @return the {@link ListBucketResultV2} of the objects in the bucket, streamed by a
+   *     {@link ListBucketResultWriter}
    */
   @RequestMapping(value = "/{bucketName}",
       params = {
@@ -366,7 +360,7 @@ class FileStoreController {
           APPLICATION_XML_VALUE
       }
   )
-  public ResponseEntity<ListBucketResultV2> listObjectsInsideBucketV2(
+  public ResponseEntity<StreamingResponseBody> listObjectsInsideBucketV2(
       @PathVariable final String bucketName,
       @RequestParam(required = false) final String prefix,
       @RequestParam(required = false) final String delimiter,
@@ -384,50 +378,52 @@ class FileStoreController {
 
     verifyBucketExistence(bucketName);
     try {
-      List<BucketContents> contents = getBucketContents(bucketName, prefix);
-      String nextContinuationToken = null;
-      boolean isTruncated = false;
-
       /*
         Start-after is valid only in first request.
         If the response is truncated,
         you can specify this parameter along with the continuation-token parameter,
         and then Amazon S3 ignores this parameter.
        */
+      final String continueAfter;
       if (continuationToken != null) {
-        final String continueAfter = fileStorePagingStateCache.get(continuationToken);
-        contents = filterBucketContentsBy(contents, continueAfter);
-        fileStorePagingStateCache.remove(continuationToken);
+        continueAfter = continuationTokens.resolve(bucketName, continuationToken);
+        if (continueAfter == null) {
+          throw new S3Exception(HttpStatus.BAD_REQUEST.value(), "InvalidArgument",
+              "The continuation token provided is incorrect");
+        }
       } else {
-        contents = filterBucketContentsBy(contents, startAfter);
+        continueAfter = startAfter;
       }
 
-      Set<String> commonPrefixes = collapseCommonPrefixes(prefix, delimiter, contents);
-      contents = filterBucketContentsBy(contents, commonPrefixes);
+      final ObjectListing listing =
+          fileStore.listObjects(bucketName, prefix, delimiter, continueAfter, maxKeys);
 
-      if (contents.size() > maxKeys) {
-        isTruncated = true;
-        nextContinuationToken = UUID.randomUUID().toString();
-        contents = contents.subList(0, maxKeys);
-        fileStorePagingStateCache.put(nextContinuationToken,
-            contents.get(maxKeys - 1).getKey());
+      final boolean isTruncated = listing.isTruncated();
+      String nextContinuationToken = null;
+      if (isTruncated && listing.getNextMarker() != null) {
+        nextContinuationToken = continuationTokens.create(bucketName, listing.getNextMarker());
       }
 
       String returnPrefix = prefix;
       String returnStartAfter = startAfter;
-      Set<String> returnCommonPrefixes = commonPrefixes;
 
       if (useUrlEncoding) {
-        contents = applyUrlEncoding(contents);
         returnPrefix = isNotBlank(prefix) ? encode(prefix) : prefix;
         returnStartAfter = isNotBlank(startAfter) ? encode(startAfter) : startAfter;
-        returnCommonPrefixes = applyUrlEncoding(commonPrefixes);
       }
 
-      return ResponseEntity.ok(new ListBucketResultV2(bucketName, returnPrefix, maxKeys,
-          isTruncated, contents, returnCommonPrefixes,
-          continuationToken, String.valueOf(contents.size()),
-          nextContinuationToken, returnStartAfter, encodingtype));
+      return ResponseEntity.ok()
+          .contentType(MediaType.APPLICATION_XML)
+          .body(new ListBucketResultWriter(xmlMapper, listing, useUrlEncoding, TEST_OWNER)
+              .leading("Name", bucketName)
+              .leading("Prefix", returnPrefix)
+              .leading("MaxKeys", maxKeys)
+              .leading("IsTruncated", isTruncated)
+              .trailing("ContinuationToken", continuationToken)
+              .trailing("KeyCount", String.valueOf(listing.getContents().size()))
+              .trailing("NextContinuationToken", nextContinuationToken)
+              .trailing("StartAfter", returnStartAfter)
+              .trailing("EncodingType", encodingtype));
     } catch (final IOException e) {
       LOG.error("Object(s) could not retrieved from bucket {}", bucketName, e);
       return ResponseEntity.status(INTERNAL_SERVER_ERROR).build();
@@ -647,25 +643,35 @@ class FileStoreController {
 
     verifyBucketExistence(bucketName);
 
-    final S3Object s3Object = verifyObjectExistence(bucketName, filename);
+    // the data is opened with the lookup, so replacing the object can't discard it before the
+    // response body is written
+    final S3ObjectData data = fileStore.openS3ObjectData(bucketName, filename);
+    if (data == null) {
+      throw new S3Exception(NOT_FOUND.value(), "NoSuchKey", "The specified key does not exist.");
+    }
+    final S3Object s3Object = data.getS3Object();
+    try {
+      verifyObjectMatching(match, noMatch, s3Object.getEtag());
 
-    verifyObjectMatching(match, noMatch, s3Object.getEtag());
+      if (range != null) {
+        return getObjectWithRange(range, data);
+      }
 
-    if (range != null) {
-      return getObjectWithRange(range, s3Object);
+      return ResponseEntity
+          .ok()
+          .eTag("\"" + s3Object.getEtag() + "\"")
+          .header(HttpHeaders.CONTENT_ENCODING, s3Object.getContentEncoding())
+          .header(HttpHeaders.ACCEPT_RANGES, RANGES_BYTES)
+          .headers(headers -> headers.setAll(createUserMetadataHeaders(s3Object)))
+          .lastModified(s3Object.getLastModified())
+          .contentLength(Long.parseLong(s3Object.getSize()))
+          .contentType(parseMediaType(s3Object.getContentType()))
+          .headers(headers -> headers.setAll(addOverrideHeaders(request.getQueryString())))
+          .body(transferring(data, 0, Long.parseLong(s3Object.getSize())));
+    } catch (final RuntimeException e) {
+      data.close();
+      throw e;
     }
-
-    return ResponseEntity
-        .ok()
-        .eTag("\"" + s3Object.getEtag() + "\"")
-        .header(HttpHeaders.CONTENT_ENCODING, s3Object.getContentEncoding())
-        .header(HttpHeaders.ACCEPT_RANGES, RANGES_BYTES)
-        .headers(headers -> headers.setAll(createUserMetadataHeaders(s3Object)))
-        .lastModified(s3Object.getLastModified())
-        .contentLength(s3Object.getDataFile().length())
-        .contentType(parseMediaType(s3Object.getContentType()))
-        .headers(headers -> headers.setAll(addOverrideHeaders(request.getQueryString())))
-        .body(outputStream -> Files.copy(s3Object.getDataFile().toPath(), outputStream));
   }
 
   /**
@@ -813,8 +819,8 @@ class FileStoreController {
         filename,
         uploadId,
         partNumber,
-        request.getInputStream(),
-        isV4ChunkedWithSigningEnabled(sha256Header));
+        verifyingChunkSignatures(request.getInputStream(), sha256Header, request),
+        isDecodedByStore(sha256Header));
 
     return ResponseEntity.ok().eTag("\"" + etag + "\"").build();
   }
@@ -910,20 +916,22 @@ class FileStoreController {
     final String filename = filenameFrom(bucketName, request);
     final S3Object s3Object;
     try (final ServletInputStream inputStream = request.getInputStream()) {
-      InputStream stream = verifyMd5(inputStream, contentMd5, sha256Header);
       final Map<String, String> userMetadata = getUserMetadata(request);
       s3Object =
           fileStore.putS3Object(bucketName,
               filename,
               parseMediaType(contentType).toString(),
               contentEncoding,
-              stream,
-              isV4ChunkedWithSigningEnabled(sha256Header),
+              verifyingChunkSignatures(inputStream, sha256Header, request),
+              isDecodedByStore(sha256Header),
               userMetadata,
               encryption,
-              kmsKeyId);
+              kmsKeyId,
+              contentMd5);
 
-      fileStore.setObjectTags(bucketName, filename, tags);
+      if (tags != null && !tags.isEmpty()) {
+        fileStore.setObjectTags(bucketName, filename, tags);
+      }
 
       return ResponseEntity
           .ok()
@@ -931,50 +939,13 @@ class FileStoreController {
           .lastModified(s3Object.getLastModified())
           .header(X_AMZ_SERVER_SIDE_ENCRYPTION_AWS_KMS_KEY_ID, kmsKeyId)
           .build();
-    } catch (final IOException | NoSuchAlgorithmException e) {
+    } catch (final IOException e) {
       LOG.error("Object could not be uploaded!", e);
       throw new S3Exception(INTERNAL_SERVER_ERROR.value(), "InternalServerError",
           "Error persisting object.");
     }
   }
 
-  private static InputStream verifyMd5(InputStream inputStream, String contentMd5,
-      String sha256Header)
-      throws IOException, NoSuchAlgorithmException {
-    ByteArrayOutputStream byteArrayOutputStream = new ByteArrayOutputStream();
-    copyTo(inputStream, byteArrayOutputStream);
-
-    InputStream stream = new ByteArrayInputStream(byteArrayOutputStream.toByteArray());
-    if (isV4ChunkedWithSigningEnabled(sha256Header)) {
-      stream = new AwsChunkedDecodingInputStream(stream);
-    }
-    verifyMd5(stream, contentMd5);
-    return new ByteArrayInputStream(byteArrayOutputStream.toByteArray());
-  }
-
-  private static void verifyMd5(InputStream inputStream, String contentMd5)
-      throws NoSuchAlgorithmException, IOException {
-    if (contentMd5 != null) {
-      String md5 = DigestUtil.getBase64Digest(inputStream);
-      if (!md5.equals(contentMd5)) {
-        LOG.error("Content-MD5 {} does not match object md5 {}", contentMd5, md5);
-        throw new S3Exception(BAD_REQUEST.value(), "BadRequest",
-            "Content-MD5 does not match object md5");
-      }
-    }
-  }
-
-  /**
-   * Replace with InputStream.transferTo() once we update to Java 9+
-   */
-  static void copyTo(InputStream source, OutputStream target) throws IOException {
-    byte[] buf = new byte[8192];
-    int length;
-    while ((length = source.read(buf)) > 0) {
-      target.write(buf, 0, length);
-    }
-  }
-
   /**
    * Copies an object to another bucket.
    *
@@ -1029,7 +1000,8 @@ class FileStoreController {
           destinationBucket,
           destinationFile,
           encryption,
-          kmsKeyId);
+          kmsKeyId,
+          Collections.emptyMap());
     }
 
     if (copyObjectResult == null) {
@@ -1131,14 +1103,16 @@ class FileStoreController {
    * <p>https://docs.aws.amazon.com/AmazonS3/latest/API/API_GetObject.html</p>
    *
    * @param range {@link String}
-   * @param s3Object {@link S3Object}
+   * @param data {@link S3ObjectData} of the object, closed once the response is written
    */
   private ResponseEntity<StreamingResponseBody> getObjectWithRange(final Range range,
-      final S3Object s3Object) {
-    final long fileSize = s3Object.getDataFile().length();
+      final S3ObjectData data) {
+    final S3Object s3Object = data.getS3Object();
+    final long fileSize = Long.parseLong(s3Object.getSize());
     final long bytesToRead = Math.min(fileSize - 1, range.getEnd()) - range.getStart() + 1;
 
     if (bytesToRead < 0 || fileSize < range.getStart()) {
+      data.close();
       return ResponseEntity.status(REQUESTED_RANGE_NOT_SATISFIABLE.value()).build();
     }
 
@@ -1153,108 +1127,48 @@ class FileStoreController {
         .contentType(parseMediaType(s3Object.getContentType()))
         .lastModified(s3Object.getLastModified())
         .contentLength(bytesToRead)
-        .body(outputStream -> {
-          try (final FileInputStream fis = new FileInputStream(s3Object.getDataFile())) {
-            fis.skip(range.getStart());
-            IOUtils.copy(new BoundedInputStream(fis, bytesToRead), outputStream);
-          }
-        });
-  }
-
-  private static String filenameFrom(final String bucketName, final HttpServletRequest request) {
-    final String requestUri = request.getRequestURI();
-    return encode(
-        decode(requestUri.substring(requestUri.indexOf(bucketName) + bucketName.length() + 1))
-    );
+        .body(transferring(data, range.getStart(), bytesToRead));
   }
 
   /**
-   * Collapse all bucket elements with keys starting with some prefix up to the given delimiter into
-   * one prefix entry. Collapsed elements are removed from the contents list.
-   *
-   * @param queryPrefix the key prefix as specified in the list request
-   * @param delimiter the delimiter used to separate a prefix from the rest of the object name
-   * @param contents the contents list
-   *
-   * @see <a href="https://docs.aws.amazon.com/AmazonS3/latest/API/RESTBucketGET.html">
-   *     List Objects API Specification</a>
+   * Writes a region of opened object data as response body, and closes the data afterwards.
    */
-  static Set<String> collapseCommonPrefixes(final String queryPrefix, final String delimiter,
-      final List<BucketContents> contents) {
-    final Set<String> commonPrefixes = new HashSet<>();
-    if (isEmpty(delimiter)) {
-      return commonPrefixes;
-    }
-
-    final String normalizedQueryPrefix = queryPrefix == null ? "" : queryPrefix;
-
-    for (BucketContents c : contents) {
-      final String key = c.getKey();
-      if (key.startsWith(normalizedQueryPrefix)) {
-        final int delimiterIndex = key.indexOf(delimiter, normalizedQueryPrefix.length());
-        if (delimiterIndex > 0) {
-          commonPrefixes.add(key.substring(0, delimiterIndex + delimiter.length()));
-        }
+  private static StreamingResponseBody transferring(final S3ObjectData data, final long position,
+      final long count) {
+    return outputStream -> {
+      try (S3ObjectData openData = data) {
+        openData.transferTo(position, count, outputStream);
       }
-    }
-    return commonPrefixes;
+    };
   }
 
-  private List<BucketContents> applyUrlEncoding(final List<BucketContents> contents) {
-    return contents.stream().map(c -> new BucketContents(encode(c.getKey()),
-        c.getLastModified(), c.getEtag(), c.getSize(), c.getStorageClass(), c.getOwner())).collect(
-        Collectors.toList());
-  }
-
-  private Set<String> applyUrlEncoding(final Set<String> contents) {
-    return contents.stream().map(StringEncoding::encode).collect(Collectors.toSet());
+  private static String filenameFrom(final String bucketName, final HttpServletRequest request) {
+    final String requestUri = request.getRequestURI();
+    return encode(
+        decode(requestUri.substring(requestUri.indexOf(bucketName) + bucketName.length() + 1))
+    );
   }
 
-  static List<BucketContents> filterBucketContentsBy(List<BucketContents> contents,
-      String startAfter) {
-    if (isNotEmpty(startAfter)) {
-      return contents
-          .stream()
-          .filter(p -> KEY_COMPARATOR.compare(p.getKey(), startAfter) > 0)
-          .collect(Collectors.toList());
-    } else {
-      return contents;
-    }
+  private static boolean isV4ChunkedWithSigningEnabled(final String sha256Header) {
+    return sha256Header != null && sha256Header.equals(STREAMING_AWS_4_HMAC_SHA_256_PAYLOAD);
   }
 
-  static List<BucketContents> filterBucketContentsBy(List<BucketContents> contents,
-      Set<String> commonPrefixes) {
-    if (commonPrefixes != null && !commonPrefixes.isEmpty()) {
-      return contents
-          .stream()
-          .filter(c -> commonPrefixes
-              .stream()
-              .noneMatch(p -> c.getKey().startsWith(p))
-          )
-          .collect(Collectors.toList());
-    } else {
-      return contents;
+  /**
+   * Decodes V4 chunked request data right away if the chunk signatures are to be verified.
+   * Otherwise the data is passed on as it is, see {@link #isDecodedByStore(String)}.
+   */
+  private InputStream verifyingChunkSignatures(final InputStream inputStream,
+      final String sha256Header, final HttpServletRequest request) {
+    if (chunkSignatureSecretKey == null || !isV4ChunkedWithSigningEnabled(sha256Header)) {
+      return inputStream;
     }
+    return new AwsChunkedDecodingInputStream(inputStream,
+        AwsChunkSignatureVerifier.forRequest(request.getHeader(HttpHeaders.AUTHORIZATION),
+            request.getHeader(X_AMZ_DATE), chunkSignatureSecretKey));
   }
 
-  private List<BucketContents> getBucketContents(final String bucketName,
-      final String prefix) throws IOException {
-    final String encodedPrefix = null != prefix ? encode(prefix) : null;
-
-    final List<S3Object> s3Objects = fileStore.getS3Objects(bucketName, encodedPrefix);
-
-    LOG.debug(String.format("Found %s objects in bucket %s", s3Objects.size(), bucketName));
-    return s3Objects.stream().map(s3Object -> new BucketContents(
-            decode(s3Object.getName()),
-            s3Object.getModificationDate(), s3Object.getEtag(),
-            s3Object.getSize(), "STANDARD", TEST_OWNER))
-        // List Objects results are expected to be sorted by key
-        .sorted(BUCKET_CONTENTS_COMPARATOR)
-        .collect(Collectors.toList());
-  }
-
-  private static boolean isV4ChunkedWithSigningEnabled(final String sha256Header) {
-    return sha256Header != null && sha256Header.equals(STREAMING_AWS_4_HMAC_SHA_256_PAYLOAD);
+  private boolean isDecodedByStore(final String sha256Header) {
+    return chunkSignatureSecretKey == null && isV4ChunkedWithSigningEnabled(sha256Header);
   }
 
   private Map<String, String> addOverrideHeaders(final String query) {
@@ -0,0 +1,154 @@
+/*
+ *  Copyright 2017-2022 Adobe.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *          http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package com.adobe.testing.s3mock;
+
+import static com.adobe.testing.s3mock.util.StringEncoding.encode;
+
+import com.adobe.testing.s3mock.dto.ListBucketResult;
+import com.adobe.testing.s3mock.dto.ListBucketResultV2;
+import com.adobe.testing.s3mock.dto.Owner;
+import com.adobe.testing.s3mock.store.ObjectListing;
+import com.adobe.testing.s3mock.store.S3Object;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.dataformat.xml.ser.ToXmlGenerator;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import javax.xml.namespace.QName;
+import org.springframework.util.StreamUtils;
+import org.springframework.web.servlet.mvc.method.annotation.StreamingResponseBody;
+
+/**
+ * Writes the ListBucketResult of an {@link ObjectListing} to the response while iterating it,
+ * so the Contents elements of a page go to the output stream one by one instead of being
+ * collected in a {@link ListBucketResult} or {@link ListBucketResultV2} first.
+ * The XML is the same as serializing those.
+ */
+class ListBucketResultWriter implements StreamingResponseBody {
+
+  private static final QName ROOT = new QName("ListBucketResult");
+
+  private final ObjectMapper xmlMapper;
+  private final ObjectListing listing;
+  private final boolean useUrlEncoding;
+  private final Owner owner;
+  private final List<Element> leading = new ArrayList<>();
+  private final List<Element> trailing = new ArrayList<>();
+
+  /**
+   * Constructs a new {@link ListBucketResultWriter}.
+   *
+   * @param xmlMapper the XML mapper of the message converter.
+   * @param listing the objects and common prefixes to write.
+   * @param useUrlEncoding whether keys and common prefixes are URL encoded.
+   * @param owner the owner of all objects.
+   */
+  ListBucketResultWriter(final ObjectMapper xmlMapper, final ObjectListing listing,
+      final boolean useUrlEncoding, final Owner owner) {
+    this.xmlMapper = xmlMapper;
+    this.listing = listing;
+    this.useUrlEncoding = useUrlEncoding;
+    this.owner = owner;
+  }
+
+  /**
+   * Adds an element written before the Contents elements.
+   * Like the DTOs, {@code null} and empty values are left out.
+   */
+  ListBucketResultWriter leading(final String name, final Object value) {
+    leading.add(new Element(name, value));
+    return this;
+  }
+
+  /**
+   * Adds an element written after the CommonPrefixes elements.
+   * Like the DTOs, {@code null} and empty values are left out.
+   */
+  ListBucketResultWriter trailing(final String name, final Object value) {
+    trailing.add(new Element(name, value));
+    return this;
+  }
+
+  @Override
+  public void writeTo(final OutputStream outputStream) throws IOException {
+    try (ToXmlGenerator generator = (ToXmlGenerator) xmlMapper.getFactory()
+        .createGenerator(StreamUtils.nonClosing(outputStream))) {
+      generator.initGenerator();
+      generator.setNextName(ROOT);
+      generator.writeStartObject();
+      writeElements(generator, leading);
+      for (final Map.Entry<String, S3Object> entry : listing.getContents().entrySet()) {
+        writeContents(generator, ObjectListing.keyOf(entry.getKey()), entry.getValue());
+      }
+      for (final String commonPrefix : listing.getCommonPrefixes()) {
+        generator.writeFieldName("CommonPrefixes");
+        generator.writeStartObject();
+        generator.writeStringField("Prefix", useUrlEncoding ? encode(commonPrefix) : commonPrefix);
+        generator.writeEndObject();
+      }
+      writeElements(generator, trailing);
+      generator.writeEndObject();
+    }
+  }
+
+  private void writeContents(final ToXmlGenerator generator, final String key,
+      final S3Object s3Object) throws IOException {
+    generator.writeFieldName("Contents");
+    generator.writeStartObject();
+    generator.writeStringField("Key", useUrlEncoding ? encode(key) : key);
+    generator.writeStringField("LastModified", s3Object.getModificationDate());
+    generator.writeStringField("ETag", s3Object.getEtag());
+    generator.writeStringField("Size", s3Object.getSize());
+    generator.writeStringField("StorageClass", "STANDARD");
+    generator.writeFieldName("Owner");
+    generator.writeStartObject();
+    generator.writeNumberField("ID", owner.getId());
+    generator.writeStringField("DisplayName", owner.getDisplayName());
+    generator.writeEndObject();
+    generator.writeEndObject();
+  }
+
+  private static void writeElements(final ToXmlGenerator generator, final List<Element> elements)
+      throws IOException {
+    for (final Element element : elements) {
+      if (element.value == null || "".equals(element.value)) {
+        continue;
+      }
+      generator.writeFieldName(element.name);
+      if (element.value instanceof Integer) {
+        generator.writeNumber((Integer) element.value);
+      } else if (element.value instanceof Boolean) {
+        generator.writeBoolean((Boolean) element.value);
+      } else {
+        generator.writeString(element.value.toString());
+      }
+    }
+  }
+
+  private static final class Element {
+
+    private final String name;
+    private final Object value;
+
+    private Element(final String name, final Object value) {
+      this.name = name;
+      this.value = value;
+    }
+  }
+}
@@ -16,10 +16,14 @@
 
 package com.adobe.testing.s3mock;
 
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.apache.commons.lang3.StringUtils.isEmpty;
+
 import com.adobe.testing.s3mock.dto.ErrorResponse;
-import com.adobe.testing.s3mock.store.FileStore;
 import com.adobe.testing.s3mock.store.KmsKeyStore;
+import com.adobe.testing.s3mock.store.ObjectStore;
 import com.adobe.testing.s3mock.store.S3Exception;
+import com.adobe.testing.s3mock.util.ContinuationTokens;
 import java.util.ArrayList;
 import java.util.List;
 import javax.servlet.Filter;
@@ -123,8 +127,21 @@ class S3MockConfiguration implements WebMvcConfigurer {
   }
 
   @Bean
-  FileStoreController fileStoreController(FileStore fileStore) {
-    return new FileStoreController(fileStore);
+  ContinuationTokens continuationTokens(S3MockProperties properties) {
+    final String secret = properties.getContinuationTokenSecret();
+    return isEmpty(secret)
+        ? new ContinuationTokens()
+        : new ContinuationTokens(secret.getBytes(UTF_8));
+  }
+
+  @Bean
+  FileStoreController fileStoreController(ObjectStore fileStore,
+      ContinuationTokens continuationTokens, S3MockProperties properties,
+      MappingJackson2XmlHttpMessageConverter messageConverter) {
+    final String chunkSignatureSecretKey = properties.getChunkSignatureSecretKey();
+    return new FileStoreController(fileStore, continuationTokens,
+        isEmpty(chunkSignatureSecretKey) ? null : chunkSignatureSecretKey,
+        messageConverter.getObjectMapper());
   }
 
   @Bean
@@ -28,6 +28,18 @@ class S3MockProperties {
    */
   private int httpPort;
 
+  /**
+   * Property name for passing the secret that ListObjectsV2 continuation tokens are signed with.
+   * If omitted a random secret will be used, and tokens are only valid until S3Mock shuts down.
+   */
+  private String continuationTokenSecret;
+
+  /**
+   * Property name for passing the secret access key that uploads are signed with. If set, the chunk
+   * signatures of {@code STREAMING-AWS4-HMAC-SHA256-PAYLOAD} uploads are verified.
+   */
+  private String chunkSignatureSecretKey;
+
   public int getHttpPort() {
     return httpPort;
   }
@@ -35,4 +47,20 @@ class S3MockProperties {
   public void setHttpPort(int httpPort) {
     this.httpPort = httpPort;
   }
+
+  public String getContinuationTokenSecret() {
+    return continuationTokenSecret;
+  }
+
+  public void setContinuationTokenSecret(String continuationTokenSecret) {
+    this.continuationTokenSecret = continuationTokenSecret;
+  }
+
+  public String getChunkSignatureSecretKey() {
+    return chunkSignatureSecretKey;
+  }
+
+  public void setChunkSignatureSecretKey(String chunkSignatureSecretKey) {
+    this.chunkSignatureSecretKey = chunkSignatureSecretKey;
+  }
 }
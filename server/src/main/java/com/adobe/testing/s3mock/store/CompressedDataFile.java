@@ -0,0 +1,278 @@
+/*
+ *  Copyright 2017-2022 Adobe.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *          http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package com.adobe.testing.s3mock.store;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+import org.apache.commons.io.IOUtils;
+
+/**
+ * Reads and writes data files compressed in independent blocks, so a region of the data can be
+ * read without decompressing everything before it.
+ *
+ * <p>The data is split into blocks of {@link #BLOCK_SIZE} bytes, each compressed on its own with
+ * raw Deflate at the fastest level. The compressed blocks are followed by the block index, the
+ * compressed length of each block, and a trailer holding the number of blocks, the block size and
+ * the length of the uncompressed data.</p>
+ */
+final class CompressedDataFile {
+
+  static final int BLOCK_SIZE = 64 * 1024;
+
+  private static final int MAGIC = 0x53334d5a;
+
+  /**
+   * Number of blocks, block size, uncompressed length and magic number.
+   */
+  private static final int TRAILER_SIZE = 4 + 4 + 8 + 4;
+
+  private CompressedDataFile() {
+    // empty private constructor
+  }
+
+  /**
+   * Compresses a stream into a file.
+   *
+   * @param inputStream the data to compress.
+   * @param target the file to write.
+   *
+   * @return the length of the uncompressed data.
+   *
+   * @throws IOException if the stream can't be read or the file can't be written.
+   */
+  static long write(final InputStream inputStream, final Path target) throws IOException {
+    final Deflater deflater = new Deflater(Deflater.BEST_SPEED, true);
+    final byte[] block = new byte[BLOCK_SIZE];
+    final byte[] buffer = new byte[BLOCK_SIZE];
+    final ByteArrayOutputStream index = new ByteArrayOutputStream();
+    final DataOutputStream indexOutput = new DataOutputStream(index);
+    try (DataOutputStream out = new DataOutputStream(
+        new BufferedOutputStream(Files.newOutputStream(target), BLOCK_SIZE))) {
+      long length = 0;
+      int blocks = 0;
+      int read;
+      while ((read = IOUtils.read(inputStream, block)) > 0) {
+        deflater.reset();
+        deflater.setInput(block, 0, read);
+        deflater.finish();
+        int compressedLength = 0;
+        while (!deflater.finished()) {
+          final int compressed = deflater.deflate(buffer);
+          out.write(buffer, 0, compressed);
+          compressedLength += compressed;
+        }
+        indexOutput.writeInt(compressedLength);
+        length += read;
+        blocks++;
+        if (read < BLOCK_SIZE) {
+          break;
+        }
+      }
+      index.writeTo(out);
+      out.writeInt(blocks);
+      out.writeInt(BLOCK_SIZE);
+      out.writeLong(length);
+      out.writeInt(MAGIC);
+      return length;
+    } finally {
+      deflater.end();
+    }
+  }
+
+  /**
+   * Opens a stream of the uncompressed data, starting at a position. Only the blocks from the one
+   * holding the position on are decompressed.
+   *
+   * @param file the compressed file.
+   * @param position the position in the uncompressed data.
+   *
+   * @return the stream.
+   *
+   * @throws IOException if the file can't be read.
+   */
+  static InputStream open(final Path file, final long position) throws IOException {
+    final FileChannel channel = FileChannel.open(file, StandardOpenOption.READ);
+    try {
+      return new BlockInputStream(channel, position, true);
+    } catch (final IOException | RuntimeException e) {
+      channel.close();
+      throw e;
+    }
+  }
+
+  /**
+   * Writes a region of the uncompressed data to an output stream.
+   *
+   * @param file the compressed file.
+   * @param position the position of the region in the uncompressed data.
+   * @param count the length of the region.
+   * @param outputStream the stream to write to.
+   *
+   * @throws IOException if the file can't be read or the stream can't be written.
+   */
+  static void transfer(final Path file, final long position, final long count,
+      final OutputStream outputStream) throws IOException {
+    try (InputStream inputStream = open(file, position)) {
+      IOUtils.copyLarge(inputStream, outputStream, 0, count);
+    }
+  }
+
+  /**
+   * Writes a region of the uncompressed data of an open file to an output stream. Only positional
+   * reads are used, so the channel may be shared. It is left open.
+   *
+   * @param channel the compressed file.
+   * @param position the position of the region in the uncompressed data.
+   * @param count the length of the region.
+   * @param outputStream the stream to write to.
+   *
+   * @throws IOException if the file can't be read or the stream can't be written.
+   */
+  static void transfer(final FileChannel channel, final long position, final long count,
+      final OutputStream outputStream) throws IOException {
+    try (InputStream inputStream = new BlockInputStream(channel, position, false)) {
+      IOUtils.copyLarge(inputStream, outputStream, 0, count);
+    }
+  }
+
+  private static ByteBuffer readFully(final FileChannel channel, final long position,
+      final int length) throws IOException {
+    final ByteBuffer buffer = ByteBuffer.allocate(length);
+    while (buffer.hasRemaining()) {
+      if (channel.read(buffer, position + buffer.position()) < 0) {
+        throw new IOException("Unexpected end of compressed data file");
+      }
+    }
+    return (ByteBuffer) buffer.flip();
+  }
+
+  /**
+   * Decompresses the blocks of a file one after the other.
+   */
+  private static final class BlockInputStream extends InputStream {
+
+    private final FileChannel channel;
+
+    private final boolean closeChannel;
+
+    private final Inflater inflater = new Inflater(true);
+
+    /**
+     * Offsets of the compressed blocks, followed by the offset of the index.
+     */
+    private final long[] offsets;
+
+    private final byte[] block;
+
+    private int nextBlock;
+
+    private int position;
+
+    private int limit;
+
+    private BlockInputStream(final FileChannel channel, final long start,
+        final boolean closeChannel) throws IOException {
+      this.channel = channel;
+      this.closeChannel = closeChannel;
+      final ByteBuffer trailer =
+          readFully(channel, channel.size() - TRAILER_SIZE, TRAILER_SIZE);
+      final int blocks = trailer.getInt();
+      final int blockSize = trailer.getInt();
+      trailer.getLong();
+      if (trailer.getInt() != MAGIC) {
+        throw new IOException("Not a compressed data file");
+      }
+
+      final ByteBuffer index = readFully(channel,
+          channel.size() - TRAILER_SIZE - 4L * blocks, 4 * blocks);
+      offsets = new long[blocks + 1];
+      for (int i = 0; i < blocks; i++) {
+        offsets[i + 1] = offsets[i] + index.getInt();
+      }
+      block = new byte[blockSize];
+
+      nextBlock = (int) (start / blockSize);
+      if (nextBlock < blocks) {
+        loadNextBlock();
+        position = (int) Math.min(start % blockSize, limit);
+      }
+    }
+
+    @Override
+    public int read() throws IOException {
+      if (position == limit && !loadNextBlock()) {
+        return -1;
+      }
+      return block[position++] & 0xff;
+    }
+
+    @Override
+    public int read(final byte[] buffer, final int offset, final int length) throws IOException {
+      if (length == 0) {
+        return 0;
+      }
+      if (position == limit && !loadNextBlock()) {
+        return -1;
+      }
+      final int read = Math.min(length, limit - position);
+      System.arraycopy(block, position, buffer, offset, read);
+      position += read;
+      return read;
+    }
+
+    @Override
+    public void close() throws IOException {
+      inflater.end();
+      if (closeChannel) {
+        channel.close();
+      }
+    }
+
+    private boolean loadNextBlock() throws IOException {
+      if (nextBlock >= offsets.length - 1) {
+        return false;
+      }
+      final ByteBuffer compressed = readFully(channel, offsets[nextBlock],
+          (int) (offsets[nextBlock + 1] - offsets[nextBlock]));
+      inflater.reset();
+      inflater.setInput(compressed.array());
+      try {
+        limit = 0;
+        while (!inflater.finished() && limit < block.length) {
+          limit += inflater.inflate(block, limit, block.length - limit);
+        }
+      } catch (final DataFormatException e) {
+        throw new IOException("Corrupt compressed data file", e);
+      }
+      position = 0;
+      nextBlock++;
+      return true;
+    }
+  }
+}
@@ -16,6 +16,7 @@
 
 package com.adobe.testing.s3mock.store;
 
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
 import org.springframework.boot.context.properties.EnableConfigurationProperties;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
@@ -24,12 +25,27 @@ import org.springframework.context.annotation.Configuration;
 @EnableConfigurationProperties(DomainProperties.class)
 class DomainConfiguration {
 
-  @Bean
+  @Bean(destroyMethod = "close")
+  @ConditionalOnProperty(name = DomainProperties.STORAGE, havingValue = FileStore.STORAGE,
+      matchIfMissing = true)
   FileStore fileStore(DomainProperties properties) {
-    return new FileStore(properties.getRoot(), properties.isRetainFilesOnExit(),
+    return new FileStore(properties);
+  }
+
+  @Bean(destroyMethod = "close")
+  @ConditionalOnProperty(name = DomainProperties.STORAGE, havingValue = InMemoryStore.STORAGE)
+  InMemoryStore inMemoryStore(DomainProperties properties) {
+    return new InMemoryStore(properties.getInMemoryCapacity().toBytes(),
         properties.getInitialBuckets());
   }
 
+  @Bean(destroyMethod = "close")
+  @ConditionalOnProperty(name = DomainProperties.STORAGE, havingValue = SegmentStore.STORAGE)
+  SegmentStore segmentStore(DomainProperties properties) {
+    return new SegmentStore(properties.getRoot(), properties.isRetainFilesOnExit(),
+        properties.getInitialBuckets(), properties.getSegmentSize().toBytes());
+  }
+
   @Bean
   KmsKeyStore kmsKeyStore(DomainProperties properties) {
     return new KmsKeyStore(properties.getValidKmsKeys());
@@ -16,14 +16,23 @@
 
 package com.adobe.testing.s3mock.store;
 
+import java.util.ArrayList;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Set;
 import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.util.unit.DataSize;
 
 @ConfigurationProperties("com.adobe.testing.s3mock.domain")
 class DomainProperties {
 
+  static final String STORAGE = "com.adobe.testing.s3mock.domain.storage";
+
+  /**
+   * Largest inline threshold, as inlined data is held in the object index and metadata files.
+   */
+  static final DataSize MAX_INLINE_THRESHOLD = DataSize.ofMegabytes(1);
+
   /**
    * Property.
    */
@@ -31,6 +40,7 @@ class DomainProperties {
 
   /**
    * Property name for passing a root directory to use. If omitted a default temp-dir will be used.
+   * Several directories, separated by commas, spread the objects of the file storage over them.
    */
   private String root;
 
@@ -39,7 +49,53 @@ class DomainProperties {
   /**
    * Property name for passing a comma separated list of buckets that are to be created at startup.
    */
-  private List<String> initialBuckets;
+  private List<String> initialBuckets = new ArrayList<>();
+
+  /**
+   * Property name for choosing the {@link ObjectStore storage engine}.
+   */
+  private String storage = FileStore.STORAGE;
+
+  /**
+   * Property name for limiting the object data held by the in-memory storage engine.
+   */
+  private DataSize inMemoryCapacity = DataSize.ofMegabytes(512);
+
+  /**
+   * Property name for the size of the segment files of the segment storage engine.
+   */
+  private DataSize segmentSize = DataSize.ofMegabytes(64);
+
+  /**
+   * Property name for choosing how the parts of a multipart upload are assembled on completion.
+   */
+  private MultipartAssembly multipartAssembly = MultipartAssembly.CONCATENATE;
+
+  /**
+   * Property name for storing the data of uploaded objects once per content.
+   */
+  private boolean deduplicateData;
+
+  /**
+   * Property name for the size up to which object data is stored in the object's metadata.
+   * At most {@link #MAX_INLINE_THRESHOLD}.
+   */
+  private DataSize inlineThreshold = DataSize.ofBytes(0);
+
+  /**
+   * Property name for compressing the data files of uploaded objects.
+   */
+  private boolean compressData;
+
+  /**
+   * Property name for choosing how written data and metadata are forced to disk.
+   */
+  private Durability durability = Durability.NONE;
+
+  /**
+   * Property name for journaling metadata changes, for fast restarts on retained roots.
+   */
+  private boolean journalMetadata;
 
   public List<String> getInitialBuckets() {
     return initialBuckets;
@@ -72,4 +128,80 @@ class DomainProperties {
   public void setValidKmsKeys(Set<String> validKmsKeys) {
     this.validKmsKeys = validKmsKeys;
   }
+
+  public MultipartAssembly getMultipartAssembly() {
+    return multipartAssembly;
+  }
+
+  public void setMultipartAssembly(MultipartAssembly multipartAssembly) {
+    this.multipartAssembly = multipartAssembly;
+  }
+
+  public boolean isDeduplicateData() {
+    return deduplicateData;
+  }
+
+  public void setDeduplicateData(boolean deduplicateData) {
+    this.deduplicateData = deduplicateData;
+  }
+
+  public DataSize getInlineThreshold() {
+    return inlineThreshold;
+  }
+
+  public void setInlineThreshold(DataSize inlineThreshold) {
+    if (inlineThreshold.isNegative() || inlineThreshold.compareTo(MAX_INLINE_THRESHOLD) > 0) {
+      throw new IllegalArgumentException("The inline threshold must be between 0 and "
+          + MAX_INLINE_THRESHOLD + ", but is " + inlineThreshold);
+    }
+    this.inlineThreshold = inlineThreshold;
+  }
+
+  public boolean isCompressData() {
+    return compressData;
+  }
+
+  public void setCompressData(boolean compressData) {
+    this.compressData = compressData;
+  }
+
+  public Durability getDurability() {
+    return durability;
+  }
+
+  public void setDurability(Durability durability) {
+    this.durability = durability;
+  }
+
+  public boolean isJournalMetadata() {
+    return journalMetadata;
+  }
+
+  public void setJournalMetadata(boolean journalMetadata) {
+    this.journalMetadata = journalMetadata;
+  }
+
+  public String getStorage() {
+    return storage;
+  }
+
+  public void setStorage(String storage) {
+    this.storage = storage;
+  }
+
+  public DataSize getInMemoryCapacity() {
+    return inMemoryCapacity;
+  }
+
+  public void setInMemoryCapacity(DataSize inMemoryCapacity) {
+    this.inMemoryCapacity = inMemoryCapacity;
+  }
+
+  public DataSize getSegmentSize() {
+    return segmentSize;
+  }
+
+  public void setSegmentSize(DataSize segmentSize) {
+    this.segmentSize = segmentSize;
+  }
 }
@@ -0,0 +1,43 @@
+/*
+ *  Copyright 2017-2022 Adobe.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *          http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package com.adobe.testing.s3mock.store;
+
+/**
+ * How {@link FileStore} makes written data and metadata durable, i.e. forces it to disk before an
+ * operation returns.
+ */
+public enum Durability {
+
+  /**
+   * Leaves flushing to the operating system. Fastest, but a crash may lose recently written
+   * objects. Metadata is still replaced atomically.
+   */
+  NONE,
+
+  /**
+   * Forces each written file, and the folder it is renamed into, to disk before the operation
+   * returns.
+   */
+  FSYNC,
+
+  /**
+   * Like {@link #FSYNC}, but only the files are forced by the writing thread. The folders are
+   * handed to a background committer, which forces the folders of all concurrent writes in one
+   * batch, each folder only once. Each distinct file is still forced on its own.
+   */
+  GROUP_COMMIT
+}
@@ -16,11 +16,13 @@
 
 package com.adobe.testing.s3mock.store;
 
+import static java.nio.charset.StandardCharsets.UTF_8;
 import static java.util.Objects.requireNonNull;
-import static java.util.stream.Collectors.toSet;
-import static org.apache.commons.lang3.StringUtils.isBlank;
 import static org.apache.commons.lang3.StringUtils.isNotBlank;
 import static org.apache.commons.lang3.StringUtils.removeStart;
+import static org.springframework.http.HttpStatus.BAD_REQUEST;
+import static org.springframework.http.HttpStatus.NOT_FOUND;
+import static org.springframework.http.HttpStatus.REQUESTED_RANGE_NOT_SATISFIABLE;
 
 import com.adobe.testing.s3mock.dto.Bucket;
 import com.adobe.testing.s3mock.dto.CopyObjectResult;
@@ -30,8 +32,10 @@ import com.adobe.testing.s3mock.dto.Part;
 import com.adobe.testing.s3mock.dto.Range;
 import com.adobe.testing.s3mock.dto.Tag;
 import com.adobe.testing.s3mock.util.AwsChunkedDecodingInputStream;
-import com.adobe.testing.s3mock.util.DigestUtil;
+import com.adobe.testing.s3mock.util.FileTransfer;
+import com.adobe.testing.s3mock.util.StringEncoding;
 import com.fasterxml.jackson.databind.ObjectMapper;
+import java.io.ByteArrayInputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
@@ -39,15 +43,23 @@ import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
-import java.nio.file.DirectoryStream;
-import java.nio.file.FileSystem;
+import java.io.SequenceInputStream;
+import java.io.UncheckedIOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
 import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
 import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
 import java.security.DigestInputStream;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
+import java.time.Instant;
 import java.time.ZoneId;
 import java.time.format.DateTimeFormatter;
 import java.util.ArrayList;
@@ -56,26 +68,80 @@ import java.util.Collection;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.Date;
+import java.util.Enumeration;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.NavigableMap;
+import java.util.Objects;
 import java.util.Set;
+import java.util.UUID;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
 import java.util.function.Function;
 import java.util.stream.Collectors;
 import java.util.stream.Stream;
+import org.apache.commons.codec.binary.Base64;
 import org.apache.commons.codec.binary.Hex;
 import org.apache.commons.codec.digest.DigestUtils;
 import org.apache.commons.io.FileUtils;
 import org.apache.commons.io.IOUtils;
 import org.apache.commons.io.input.BoundedInputStream;
-import org.apache.commons.lang3.ArrayUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 /**
- * S3 Mock file store.
+ * S3 Mock file store, the default {@link ObjectStore}. Stores each object in a folder of the root
+ * folder, holding a {@code metadata} and a {@code fileData} file.
+ *
+ * <p>If data is deduplicated, the data of uploaded objects is stored once per content in the
+ * {@code .blobs} folder instead, named by its MD5 and size, and objects reference the blob holding
+ * their data. Blobs are reference counted and deleted along with the last object referencing
+ * them.</p>
+ *
+ * <p>Objects up to the inline threshold don't get a data file at all. Their data is stored in the
+ * metadata file and kept in the object index, so they are written with one file and read from
+ * memory.</p>
+ *
+ * <p>If data is compressed, the data files of uploaded objects are compressed in blocks, see
+ * {@link CompressedDataFile}. Reads decompress on the fly, starting at the block holding the first
+ * byte requested. Sizes, MD5s and ETags are those of the uncompressed data.</p>
+ *
+ * <p>The root may be several folders, e.g. on different disks. Each bucket then has a folder in
+ * every root, and each object, along with its multipart uploads, is placed in one of them by a
+ * hash of bucket and key. The object index spans all roots, so listings merge them. Each root has
+ * blobs of its own. The same roots have to be configured in the same order on every start, or
+ * objects are looked up in the wrong root.</p>
+ *
+ * <p>Data files are never written in place. Each write creates a new version of the data file,
+ * named after the version the metadata references, and renames it into place. The data file of the
+ * replaced object is deleted once the metadata of the new one is in place, and readers still
+ * streaming it keep reading the old version. Metadata files are replaced atomically.</p>
+ *
+ * <p>Depending on the {@link Durability}, data and metadata are forced to disk before an operation
+ * returns, data before the metadata referencing it.</p>
+ *
+ * <p>Changes of an object's metadata, i.e. writing the metadata file and updating the object index,
+ * hold the lock of the object's key, so concurrent changes of the same key can't interleave and
+ * lose writes. Keys share a fixed number of locks by hash, so changes of different keys rarely
+ * wait for each other. Data is streamed without holding a lock.</p>
+ *
+ * <p>If the metadata is journaled, all changes of buckets, objects and multipart uploads are also
+ * appended to a {@link MetadataJournal} in the {@code .journal} folder of the first root. A reused
+ * root is then loaded from the journal's latest snapshot and the changes since, instead of reading
+ * every metadata file, and multipart uploads survive restarts. The metadata files are still
+ * written, so the journal may be turned off again. A store started without journaling deletes the
+ * journal, which would miss its changes, so turning it on later starts from the metadata files.</p>
  */
-public class FileStore {
+public class FileStore implements ObjectStore {
+
+  /**
+   * Value of the storage property selecting this engine.
+   */
+  static final String STORAGE = "file";
 
   private static final DateTimeFormatter S3_OBJECT_DATE_FORMAT = DateTimeFormatter
       .ofPattern("yyyy-MM-dd'T'HH:mm:ss.SSS'Z'")
@@ -84,47 +150,365 @@ public class FileStore {
   private static final String META_FILE = "metadata";
   private static final String DATA_FILE = "fileData";
   private static final String PART_SUFFIX = ".part";
+  private static final String PARTS_SUFFIX = ".parts";
+  private static final String BLOB_FOLDER = ".blobs";
+  private static final String COMPRESSED_BLOB_SUFFIX = ".deflate";
+  private static final String JOURNAL_FOLDER = ".journal";
+  private static final String UPLOAD_FOLDER = ".uploads";
+
+  private static final long MAPPED_REGION_SIZE = 64 * 1024 * 1024;
+
+  private static final int KEY_LOCK_STRIPES = 256;
+
   private static final String DEFAULT_CONTENT_TYPE = "binary/octet-stream";
 
   private static final Logger LOG = LoggerFactory.getLogger(FileStore.class);
 
   private final File rootFolder;
+  private final List<File> rootFolders;
   private final boolean retainFilesOnExit;
 
+  private final MultipartAssembly multipartAssembly;
+
+  private final boolean deduplicate;
+
+  private final int inlineThreshold;
+
+  private final boolean compress;
+
+  private final FileSync fileSync;
+
+  /**
+   * Journal of the metadata changes, if the store is loaded from it on restart.
+   */
+  private final MetadataJournal journal;
+
+  /**
+   * Number of objects referencing each blob, if data is deduplicated.
+   */
+  private final Map<String, Integer> blobReferences = new ConcurrentHashMap<>();
+
   private final ObjectMapper objectMapper = new ObjectMapper();
 
   private final Map<String, MultipartUploadInfo> uploadIdToInfo = new ConcurrentHashMap<>();
 
+  /**
+   * Locks guarding the metadata of the objects, shared by keys by hash.
+   */
+  private final Lock[] keyLocks = new Lock[KEY_LOCK_STRIPES];
+
+  /**
+   * Registry of all buckets, so that bucket lookups don't need to scan the root folder.
+   */
+  private final Map<String, Bucket> buckets = new ConcurrentHashMap<>();
+
+  /**
+   * In-memory index of the metadata of all objects, per bucket. Keys are the object names as
+   * stored, ordered by {@link ObjectListing#KEY_ORDER}, so iteration order is the order in which
+   * S3 lists keys.
+   */
+  private final Map<String, NavigableMap<String, S3Object>> objectIndex =
+      new ConcurrentHashMap<>();
+
   /**
    * Constructs a new {@link FileStore}.
    *
-   * @param rootDirectory The directory to use. If omitted, a temp directory will be used.
+   * @param properties the configuration of the store: its root directory, or several separated
+   *     by commas, a temp directory if omitted; whether to retain its files on exit; the buckets to
+   *     create; and how to store object data and metadata.
    */
-  public FileStore(String rootDirectory, boolean retainFilesOnExit, List<String> initialBuckets) {
-    rootFolder = createRootFolder(rootDirectory);
-    this.retainFilesOnExit = retainFilesOnExit;
-    LOG.info("Using \"{}\" as root folder. Will retain files on exit: {}",
-        rootFolder.getAbsolutePath(), retainFilesOnExit);
-    initialBuckets.forEach(this::createBucket);
+  FileStore(DomainProperties properties) {
+    rootFolders = createRootFolders(properties.getRoot());
+    rootFolder = rootFolders.get(0);
+    retainFilesOnExit = properties.isRetainFilesOnExit();
+    multipartAssembly = properties.getMultipartAssembly();
+    deduplicate = properties.isDeduplicateData();
+    inlineThreshold = Math.toIntExact(properties.getInlineThreshold().toBytes());
+    compress = properties.isCompressData();
+    fileSync = new FileSync(properties.getDurability());
+    Arrays.setAll(keyLocks, stripe -> new ReentrantLock());
+    if (deduplicate) {
+      rootFolders.forEach(root -> new File(root, BLOB_FOLDER).mkdir());
+    }
+    rootFolders.forEach(FileStore::createUploadFolder);
+    LOG.info("Using {} as root folder. Will retain files on exit: {}",
+        rootFolders.stream().map(File::getAbsolutePath).collect(Collectors.joining("\", \"",
+            "\"", "\"")), retainFilesOnExit);
+    try {
+      journal = properties.isJournalMetadata() ? new MetadataJournal(
+          new File(rootFolder, JOURNAL_FOLDER).toPath(), objectMapper, fileSync) : null;
+      if (journal == null) {
+        FileUtils.deleteDirectory(new File(rootFolder, JOURNAL_FOLDER));
+      }
+      if (journal != null && journal.hasSnapshot()) {
+        journal.replay(new JournalReplay());
+        deleteUnreferencedBlobs();
+      } else {
+        loadBucketsAndObjects();
+      }
+      if (journal != null) {
+        journal.start(this::writeState);
+      }
+    } catch (final IOException e) {
+      throw new IllegalStateException("Could not load metadata journal", e);
+    }
+    properties.getInitialBuckets().forEach(this::createBucket);
+  }
+
+  /**
+   * Creates the folder uploads are written to until their data is verified, deleting the data of
+   * uploads that didn't complete, e.g. because of a crash.
+   */
+  private static void createUploadFolder(final File root) {
+    final File uploadFolder = new File(root, UPLOAD_FOLDER);
+    FileUtils.deleteQuietly(uploadFolder);
+    uploadFolder.mkdir();
   }
 
-  private File createRootFolder(final String rootDirectory) {
-    final File root;
+  private static List<File> createRootFolders(final String rootDirectory) {
+    final List<File> roots;
     if (rootDirectory == null || rootDirectory.isEmpty()) {
-      root = new File(FileUtils.getTempDirectory(), "s3mockFileStore" + new Date().getTime());
+      roots = Collections.singletonList(
+          new File(FileUtils.getTempDirectory(), "s3mockFileStore" + new Date().getTime()));
+    } else {
+      roots = Arrays.stream(rootDirectory.split(","))
+          .map(String::trim)
+          .filter(directory -> !directory.isEmpty())
+          .map(File::new)
+          .collect(Collectors.toList());
+    }
+    roots.forEach(File::mkdir);
+
+    return roots;
+  }
+
+  /**
+   * Selects the root folder holding an object, by a hash of bucket and key. The hash is stable
+   * across restarts, as long as the same root folders are configured.
+   */
+  private File rootFolderOf(final String bucketName, final String objectName) {
+    if (rootFolders.size() == 1) {
+      return rootFolder;
+    }
+    final int hash = (bucketName + "/" + objectKey(objectName)).hashCode();
+    return rootFolders.get(Math.floorMod(hash, rootFolders.size()));
+  }
+
+  /**
+   * Retrieves the folder of an object, in the root folder selected by bucket and key.
+   */
+  private File objectFolder(final String bucketName, final String objectName) {
+    return Paths.get(rootFolderOf(bucketName, objectName).getAbsolutePath(), bucketName,
+        objectName).toFile();
+  }
+
+  /**
+   * Finds the root folder holding a blob. Blobs are named by their content, so any blob of that
+   * name will do.
+   *
+   * @return the blob file, or {@code null} if there is none.
+   */
+  private File locateBlob(final String blob) {
+    return rootFolders.stream()
+        .map(root -> Paths.get(root.getAbsolutePath(), BLOB_FOLDER, blob).toFile())
+        .filter(File::exists)
+        .findFirst()
+        .orElse(null);
+  }
+
+  /**
+   * Builds the bucket registry and the object index from the folders and metadata files already
+   * present in the root folders, e.g. if an existing root is reused. Counts the references to
+   * blobs and deletes the blobs no object references.
+   */
+  private void loadBucketsAndObjects() {
+    for (final File root : rootFolders) {
+      final File[] bucketFolders = root.listFiles(
+          file -> file.isDirectory() && !file.getName().startsWith("."));
+      if (bucketFolders != null) {
+        Arrays.stream(bucketFolders).map(File::getName).forEach(this::createBucket);
+      }
+    }
+    for (final File root : rootFolders) {
+      buckets.keySet().forEach(bucketName -> loadObjects(new File(root, bucketName)));
+    }
+    deleteUnreferencedBlobs();
+  }
+
+  /**
+   * Deletes the blobs no object references, after loading.
+   */
+  private void deleteUnreferencedBlobs() {
+    for (final File root : rootFolders) {
+      final File[] unreferencedBlobs = new File(root, BLOB_FOLDER)
+          .listFiles(blob -> !blobReferences.containsKey(blob.getName()));
+      if (unreferencedBlobs != null) {
+        Arrays.stream(unreferencedBlobs).forEach(FileUtils::deleteQuietly);
+      }
+    }
+  }
+
+  /**
+   * Indexes the objects in a bucket folder of one of the root folders.
+   */
+  private void loadObjects(final File bucketFolder) {
+    final Path bucketPath = bucketFolder.toPath();
+    final NavigableMap<String, S3Object> objects = objectsOf(bucketFolder.getName());
+    // stale files are deleted while indexing, so the walk has to be done first
+    final List<Path> metaPaths;
+    try (final Stream<Path> paths = Files.walk(bucketPath)) {
+      metaPaths = paths.filter(path -> META_FILE.equals(path.getFileName().toString()))
+          .filter(Files::isRegularFile)
+          .collect(Collectors.toList());
+    } catch (final IOException e) {
+      LOG.error("Could not index objects of bucket {}", bucketFolder.getName(), e);
+      return;
+    }
+    for (final Path metaPath : metaPaths) {
+      try {
+        final S3Object s3Object = objectMapper.readValue(metaPath.toFile(), S3Object.class);
+        resolveDataFile(s3Object, metaPath.getParent().toFile());
+        if (s3Object.getDataBlob() != null) {
+          blobReferences.merge(s3Object.getDataBlob(), 1, Integer::sum);
+        }
+        deleteStaleFiles(metaPath.getParent(), s3Object);
+        objects.put(indexKey(s3Object.getName()), s3Object);
+      } catch (final IOException e) {
+        LOG.error("File can not be read", e);
+      }
+    }
+  }
+
+  /**
+   * Sets the data file of a loaded object: the blob it references, or the version of the data file
+   * in its folder it references.
+   */
+  private void resolveDataFile(final S3Object s3Object, final File objectFolder) {
+    if (s3Object.getDataBlob() != null) {
+      final File blobFile = locateBlob(s3Object.getDataBlob());
+      s3Object.setDataFile(blobFile != null ? blobFile
+          : new File(new File(rootFolder, BLOB_FOLDER), s3Object.getDataBlob()));
     } else {
-      root = new File(rootDirectory);
+      s3Object.setDataFile(new File(objectFolder, dataFileName(s3Object.getDataVersion())));
+    }
+  }
+
+  /**
+   * Writes the bucket registry, the object index and the multipart uploads to a snapshot of the
+   * metadata journal.
+   */
+  private void writeState(final MetadataJournal.Changes changes) throws IOException {
+    for (final String bucketName : buckets.keySet()) {
+      changes.bucketCreated(bucketName);
+      for (final S3Object s3Object
+          : objectIndex.getOrDefault(bucketName, Collections.emptyNavigableMap()).values()) {
+        changes.objectStored(bucketName, s3Object);
+      }
+    }
+    for (final MultipartUploadInfo uploadInfo : uploadIdToInfo.values()) {
+      changes.uploadPrepared(uploadInfo);
+      for (final Part part : uploadInfo.parts.values()) {
+        changes.partIndexed(uploadInfo.upload.getUploadId(), part);
+      }
     }
-    if (!retainFilesOnExit) {
-      root.deleteOnExit();
+  }
+
+  /**
+   * Journals a change, if the metadata is journaled.
+   */
+  private void journal(final MetadataJournal.State change) throws IOException {
+    if (journal != null) {
+      change.writeTo(journal.recorder());
     }
-    root.mkdir();
+  }
 
-    return root;
+  /**
+   * Deletes the files left behind in an object's folder by writes that didn't complete, e.g.
+   * because of a crash: temporary files, and data file versions the metadata doesn't reference.
+   */
+  private static void deleteStaleFiles(final Path objectFolder, final S3Object s3Object) {
+    final File[] staleFiles = objectFolder.toFile().listFiles(file -> file.isFile()
+        && !META_FILE.equals(file.getName())
+        && !file.equals(s3Object.getDataFile()));
+    if (staleFiles != null) {
+      Arrays.stream(staleFiles).forEach(FileUtils::deleteQuietly);
+    }
+  }
+
+  /**
+   * Retrieves the index of the objects in a bucket, creating an empty one if there is none yet.
+   */
+  private NavigableMap<String, S3Object> objectsOf(final String bucketName) {
+    return objectIndex.computeIfAbsent(bucketName,
+        name -> new ConcurrentSkipListMap<>(ObjectListing.KEY_ORDER));
+  }
+
+  /**
+   * Maps an object name, as it is stored, to the key used in the object index: the name without
+   * leading slash. Names that decode to the same object key are different objects, as they are
+   * stored in different folders.
+   *
+   * @param objectName name of the object.
+   *
+   * @return the object name without leading slash.
+   */
+  static String indexKey(final String objectName) {
+    return removeStart(objectName, "/");
+  }
+
+  /**
+   * Maps an object name, as it is stored, to the object key S3 lists it by.
+   *
+   * @param objectName name of the object.
+   *
+   * @return the decoded object key without leading slash.
+   */
+  static String objectKey(final String objectName) {
+    final String relativeObjectName = indexKey(objectName);
+    if (relativeObjectName.indexOf('%') < 0 && relativeObjectName.indexOf('+') < 0) {
+      return relativeObjectName;
+    }
+    try {
+      return StringEncoding.decode(relativeObjectName);
+    } catch (final IllegalArgumentException e) {
+      // not URL encoded, e.g. stored through the Java API
+      return relativeObjectName;
+    }
+  }
+
+  /**
+   * Deletes the root folders and everything in them, unless the files are to be retained on exit.
+   * Called when the application shuts down.
+   */
+  @Override
+  public void close() {
+    if (journal != null) {
+      try {
+        if (retainFilesOnExit) {
+          journal.snapshot();
+        }
+      } catch (final IOException e) {
+        LOG.error("Could not write metadata snapshot", e);
+      }
+      journal.close();
+    }
+    fileSync.close();
+    if (retainFilesOnExit) {
+      return;
+    }
+    for (final File root : rootFolders) {
+      try {
+        FileUtils.deleteDirectory(root);
+      } catch (final IOException e) {
+        LOG.error("Could not delete root folder {}", root.getAbsolutePath(), e);
+      }
+    }
   }
 
   /**
    * Visible for testing.
+   *
+   * @return the first root folder.
    */
   File getRootFolder() {
     return rootFolder;
@@ -140,17 +524,24 @@ public class FileStore {
    * @throws RuntimeException if the bucket cannot be created or the bucket already exists but is
    *     not a directory.
    */
+  @Override
   public Bucket createBucket(final String bucketName) {
-    final File newBucket = new File(rootFolder, bucketName);
     try {
-      FileUtils.forceMkdir(newBucket);
+      for (final File root : rootFolders) {
+        FileUtils.forceMkdir(new File(root, bucketName));
+      }
     } catch (final IOException e) {
       throw new RuntimeException("Can't create bucket directory!", e);
     }
-    if (!retainFilesOnExit) {
-      newBucket.deleteOnExit();
+    objectsOf(bucketName);
+    final Bucket bucket = buckets.computeIfAbsent(bucketName,
+        name -> bucketFromPath(new File(rootFolder, name).toPath()));
+    try {
+      journal(changes -> changes.bucketCreated(bucketName));
+    } catch (final IOException e) {
+      throw new IllegalStateException("Could not journal bucket " + bucketName, e);
     }
-    return bucketFromPath(newBucket.toPath());
+    return bucket;
   }
 
   /**
@@ -158,10 +549,11 @@ public class FileStore {
    *
    * @return List of all Buckets.
    */
+  @Override
   public List<Bucket> listBuckets() {
-    final DirectoryStream.Filter<Path> filter = Files::isDirectory;
-
-    return findBucketsByFilter(filter);
+    return buckets.values().stream()
+        .sorted(Comparator.comparing(Bucket::getName))
+        .collect(Collectors.toList());
   }
 
   /**
@@ -171,33 +563,9 @@ public class FileStore {
    *
    * @return the Bucket or null if not found
    */
+  @Override
   public Bucket getBucket(final String bucketName) {
-    final DirectoryStream.Filter<Path> filter =
-        file -> (Files.isDirectory(file) && file.getFileName().endsWith(bucketName));
-
-    final List<Bucket> buckets = findBucketsByFilter(filter);
-    return buckets.size() > 0 ? buckets.get(0) : null;
-  }
-
-  /**
-   * Searches for folders in the rootFolder that match the given {@link DirectoryStream.Filter}.
-   *
-   * @param filter the Filter to apply.
-   *
-   * @return List of found Folders.
-   */
-  private List<Bucket> findBucketsByFilter(final DirectoryStream.Filter<Path> filter) {
-    final List<Bucket> buckets = new ArrayList<>();
-    try (final DirectoryStream<Path> stream = Files
-        .newDirectoryStream(rootFolder.toPath(), filter)) {
-      for (final Path path : stream) {
-        buckets.add(bucketFromPath(path));
-      }
-    } catch (final IOException e) {
-      LOG.error("Could not Iterate over Bucket-Folders", e);
-    }
-
-    return buckets;
+    return buckets.get(bucketName);
   }
 
   private Bucket bucketFromPath(final Path path) {
@@ -297,6 +665,45 @@ public class FileStore {
       final boolean useV4ChunkedWithSigningFormat,
       final Map<String, String> userMetadata,
       final String encryption, final String kmsKeyId) throws IOException {
+    return putS3Object(bucketName, fileName, contentType, contentEncoding, dataStream,
+        useV4ChunkedWithSigningFormat, userMetadata, encryption, kmsKeyId, null);
+  }
+
+  /**
+   * Generically stores a File inside a Bucket.
+   *
+   * <p>The data is streamed once into a temporary file, computing the MD5 and the ETag on the fly.
+   * If the data matches the expected Content-MD5, the object's folder is created and the temporary
+   * file replaces the data file by an atomic rename. Data up to the inline threshold is buffered
+   * and stored in the metadata file instead.</p>
+   *
+   * @param bucketName Bucket to store the File in.
+   * @param fileName name of the File to be stored.
+   * @param contentType The files Content Type.
+   * @param contentEncoding The files Content Encoding.
+   * @param dataStream The File as InputStream.
+   * @param useV4ChunkedWithSigningFormat If {@code true}, V4-style signing is enabled.
+   * @param userMetadata User metadata to store for this object, will be available for the
+   *     object with the key prefixed with "x-amz-meta-".
+   * @param encryption The Encryption Type.
+   * @param kmsKeyId The KMS encryption key id.
+   * @param contentMd5 The base64 encoded MD5 the data has to match. Optional.
+   *
+   * @return {@link S3Object}.
+   *
+   * @throws IOException if an I/O error occurs.
+   * @throws S3Exception if the data doesn't match the Content-MD5.
+   */
+  @Override
+  public S3Object putS3Object(final String bucketName,
+      final String fileName,
+      final String contentType,
+      final String contentEncoding,
+      final InputStream dataStream,
+      final boolean useV4ChunkedWithSigningFormat,
+      final Map<String, String> userMetadata,
+      final String encryption, final String kmsKeyId,
+      final String contentMd5) throws IOException {
     boolean encrypted = isNotBlank(encryption) && isNotBlank(kmsKeyId);
     final S3Object s3Object = new S3Object();
     s3Object.setName(fileName);
@@ -309,37 +716,96 @@ public class FileStore {
 
     final Bucket theBucket = getBucketOrCreateNewOne(bucketName);
 
-    final File objectRootFolder = createObjectRootFolder(theBucket, s3Object.getName());
-    if (!retainFilesOnExit) {
-      objectRootFolder.deleteOnExit();
-    }
+    // created once the data is verified, so a rejected upload leaves no empty folder behind
+    final File objectRootFolder = objectFolder(theBucket.getName(), s3Object.getName());
 
-    final File dataFile =
-        inputStreamToFile(wrapStream(dataStream, useV4ChunkedWithSigningFormat),
-            objectRootFolder.toPath().resolve(DATA_FILE));
-    s3Object.setDataFile(dataFile);
+    InputStream inputStream = wrapStream(dataStream, useV4ChunkedWithSigningFormat);
+    if (inlineThreshold > 0) {
+      // buffers only as much as is uploaded, up to one byte more than the threshold
+      final byte[] head = IOUtils.toByteArray(
+          new BoundedInputStream(inputStream, inlineThreshold + 1L));
+      if (head.length <= inlineThreshold) {
+        return storeInline(bucketName, s3Object, objectRootFolder, head, contentMd5);
+      }
+      inputStream = new SequenceInputStream(new ByteArrayInputStream(head), inputStream);
+    }
 
-    s3Object.setSize(Long.toString(dataFile.length()));
+    // uploads to be deduplicated are written to a file of their own, as the blob isn't known yet
+    final String version = newDataVersion();
+    final File dataFile = deduplicate
+        ? Files.createTempFile(Paths.get(rootFolderOf(bucketName, fileName).getAbsolutePath(),
+            BLOB_FOLDER), DATA_FILE, ".upload").toFile()
+        : objectRootFolder.toPath().resolve(dataFileName(version)).toFile();
+    try {
+      writeDataFile(inputStream, dataFile.toPath(), s3Object, contentMd5);
+      s3Object.setDataFile(dataFile);
+
+      final BasicFileAttributes attributes =
+          Files.readAttributes(dataFile.toPath(), BasicFileAttributes.class);
+      s3Object.setCreationDate(
+          S3_OBJECT_DATE_FORMAT.format(attributes.creationTime().toInstant()));
+      s3Object.setModificationDate(
+          S3_OBJECT_DATE_FORMAT.format(attributes.lastModifiedTime().toInstant()));
+      s3Object.setLastModified(attributes.lastModifiedTime().toMillis());
+
+      if (deduplicate) {
+        storeAsBlob(s3Object);
+      } else {
+        s3Object.setDataVersion(version);
+      }
+    } finally {
+      if (deduplicate) {
+        Files.deleteIfExists(dataFile.toPath());
+      }
+    }
 
-    final BasicFileAttributes attributes =
-        Files.readAttributes(dataFile.toPath(), BasicFileAttributes.class);
-    s3Object.setCreationDate(
-        S3_OBJECT_DATE_FORMAT.format(attributes.creationTime().toInstant()));
-    s3Object.setModificationDate(
-        S3_OBJECT_DATE_FORMAT.format(attributes.lastModifiedTime().toInstant()));
-    s3Object.setLastModified(attributes.lastModifiedTime().toMillis());
+    objectRootFolder.mkdirs();
+    commitObject(bucketName, objectRootFolder, s3Object);
 
-    s3Object.setEtag(digest(kmsKeyId, dataFile));
+    return s3Object;
+  }
 
-    File metaFile = new File(objectRootFolder, META_FILE);
-    if (!retainFilesOnExit) {
-      metaFile.deleteOnExit();
+  /**
+   * Stores an object with its data in the metadata file.
+   */
+  private S3Object storeInline(final String bucketName, final S3Object s3Object,
+      final File objectRootFolder, final byte[] data, final String contentMd5)
+      throws IOException {
+    final byte[] md5Bytes = DigestUtils.md5(data);
+    verifyContentMd5(md5Bytes, contentMd5);
+    s3Object.setMd5(Hex.encodeHexString(md5Bytes));
+    if (s3Object.getKmsKeyId() == null) {
+      s3Object.setEtag(s3Object.getMd5());
+    } else {
+      final MessageDigest etagDigest = DigestUtils.getMd5Digest();
+      etagDigest.update(s3Object.getKmsKeyId().getBytes(UTF_8));
+      s3Object.setEtag(Hex.encodeHexString(etagDigest.digest(data)));
     }
-    objectMapper.writeValue(metaFile, s3Object);
+    s3Object.setInlineData(data);
+    s3Object.setSize(Integer.toString(data.length));
+    s3Object.setDataFile(new File(objectRootFolder, DATA_FILE));
 
+    final String now = S3_OBJECT_DATE_FORMAT.format(Instant.now());
+    s3Object.setCreationDate(now);
+    s3Object.setModificationDate(now);
+    s3Object.setLastModified(System.currentTimeMillis());
+
+    objectRootFolder.mkdirs();
+    commitObject(bucketName, objectRootFolder, s3Object);
     return s3Object;
   }
 
+  private static void verifyContentMd5(final byte[] md5Bytes, final String contentMd5) {
+    if (contentMd5 != null) {
+      final String md5Base64 = Base64.encodeBase64String(md5Bytes);
+      if (!md5Base64.equals(contentMd5)) {
+        LOG.error("Content-MD5 {} does not match object md5 {}", contentMd5, md5Base64);
+        throw new S3Exception(BAD_REQUEST.value(), "BadRequest",
+            "Content-MD5 does not match object md5");
+      }
+    }
+  }
+
   /**
    * Stores an encrypted File inside a Bucket.
    *
@@ -417,18 +883,36 @@ public class FileStore {
    * @param tags List of tag objects.
    *
    * @throws IOException if an I/O error occurs.
+   * @throws S3Exception if the object doesn't exist.
    */
+  @Override
   public void setObjectTags(final String bucketName,
       final String fileName,
       final List<Tag> tags) throws IOException {
-    final S3Object s3Object = getS3Object(bucketName, fileName);
+    final Lock lock = keyLock(bucketName, fileName);
+    lock.lock();
+    try {
+      final S3Object indexedObject = getS3Object(bucketName, fileName);
+      if (indexedObject == null) {
+        throw new S3Exception(NOT_FOUND.value(), "NoSuchKey", "The specified key does not exist.");
+      }
 
-    final Bucket theBucket = getBucket(bucketName);
+      // readers may hold the indexed object, so a changed copy replaces it once persisted
+      final S3Object s3Object = objectMapper.readValue(
+          objectMapper.writeValueAsBytes(indexedObject), S3Object.class);
+      s3Object.setDataFile(indexedObject.getDataFile());
 
-    final File objectRootFolder = createObjectRootFolder(theBucket, s3Object.getName());
+      final Bucket theBucket = getBucket(bucketName);
+
+      final File objectRootFolder = createObjectRootFolder(theBucket, s3Object.getName());
 
-    s3Object.setTags(tags);
-    objectMapper.writeValue(new File(objectRootFolder, META_FILE), s3Object);
+      s3Object.setTags(tags);
+      writeMetadata(new File(objectRootFolder, META_FILE), s3Object);
+      objectsOf(bucketName).put(indexKey(fileName), s3Object);
+      journal(changes -> changes.objectStored(bucketName, s3Object));
+    } finally {
+      lock.unlock();
+    }
   }
 
   /**
@@ -437,10 +921,8 @@ public class FileStore {
    * @param bucketName The Bucket's Name.
    *
    * @return The Bucket.
-   *
-   * @throws IOException If Bucket can't be created.
    */
-  private Bucket getBucketOrCreateNewOne(final String bucketName) throws IOException {
+  private Bucket getBucketOrCreateNewOne(final String bucketName) {
     Bucket theBucket = getBucket(bucketName);
     if (theBucket == null) {
       theBucket = createBucket(bucketName);
@@ -457,15 +939,146 @@ public class FileStore {
    * @return The Folder to store the Object in.
    */
   private File createObjectRootFolder(final Bucket theBucket, final String objectName) {
-    final Path bucketPath = theBucket.getPath();
-    final File objectRootFolder = new File(bucketPath.toFile(), objectName);
+    final File objectRootFolder = objectFolder(theBucket.getName(), objectName);
     objectRootFolder.mkdirs();
-    if (!retainFilesOnExit) {
-      objectRootFolder.deleteOnExit();
-    }
     return objectRootFolder;
   }
 
+  /**
+   * Streams data into a temporary file and moves it to the target path, computing MD5 and ETag on
+   * the fly. The target's folder is created only if the data matches the Content-MD5.
+   *
+   * @param inputStream the Stream to be saved.
+   * @param target Path where the stream should be saved.
+   * @param s3Object the object to set size, ETag and MD5 of. Its KMS key id salts the ETag, for
+   *     simulating encryption dependent digests.
+   * @param contentMd5 The base64 encoded MD5 the data has to match. Optional.
+   *
+   * @throws IOException if the data can't be written.
+   * @throws S3Exception if the data doesn't match the Content-MD5.
+   */
+  private void writeDataFile(final InputStream inputStream, final Path target,
+      final S3Object s3Object, final String contentMd5) throws IOException {
+    final String salt = s3Object.getKmsKeyId();
+    final MessageDigest md5;
+    final MessageDigest etagDigest;
+    try {
+      md5 = MessageDigest.getInstance("MD5");
+      etagDigest = salt == null ? md5 : MessageDigest.getInstance("MD5");
+    } catch (final NoSuchAlgorithmException e) {
+      throw new IllegalStateException(e);
+    }
+    if (salt != null) {
+      etagDigest.update(salt.getBytes(UTF_8));
+    }
+
+    final Path tempFile = Files.createTempFile(uploadFolderOf(target), DATA_FILE, ".tmp");
+    try {
+      InputStream digestingStream = new DigestInputStream(inputStream, md5);
+      if (etagDigest != md5) {
+        digestingStream = new DigestInputStream(digestingStream, etagDigest);
+      }
+      final long size;
+      try (InputStream in = digestingStream) {
+        size = compress
+            ? CompressedDataFile.write(in, tempFile)
+            : Files.copy(in, tempFile, StandardCopyOption.REPLACE_EXISTING);
+      }
+
+      final byte[] md5Bytes = md5.digest();
+      verifyContentMd5(md5Bytes, contentMd5);
+      s3Object.setMd5(Hex.encodeHexString(md5Bytes));
+      s3Object.setEtag(Hex.encodeHexString(etagDigest == md5 ? md5Bytes : etagDigest.digest()));
+      s3Object.setSize(Long.toString(size));
+      s3Object.setCompressed(compress);
+
+      fileSync.sync(tempFile);
+      Files.createDirectories(target.getParent());
+      Files.move(tempFile, target, StandardCopyOption.ATOMIC_MOVE,
+          StandardCopyOption.REPLACE_EXISTING);
+    } finally {
+      Files.deleteIfExists(tempFile);
+    }
+  }
+
+  /**
+   * Retrieves the upload folder of the root folder a file is stored in, so moving the uploaded
+   * data to the file stays a rename.
+   */
+  private Path uploadFolderOf(final Path file) {
+    final Path absoluteFile = file.toAbsolutePath();
+    return rootFolders.stream()
+        .map(root -> root.getAbsoluteFile().toPath())
+        .filter(absoluteFile::startsWith)
+        .findFirst()
+        .orElse(rootFolder.getAbsoluteFile().toPath())
+        .resolve(UPLOAD_FOLDER);
+  }
+
+  /**
+   * Makes a stored object visible: writes its metadata file, puts it into the object index,
+   * journals it and discards the data of the object it replaces, all under the lock of its key.
+   *
+   * @param bucketName the object's bucket.
+   * @param objectRootFolder the object's folder.
+   * @param s3Object the object, with its data stored.
+   *
+   * @throws IOException if the metadata can't be written.
+   */
+  private void commitObject(final String bucketName, final File objectRootFolder,
+      final S3Object s3Object) throws IOException {
+    final Lock lock = keyLock(bucketName, s3Object.getName());
+    lock.lock();
+    try {
+      writeMetadata(new File(objectRootFolder, META_FILE), s3Object);
+      final S3Object replacedObject =
+          objectsOf(bucketName).put(indexKey(s3Object.getName()), s3Object);
+      // journaled before the replaced data is discarded, so a replay never references it
+      journal(changes -> changes.objectStored(bucketName, s3Object));
+      discardData(replacedObject);
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Retrieves the lock guarding the metadata of an object. Keys with the same hash share a lock.
+   */
+  private Lock keyLock(final String bucketName, final String objectName) {
+    final int hash = (bucketName + "/" + objectKey(objectName)).hashCode();
+    return keyLocks[Math.floorMod(hash, KEY_LOCK_STRIPES)];
+  }
+
+  /**
+   * Writes the metadata file of an object. The metadata is written to a temporary file and renamed,
+   * so readers and crashes see either the old or the new metadata. Forces the metadata and the
+   * folders of metadata and data files to disk, if the durability asks for it.
+   *
+   * @param metaFile the metadata file.
+   * @param s3Object the object, with its data file set.
+   *
+   * @throws IOException if the metadata can't be written.
+   */
+  private void writeMetadata(final File metaFile, final S3Object s3Object) throws IOException {
+    final Path tempFile =
+        Files.createTempFile(metaFile.getParentFile().toPath(), META_FILE, ".tmp");
+    try {
+      objectMapper.writeValue(tempFile.toFile(), s3Object);
+      fileSync.sync(tempFile);
+      Files.move(tempFile, metaFile.toPath(), StandardCopyOption.ATOMIC_MOVE,
+          StandardCopyOption.REPLACE_EXISTING);
+    } finally {
+      Files.deleteIfExists(tempFile);
+    }
+
+    final Set<Path> folders = new LinkedHashSet<>();
+    folders.add(metaFile.getParentFile().toPath());
+    if (s3Object.getDataFile() != null) {
+      s3Object.dataFiles().forEach(dataFile -> folders.add(dataFile.getParent()));
+    }
+    fileSync.sync(folders.toArray(new Path[0]));
+  }
+
   /**
    * Stores the Content of an InputStream in a File Creates File if it not exists.
    *
@@ -480,9 +1093,6 @@ public class FileStore {
     try {
       if (!targetFile.exists()) {
         targetFile.createNewFile();
-        if (!retainFilesOnExit) {
-          targetFile.deleteOnExit();
-        }
       }
 
       outputStream = new FileOutputStream(targetFile);
@@ -514,25 +1124,6 @@ public class FileStore {
     return targetFile;
   }
 
-  /**
-   * Normalizes provided prefix in context of the bucket's underlying file system.
-   *
-   * @param bucket the Bucket in which normalization of the path should happen.
-   * @param prefix prefix to be normalized
-   *
-   * @return normalized prefix containing slashes flipped the right way
-   */
-  private String normalizePrefix(Bucket bucket, String prefix) {
-    if (prefix == null) {
-      return null;
-    }
-    FileSystem fileSystem = bucket.getPath().getFileSystem();
-    String normalized = fileSystem.getPath(prefix).toString();
-    //check if there was a trailing slash removed
-    return (normalized.length() != prefix.length()
-        ? normalized + fileSystem.getSeparator() : normalized);
-  }
-
   /**
    * Retrieves an Object from a bucket.
    *
@@ -541,25 +1132,42 @@ public class FileStore {
    *
    * @return the retrieved S3Object or null if not found
    */
+  @Override
   public S3Object getS3Object(final String bucketName, final String objectName) {
-    final Bucket theBucket = getBucket(requireNonNull(bucketName, "bucketName == null"));
+    final NavigableMap<String, S3Object> objects =
+        objectIndex.get(requireNonNull(bucketName, "bucketName == null"));
+    return objects != null ? objects.get(indexKey(objectName)) : null;
+  }
 
-    S3Object theObject = null;
-    // Path can't be resolved in the local bucket root if it's absolute.
-    final String relativeObjectName = removeStart(objectName, "/");
-    final Path metaPath = theBucket.getPath().resolve(relativeObjectName + "/" + META_FILE);
+  @Override
+  public void transferS3ObjectData(final S3Object s3Object, final long position,
+      final long count, final OutputStream outputStream) throws IOException {
+    try (S3ObjectData data = new FileObjectData(s3Object)) {
+      data.transferTo(position, count, outputStream);
+    }
+  }
 
-    if (Files.exists(metaPath)) {
-      try {
-        theObject = objectMapper.readValue(metaPath.toFile(), S3Object.class);
-        theObject.setDataFile(
-            theBucket.getPath().resolve(relativeObjectName + "/" + DATA_FILE).toFile());
-      } catch (final IOException e) {
-        LOG.error("File can not be read", e);
-        e.printStackTrace();
+  /**
+   * Looks up an object and opens its data files. Data files of replaced versions are deleted
+   * while they may be open, so the open files stay readable. If the data files are gone before they
+   * are opened, the object was replaced after the lookup, and the replacing object is opened.
+   */
+  @Override
+  public S3ObjectData openS3ObjectData(final String bucketName, final String objectName)
+      throws IOException {
+    while (true) {
+      final S3Object s3Object = getS3Object(bucketName, objectName);
+      if (s3Object == null) {
+        return null;
+      }
+      try {
+        return new FileObjectData(s3Object);
+      } catch (final NoSuchFileException e) {
+        if (getS3Object(bucketName, objectName) == s3Object) {
+          throw e;
+        }
       }
     }
-    return theObject;
   }
 
   /**
@@ -568,38 +1176,41 @@ public class FileStore {
    * @param bucketName the Bucket in which to list the file(s) in.
    * @param prefix {@link String} object file name starts with
    *
-   * @return the retrieved {@code List<S3Object>} or null if not found
+   * @return the retrieved {@code List<S3Object>}, in key order
    *
-   * @throws IOException if directory stream fails
+   * @throws IOException if the objects can't be listed
    */
+  @Override
   public List<S3Object> getS3Objects(final String bucketName, final String prefix)
       throws IOException {
+    final String keyPrefix = prefix != null ? objectKey(prefix) : null;
+    return new ArrayList<>(listObjects(bucketName, keyPrefix, null, null, Integer.MAX_VALUE)
+        .getContents().values());
+  }
 
-    final Bucket theBucket = getBucket(requireNonNull(bucketName, "bucketName == null"));
-
-    final List<S3Object> resultObjects = new ArrayList<>();
-
-    final String normalizedPrefix = normalizePrefix(theBucket, prefix);
-
-    final Stream<Path> directoryHierarchy = Files.walk(theBucket.getPath());
-
-    final Set<Path> collect = directoryHierarchy
-        .filter(path -> path.toFile().isDirectory())
-        .map(path -> theBucket.getPath().relativize(path))
-        .filter(path -> isBlank(prefix)
-            || (null != normalizedPrefix
-            // match by prefix...
-            && path.toString().startsWith(normalizedPrefix)))
-        .collect(toSet());
-
-    for (final Path path : collect) {
-      final S3Object s3Object = getS3Object(bucketName, path.toString());
-      if (s3Object != null) {
-        resultObjects.add(s3Object);
-      }
+  /**
+   * Lists the objects of a bucket in key order.
+   *
+   * @param bucketName the Bucket in which to list the objects.
+   * @param prefix only keys starting with this prefix are listed. Optional.
+   * @param delimiter keys containing the delimiter after the prefix are rolled up into common
+   *     prefixes. Optional.
+   * @param startAfter only keys after this key are listed. Optional.
+   * @param maxKeys maximum number of keys and common prefixes to list.
+   *
+   * @return the {@link ObjectListing}.
+   *
+   * @throws IOException if the objects can't be listed.
+   */
+  @Override
+  public ObjectListing listObjects(final String bucketName, final String prefix,
+      final String delimiter, final String startAfter, final int maxKeys) throws IOException {
+    final NavigableMap<String, S3Object> objects =
+        objectIndex.get(requireNonNull(bucketName, "bucketName == null"));
+    if (objects == null) {
+      return new ObjectListing(Collections.emptyMap(), Collections.emptyList(), false, null);
     }
-
-    return resultObjects;
+    return ObjectListing.of(objects, prefix, delimiter, startAfter, maxKeys);
   }
 
   /**
@@ -688,6 +1299,7 @@ public class FileStore {
    * @throws FileNotFoundException no FileInputStream of the sourceFile can be created.
    * @throws IOException If File can't be read.
    */
+  @Override
   public CopyObjectResult copyS3ObjectEncrypted(final String sourceBucketName,
       final String sourceObjectName,
       final String destinationBucketName,
@@ -703,18 +1315,119 @@ public class FileStore {
     if (userMetadata != null && !userMetadata.isEmpty()) {
       copyUserMetadata = userMetadata;
     }
-    final S3Object copiedObject =
-        putS3Object(destinationBucketName,
-            destinationObjectName,
-            sourceObject.getContentType(),
-            sourceObject.getContentEncoding(),
-            new FileInputStream(sourceObject.getDataFile()),
-            false,
-            copyUserMetadata,
-            encryption,
-            kmsKeyId);
+    if (canCloneData(sourceObject, kmsKeyId)) {
+      final S3Object copiedObject = cloneS3Object(sourceObject, destinationBucketName,
+          destinationObjectName, encryption, kmsKeyId, copyUserMetadata);
+      return new CopyObjectResult(copiedObject.getModificationDate(), copiedObject.getEtag());
+    }
+    try (final InputStream sourceStream = openDataStream(sourceObject)) {
+      final S3Object copiedObject =
+          putS3Object(destinationBucketName,
+              destinationObjectName,
+              sourceObject.getContentType(),
+              sourceObject.getContentEncoding(),
+              sourceStream,
+              false,
+              copyUserMetadata,
+              encryption,
+              kmsKeyId);
+
+      return new CopyObjectResult(copiedObject.getModificationDate(), copiedObject.getEtag());
+    }
+  }
+
+  /**
+   * Checks if an object's data file and ETag can be reused for a copy. That's the case if the data
+   * is a single file and the copy's ETag, salted with the KMS key, would be the same.
+   */
+  private static boolean canCloneData(final S3Object sourceObject, final String kmsKeyId) {
+    return sourceObject.getDataFileParts() == null
+        && !sourceObject.getEtag().contains("-")
+        && Objects.equals(sourceObject.getKmsKeyId(), kmsKeyId);
+  }
+
+  /**
+   * Copies an object by cloning its data file and writing new metadata only. The data file is
+   * hard linked, which is safe as data files are only ever replaced, never written in place. If
+   * the file system doesn't support hard links, the data is copied by the kernel.
+   */
+  private S3Object cloneS3Object(final S3Object sourceObject,
+      final String destinationBucketName,
+      final String destinationObjectName,
+      final String encryption,
+      final String kmsKeyId,
+      final Map<String, String> userMetadata) throws IOException {
+    final S3Object s3Object = new S3Object();
+    s3Object.setName(destinationObjectName);
+    s3Object.setContentType(sourceObject.getContentType());
+    s3Object.setContentEncoding(sourceObject.getContentEncoding());
+    s3Object.setUserMetadata(userMetadata);
+    s3Object.setEncrypted(isNotBlank(encryption) && isNotBlank(kmsKeyId));
+    s3Object.setKmsEncryption(encryption);
+    s3Object.setKmsEncryptionKeyId(kmsKeyId);
+    s3Object.setEtag(sourceObject.getEtag());
+    s3Object.setMd5(sourceObject.getMd5());
+    s3Object.setSize(sourceObject.getSize());
+    s3Object.setCompressed(sourceObject.isCompressed());
+
+    final Bucket theBucket = getBucketOrCreateNewOne(destinationBucketName);
+    final File objectRootFolder = createObjectRootFolder(theBucket, s3Object.getName());
+    if (sourceObject.getInlineData() != null) {
+      s3Object.setInlineData(sourceObject.getInlineData());
+      s3Object.setDataFile(new File(objectRootFolder, DATA_FILE));
+    } else if (sourceObject.getDataBlob() != null) {
+      if (!retainBlob(sourceObject.getDataBlob())) {
+        throw new IllegalStateException("Source Object not found");
+      }
+      s3Object.setDataBlob(sourceObject.getDataBlob());
+      s3Object.setDataFile(sourceObject.getDataFile());
+    } else {
+      final String version = newDataVersion();
+      final Path target = objectRootFolder.toPath().resolve(dataFileName(version));
+      cloneDataFile(sourceObject.getDataFile().toPath(), target);
+      s3Object.setDataVersion(version);
+      s3Object.setDataFile(target.toFile());
+    }
+
+    final String now = S3_OBJECT_DATE_FORMAT.format(Instant.now());
+    s3Object.setCreationDate(now);
+    s3Object.setModificationDate(now);
+    s3Object.setLastModified(System.currentTimeMillis());
+
+    commitObject(destinationBucketName, objectRootFolder, s3Object);
+
+    return s3Object;
+  }
+
+  private void cloneDataFile(final Path source, final Path target) throws IOException {
+    final Path tempFile = Files.createTempFile(target.getParent(), DATA_FILE, ".tmp");
+    try {
+      Files.delete(tempFile);
+      try {
+        Files.createLink(tempFile, source);
+      } catch (final UnsupportedOperationException | IOException e) {
+        LOG.debug("Could not link {}, copying it instead", source, e);
+        try (final FileChannel sourceChannel = FileChannel.open(source, StandardOpenOption.READ);
+            final FileChannel targetChannel = FileChannel.open(tempFile,
+                StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE)) {
+          transferAll(sourceChannel, targetChannel);
+        }
+        fileSync.sync(tempFile);
+      }
+      Files.move(tempFile, target, StandardCopyOption.ATOMIC_MOVE,
+          StandardCopyOption.REPLACE_EXISTING);
+    } finally {
+      Files.deleteIfExists(tempFile);
+    }
+  }
 
-    return new CopyObjectResult(copiedObject.getModificationDate(), copiedObject.getEtag());
+  private static void transferAll(final FileChannel source, final FileChannel target)
+      throws IOException {
+    final long size = source.size();
+    long transferred = 0;
+    while (transferred < size) {
+      transferred += source.transferTo(transferred, size - transferred, target);
+    }
   }
 
   /**
@@ -726,6 +1439,7 @@ public class FileStore {
    *
    * @return true if Bucket exists
    */
+  @Override
   public Boolean doesBucketExist(final String bucketName) {
     return getBucket(bucketName) != null;
   }
@@ -740,13 +1454,37 @@ public class FileStore {
    *
    * @throws IOException if File could not be accessed.
    */
+  @Override
   public boolean deleteObject(final String bucketName, final String objectName) throws IOException {
-    final S3Object s3Object = getS3Object(bucketName, objectName);
-    if (s3Object != null) {
-      FileUtils.deleteDirectory(s3Object.getDataFile().getParentFile());
-      return true;
-    } else {
-      return false;
+    final Lock lock = keyLock(bucketName, objectName);
+    lock.lock();
+    try {
+      final S3Object s3Object = getS3Object(bucketName, objectName);
+      if (s3Object != null) {
+        // the folder may hold the folders of nested keys, so only the object's own files go
+        final File objectRootFolder = objectFolder(bucketName, s3Object.getName());
+        Files.deleteIfExists(new File(objectRootFolder, META_FILE).toPath());
+        objectsOf(bucketName).remove(indexKey(objectName));
+        discardData(s3Object);
+        journal(changes -> changes.objectDeleted(bucketName, objectName));
+        deleteEmptyFolders(objectRootFolder, Paths.get(
+            rootFolderOf(bucketName, s3Object.getName()).getAbsolutePath(), bucketName).toFile());
+        return true;
+      } else {
+        return false;
+      }
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Deletes a folder and its parents up to a bucket folder, as long as they are empty.
+   */
+  private static void deleteEmptyFolders(final File folder, final File bucketFolder) {
+    File emptyFolder = folder;
+    while (emptyFolder != null && !emptyFolder.equals(bucketFolder) && emptyFolder.delete()) {
+      emptyFolder = emptyFolder.getParentFile();
     }
   }
 
@@ -759,10 +1497,19 @@ public class FileStore {
    *
    * @throws IOException if bucket-file could not be accessed.
    */
+  @Override
   public boolean deleteBucket(final String bucketName) throws IOException {
     final Bucket bucket = getBucket(bucketName);
     if (bucket != null) {
-      FileUtils.deleteDirectory(bucket.getPath().toFile());
+      for (final File root : rootFolders) {
+        FileUtils.deleteDirectory(new File(root, bucketName));
+      }
+      buckets.remove(bucketName);
+      final NavigableMap<String, S3Object> objects = objectIndex.remove(bucketName);
+      if (objects != null) {
+        objects.values().forEach(this::releaseBlob);
+      }
+      journal(changes -> changes.bucketDeleted(bucketName));
       return true;
     } else {
       return false;
@@ -783,19 +1530,26 @@ public class FileStore {
    *
    * @return upload result
    */
+  @Override
   public MultipartUpload prepareMultipartUpload(final String bucketName, final String fileName,
       final String contentType, final String contentEncoding, final String uploadId,
       final Owner owner, final Owner initiator, final Map<String, String> userMetadata) {
 
-    if (!Paths.get(rootFolder.getAbsolutePath(), bucketName, fileName, uploadId).toFile()
-        .mkdirs()) {
+    getBucketOrCreateNewOne(bucketName);
+    if (!new File(objectFolder(bucketName, fileName), uploadId).mkdirs()) {
       throw new IllegalStateException(
           "Directories for storing multipart uploads couldn't be created.");
     }
     final MultipartUpload upload =
         new MultipartUpload(fileName, uploadId, owner, initiator, new Date());
-    uploadIdToInfo.put(uploadId, new MultipartUploadInfo(upload,
-        contentType, contentEncoding, userMetadata, bucketName));
+    final MultipartUploadInfo uploadInfo = new MultipartUploadInfo(upload,
+        contentType, contentEncoding, userMetadata, bucketName);
+    uploadIdToInfo.put(uploadId, uploadInfo);
+    try {
+      journal(changes -> changes.uploadPrepared(uploadInfo));
+    } catch (final IOException e) {
+      throw new IllegalStateException("Could not journal multipart upload " + uploadId, e);
+    }
 
     return upload;
   }
@@ -837,6 +1591,7 @@ public class FileStore {
    *
    * @return the list of not-yet completed multipart uploads.
    */
+  @Override
   public Collection<MultipartUpload> listMultipartUploads(String bucketName) {
     return uploadIdToInfo.values()
         .stream()
@@ -852,6 +1607,7 @@ public class FileStore {
    * @param fileName which was uploaded
    * @param uploadId of the upload
    */
+  @Override
   public void abortMultipartUpload(final String bucketName, final String fileName,
       final String uploadId) {
 
@@ -861,10 +1617,8 @@ public class FileStore {
         final File partFolder = retrieveFile(bucketName, fileName, uploadId);
         FileUtils.deleteDirectory(partFolder);
 
-        final File entireFile = retrieveFile(bucketName, fileName, DATA_FILE);
-        FileUtils.deleteQuietly(entireFile);
-
         uploadIdToInfo.remove(uploadId);
+        journal(changes -> changes.uploadEnded(uploadId));
 
         return null;
       } catch (final IOException e) {
@@ -886,26 +1640,63 @@ public class FileStore {
    * @return the md5 hash of this part
    *
    * @throws IOException if file could not be read to calculate digest
+   * @throws IllegalStateException if the upload wasn't prepared, or was completed or aborted.
    */
+  @Override
   public String putPart(final String bucketName,
       final String fileName,
       final String uploadId,
       final String partNumber,
       final InputStream inputStream,
       final boolean useV4ChunkedWithSigningFormat) throws IOException {
+    verifyMultipartUploadPreparation(bucketName, fileName, uploadId);
+
+    final File partFile = partFile(bucketName, fileName, uploadId, partNumber);
+    final Path tempFile =
+        Files.createTempFile(uploadFolderOf(partFile.toPath()), partNumber + PART_SUFFIX, ".tmp");
     try (final DigestInputStream digestingInputStream =
         new DigestInputStream(wrapStream(inputStream, useV4ChunkedWithSigningFormat),
             MessageDigest.getInstance("MD5"))) {
-      inputStreamToFile(digestingInputStream,
-          Paths.get(rootFolder.getAbsolutePath(), bucketName, fileName, uploadId,
-              partNumber + PART_SUFFIX));
+      inputStreamToFile(digestingInputStream, tempFile);
 
-      return new String(Hex.encodeHex(digestingInputStream.getMessageDigest().digest()));
+      final String etag =
+          new String(Hex.encodeHex(digestingInputStream.getMessageDigest().digest()));
+      commitPart(uploadId, partNumber, tempFile, partFile, etag);
+      return etag;
     } catch (final NoSuchAlgorithmException e) {
       throw new IllegalStateException(e);
+    } finally {
+      Files.deleteIfExists(tempFile);
     }
   }
 
+  /**
+   * Moves an uploaded part into the folder of its upload and indexes it. This happens under the
+   * lock of the upload, so a part arriving after the upload was completed or aborted is rejected
+   * instead of replacing data of the completed object.
+   *
+   * @param tempFile the part's data, outside the folder of the upload.
+   * @param partFile the part's file in the folder of the upload.
+   *
+   * @throws IllegalStateException if the upload was completed or aborted.
+   */
+  private void commitPart(final String uploadId, final String partNumber, final Path tempFile,
+      final File partFile, final String etag) throws IOException {
+    fileSync.sync(tempFile);
+    synchronizedUpload(uploadId, uploadInfo -> {
+      try {
+        Files.move(tempFile, partFile.toPath(), StandardCopyOption.ATOMIC_MOVE,
+            StandardCopyOption.REPLACE_EXISTING);
+        indexPart(uploadId, partNumber, partFile, etag);
+      } catch (final IOException e) {
+        throw new IllegalStateException(
+            "Could not store part " + partNumber + " of upload " + uploadId, e);
+      }
+      return null;
+    });
+    fileSync.sync(partFile.getParentFile().toPath());
+  }
+
   /**
    * Finishes the upload.
    *
@@ -934,6 +1725,7 @@ public class FileStore {
    *
    * @return etag of the uploaded file.
    */
+  @Override
   public String completeMultipartUpload(final String bucketName, final String fileName,
       final String uploadId, final List<Part> parts, final String encryption,
       final String kmsKeyId) {
@@ -953,26 +1745,42 @@ public class FileStore {
       }
 
       final File partFolder = retrieveFile(bucketName, fileName, uploadId);
-      final File entireFile = retrieveFile(bucketName, fileName, DATA_FILE);
+      final String version = newDataVersion();
+      final File entireFile = retrieveFile(bucketName, fileName, dataFileName(version));
 
-      final String[] partNames =
-          parts.stream().map(part -> part.getPartNumber() + PART_SUFFIX).toArray(String[]::new);
-
-      final long size = writeEntireFile(entireFile, partFolder, partNames);
+      final List<String> partNames = parts.stream()
+          .map(part -> part.getPartNumber() + PART_SUFFIX)
+          .collect(Collectors.toList());
+      final String etag = uploadInfo.etagOf(parts);
 
       try {
-        final byte[] allMd5s = concatenateMd5sForAllParts(partFolder, partNames);
-        FileUtils.deleteDirectory(partFolder);
+        final Path dataPath;
+        if (multipartAssembly == MultipartAssembly.MANIFEST) {
+          deletePartsNotIn(partFolder, partNames);
+          // the parts leave the folder named by the upload id, which is no longer accepted
+          final String manifestFolder = dataFileName(version) + PARTS_SUFFIX;
+          dataPath = Files.move(partFolder.toPath(),
+              partFolder.toPath().resolveSibling(manifestFolder), StandardCopyOption.ATOMIC_MOVE);
+          s3Object.setDataFileParts(partNames.stream()
+              .map(partName -> manifestFolder + "/" + partName)
+              .collect(Collectors.toList()));
+          Files.setLastModifiedTime(dataPath, FileTime.fromMillis(System.currentTimeMillis()));
+        } else {
+          writeEntireFile(entireFile, partFolder, partNames);
+          FileUtils.deleteDirectory(partFolder);
+          s3Object.setDataVersion(version);
+          dataPath = entireFile.toPath();
+        }
 
         final BasicFileAttributes attributes =
-            Files.readAttributes(entireFile.toPath(), BasicFileAttributes.class);
+            Files.readAttributes(dataPath, BasicFileAttributes.class);
         s3Object.setCreationDate(S3_OBJECT_DATE_FORMAT.format(
             attributes.creationTime().toInstant()));
         s3Object.setModificationDate(S3_OBJECT_DATE_FORMAT.format(
             attributes.lastModifiedTime().toInstant()));
         s3Object.setLastModified(attributes.lastModifiedTime().toMillis());
-        s3Object.setEtag(DigestUtils.md5Hex(allMd5s) + "-" + partNames.length);
-        s3Object.setSize(Long.toString(size));
+        s3Object.setEtag(etag);
+        s3Object.setSize(Long.toString(uploadInfo.sizeOf(parts)));
         s3Object.setContentType(
             uploadInfo.contentType != null ? uploadInfo.contentType : DEFAULT_CONTENT_TYPE);
         s3Object.setContentEncoding(uploadInfo.contentEncoding);
@@ -984,10 +1792,10 @@ public class FileStore {
         throw new IllegalStateException("Error finishing multipart upload", e);
       }
 
+      s3Object.setDataFile(entireFile);
       try {
-        objectMapper.writeValue(
-            Paths.get(rootFolder.getAbsolutePath(), bucketName, fileName, META_FILE).toFile(),
-            s3Object);
+        commitObject(bucketName, objectFolder(bucketName, fileName), s3Object);
+        journal(changes -> changes.uploadEnded(uploadId));
       } catch (final IOException e) {
         throw new IllegalStateException("Could not write metadata-file", e);
       }
@@ -996,34 +1804,161 @@ public class FileStore {
     });
   }
 
-  private String[] listAndSortPartsInFromDirectory(final File partFolder) {
-    final String[] partNames = partFolder.list((dir, name) -> name.endsWith(PART_SUFFIX));
+  /**
+   * Deletes the uploaded part files that aren't part of the completed object.
+   */
+  private static void deletePartsNotIn(final File partFolder, final List<String> partNames) {
+    final File[] partFiles = partFolder.listFiles((dir, name) -> !partNames.contains(name));
+    if (partFiles != null) {
+      Arrays.stream(partFiles).forEach(FileUtils::deleteQuietly);
+    }
+  }
+
+  /**
+   * Discards the data of a replaced object: its data file, the part files of a manifest, or the
+   * reference to a blob. Readers still streaming a deleted file keep reading it.
+   *
+   * @param replacedObject the replaced object. Optional.
+   */
+  private void discardData(final S3Object replacedObject) {
+    discardDataFile(replacedObject);
+    discardManifestParts(replacedObject);
+    releaseBlob(replacedObject);
+  }
+
+  /**
+   * Deletes the data file of a replaced object, if the object has one of its own.
+   *
+   * @param replacedObject the replaced object. Optional.
+   */
+  private static void discardDataFile(final S3Object replacedObject) {
+    if (replacedObject == null || replacedObject.getInlineData() != null
+        || replacedObject.getDataBlob() != null || replacedObject.getDataFileParts() != null) {
+      return;
+    }
+    FileUtils.deleteQuietly(replacedObject.getDataFile());
+  }
+
+  /**
+   * Names the data file of a version of an object's data. Objects stored before data files were
+   * versioned have no version.
+   */
+  private static String dataFileName(final String version) {
+    return version == null ? DATA_FILE : DATA_FILE + "." + version;
+  }
 
-    Arrays.sort(partNames != null ? partNames : new String[0],
-        Comparator.comparingInt(s -> Integer.parseInt(s.substring(0, s.indexOf(PART_SUFFIX)))));
-    return partNames;
+  private static String newDataVersion() {
+    return UUID.randomUUID().toString();
   }
 
   /**
-   * Calculates the MD5 for each part and concatenates the result to a large array.
+   * Moves a freshly written data file to the blob holding its content, or deletes it if that blob
+   * exists already, and references the blob from the object.
    *
-   * @param partFolder the folder where all parts are located.
-   * @param partNames the name of each part file
+   * @param s3Object the object, with its data file, MD5 and size set.
+   */
+  private void storeAsBlob(final S3Object s3Object) throws IOException {
+    final String blob = s3Object.getMd5() + "-" + s3Object.getSize()
+        + (s3Object.isCompressed() ? COMPRESSED_BLOB_SUFFIX : "");
+    final Path dataFile = s3Object.getDataFile().toPath();
+    // the blob goes to the root folder of the object, unless one exists in any root already
+    final Path blobFile = dataFile.resolveSibling(blob);
+    try {
+      blobReferences.compute(blob, (name, references) -> {
+        try {
+          if (references == null) {
+            Files.move(dataFile, blobFile, StandardCopyOption.ATOMIC_MOVE,
+                StandardCopyOption.REPLACE_EXISTING);
+            return 1;
+          }
+          Files.delete(dataFile);
+          return references + 1;
+        } catch (final IOException e) {
+          throw new UncheckedIOException(e);
+        }
+      });
+    } catch (final UncheckedIOException e) {
+      throw e.getCause();
+    }
+    s3Object.setDataBlob(blob);
+    // referenced now, so the blob can't be deleted meanwhile
+    s3Object.setDataFile(locateBlob(blob));
+  }
+
+  /**
+   * Adds a reference to a blob.
    *
-   * @return a byte array containing all md5 bytes for each part concatenated.
+   * @return {@code false} if the blob was deleted meanwhile.
+   */
+  private boolean retainBlob(final String blob) {
+    return blobReferences.computeIfPresent(blob, (name, references) -> references + 1) != null;
+  }
+
+  /**
+   * Removes an object's reference to its blob, deleting the blob if it was the last one.
    *
-   * @throws IOException if a part file could not be read.
+   * @param s3Object the object. Optional.
    */
-  private byte[] concatenateMd5sForAllParts(final File partFolder, final String[] partNames)
-      throws IOException {
-    byte[] allMd5s = new byte[0];
-    for (final String partName : partNames) {
-      try (final InputStream inputStream =
-          Files.newInputStream(Paths.get(partFolder.getAbsolutePath(), partName))) {
-        allMd5s = ArrayUtils.addAll(allMd5s, DigestUtils.md5(inputStream));
+  private void releaseBlob(final S3Object s3Object) {
+    if (s3Object == null || s3Object.getDataBlob() == null) {
+      return;
+    }
+    blobReferences.computeIfPresent(s3Object.getDataBlob(), (name, references) -> {
+      if (references > 1) {
+        return references - 1;
       }
+      FileUtils.deleteQuietly(s3Object.getDataFile());
+      return null;
+    });
+  }
+
+  /**
+   * Deletes the part files of an object that was stored as a manifest, after the object was
+   * replaced.
+   *
+   * @param replacedObject the replaced object. Optional.
+   */
+  private static void discardManifestParts(final S3Object replacedObject) {
+    if (replacedObject == null || replacedObject.getDataFileParts() == null) {
+      return;
+    }
+    replacedObject.dataFiles().stream()
+        .map(Path::getParent)
+        .distinct()
+        .forEach(partFolder -> FileUtils.deleteQuietly(partFolder.toFile()));
+  }
+
+  /**
+   * Opens a stream of an object's data, concatenating its data files. The files are opened one
+   * after the other while the stream is read.
+   */
+  private static InputStream openDataStream(final S3Object s3Object) throws IOException {
+    if (s3Object.getInlineData() != null) {
+      return new ByteArrayInputStream(s3Object.getInlineData());
+    }
+    if (s3Object.isCompressed()) {
+      return CompressedDataFile.open(s3Object.getDataFile().toPath(), 0);
     }
-    return allMd5s;
+    final List<Path> dataFiles = s3Object.dataFiles();
+    if (dataFiles.size() == 1) {
+      return Files.newInputStream(dataFiles.get(0));
+    }
+    final Iterator<Path> files = dataFiles.iterator();
+    return new SequenceInputStream(new Enumeration<InputStream>() {
+      @Override
+      public boolean hasMoreElements() {
+        return files.hasNext();
+      }
+
+      @Override
+      public InputStream nextElement() {
+        try {
+          return Files.newInputStream(files.next());
+        } catch (final IOException e) {
+          throw new UncheckedIOException(e);
+        }
+      }
+    });
   }
 
   /**
@@ -1031,75 +1966,50 @@ public class FileStore {
    * @param bucketName name of the bucket
    * @param fileName name of the file (object key)
    * @param uploadId upload identifier
-   * @return Array of Files
+   * @return the uploaded parts, ordered by part number
    */
+  @Override
   public List<Part> getMultipartUploadParts(final String bucketName,
       final String fileName,
       final String uploadId) {
-    final File partsDirectory = retrieveFile(bucketName, fileName, uploadId);
-    final String[] partNames = listAndSortPartsInFromDirectory(partsDirectory);
-
-    if (partNames != null) {
-      final File[] files = Arrays.stream(partNames).map(File::new).toArray(File[]::new);
-      return arrangeSeparateParts(files, bucketName, fileName, uploadId);
-    } else {
+    final MultipartUploadInfo uploadInfo = uploadIdToInfo.get(uploadId);
+    if (uploadInfo == null) {
       return Collections.emptyList();
     }
+    return new ArrayList<>(uploadInfo.parts.values());
   }
 
-  private File retrieveFile(final String bucketName, final String fileName, final String uploadId) {
-    return Paths.get(rootFolder.getAbsolutePath(), bucketName, fileName, uploadId).toFile();
-  }
-
-  private List<Part> arrangeSeparateParts(final File[] files, final String bucketName,
-      final String fileName, final String uploadId) {
-
-    final List<Part> parts = new ArrayList<>();
-
-    for (int i = 0; i < files.length; i++) {
-      final String filePartPath = concatUploadIdAndPartFileName(files[i], uploadId);
-
-      final File currentFilePart = retrieveFile(bucketName, fileName, filePartPath);
-
-      final int partNumber = i + 1;
-      final String partMd5 = calculateDigestOfFilePart(currentFilePart);
-      final Date lastModified = new Date(currentFilePart.lastModified());
-
-      final Part part = new Part();
-
-      part.setLastModified(lastModified);
-      part.setETag(partMd5);
-      part.setPartNumber((partNumber));
-      part.setSize(currentFilePart.length());
-
-      parts.add(part);
-    }
-
-    return parts;
-  }
-
-  private String calculateDigestOfFilePart(final File currentFilePart) {
-    try (final InputStream is = FileUtils.openInputStream(currentFilePart)) {
-      final String partMd5 = DigestUtils.md5Hex(is);
-      return String.format("%s", partMd5);
-    } catch (final IOException e) {
-      LOG.error("Digest could not be calculated. File access did not succeed", e);
-      return "";
+  private void indexPart(final String uploadId, final String partNumber, final File partFile,
+      final String etag) throws IOException {
+    final MultipartUploadInfo uploadInfo = uploadIdToInfo.get(uploadId);
+    if (uploadInfo != null) {
+      final Part part = uploadInfo.indexPart(Integer.parseInt(partNumber), etag,
+          partFile.length(), new Date(partFile.lastModified()));
+      journal(changes -> changes.partIndexed(uploadId, part));
     }
   }
 
-  private String concatUploadIdAndPartFileName(final File file, final String uploadId) {
-    return String.format("%s/%s", uploadId, file.getName());
+  private File retrieveFile(final String bucketName, final String fileName, final String uploadId) {
+    return new File(objectFolder(bucketName, fileName), uploadId);
   }
 
-  private long writeEntireFile(final File entireFile, final File partFolder,
-      final String... partNames) {
-    try (final OutputStream targetStream = new FileOutputStream(entireFile)) {
-      long size = 0;
-      for (final String partName : partNames) {
-        size += Files.copy(Paths.get(partFolder.getAbsolutePath(), partName), targetStream);
+  private void writeEntireFile(final File entireFile, final File partFolder,
+      final List<String> partNames) {
+    // the entire file is replaced, not written in place, as it may be linked to by copies
+    try {
+      final Path tempFile = Files.createTempFile(partFolder.toPath(), DATA_FILE, ".tmp");
+      try (final FileChannel targetChannel =
+          FileChannel.open(tempFile, StandardOpenOption.WRITE)) {
+        for (final String partName : partNames) {
+          try (final FileChannel partChannel =
+              FileChannel.open(partFolder.toPath().resolve(partName), StandardOpenOption.READ)) {
+            transferAll(partChannel, targetChannel);
+          }
+        }
       }
-      return size;
+      fileSync.sync(tempFile);
+      Files.move(tempFile, entireFile.toPath(), StandardCopyOption.ATOMIC_MOVE,
+          StandardCopyOption.REPLACE_EXISTING);
     } catch (final IOException e) {
       throw new IllegalStateException("Error writing entire file "
           + entireFile.getAbsolutePath(), e);
@@ -1132,15 +2042,6 @@ public class FileStore {
     }
   }
 
-  private String digest(final String salt, final File dataFile) throws IOException {
-    try (final FileInputStream inputStream = new FileInputStream(dataFile)) {
-      return DigestUtil.getHexDigest(salt, inputStream);
-    } catch (final NoSuchAlgorithmException e) {
-      LOG.error("Digest can not be calculated!", e);
-      return null;
-    }
-  }
-
   /**
    * Copies the range, define by from/to, from the S3 Object, identified by the given key to given
    * destination into the given bucket.
@@ -1156,7 +2057,10 @@ public class FileStore {
    * @return etag of the uploaded file.
    *
    * @throws IOException When writing the file fails.
+   * @throws IllegalStateException if the upload wasn't prepared, or was completed or aborted.
+   * @throws S3Exception if the range starts past the end of the object.
    */
+  @Override
   public String copyPart(final String bucket,
       final String key,
       final Range copyRange,
@@ -1168,55 +2072,136 @@ public class FileStore {
     verifyMultipartUploadPreparation(destinationBucket, destinationFilename, uploadId);
 
     final File targetPartFile =
-        ensurePartFile(partNumber, destinationBucket, destinationFilename, uploadId);
-
-    return copyPart(bucket, key, copyRange, targetPartFile);
+        partFile(destinationBucket, destinationFilename, uploadId, partNumber);
+    final Path tempFile = Files.createTempFile(uploadFolderOf(targetPartFile.toPath()),
+        partNumber + PART_SUFFIX, ".tmp");
+    try {
+      final String etag = copyPart(bucket, key, copyRange, tempFile.toFile());
+      commitPart(uploadId, partNumber, tempFile, targetPartFile, etag);
+      return etag;
+    } finally {
+      Files.deleteIfExists(tempFile);
+    }
   }
 
   private String copyPart(final String bucket,
       final String key,
       final Range copyRange,
       final File partFile) throws IOException {
-    long from = 0;
     final S3Object s3Object = resolveS3Object(bucket, key);
-    long len = s3Object.getDataFile().length();
-    if (copyRange != null) {
-      from = copyRange.getStart();
-      len = copyRange.getEnd() - copyRange.getStart() + 1;
+    final Range range = copyRangeOf(copyRange, Long.parseLong(s3Object.getSize()));
+    long skip = range.getStart();
+    long remaining = range.getEnd() - range.getStart() + 1;
+
+    final MessageDigest md5;
+    try {
+      md5 = MessageDigest.getInstance("MD5");
+    } catch (final NoSuchAlgorithmException e) {
+      throw new IllegalStateException(e);
+    }
+
+    if (s3Object.getInlineData() != null) {
+      final byte[] region = Arrays.copyOfRange(s3Object.getInlineData(), (int) skip,
+          (int) (skip + remaining));
+      Files.write(partFile.toPath(), region, StandardOpenOption.TRUNCATE_EXISTING);
+      return Hex.encodeHexString(md5.digest(region));
     }
 
-    try (final InputStream sourceStream = FileUtils.openInputStream(s3Object.getDataFile());
-        final OutputStream targetStream = new FileOutputStream(partFile)) {
-      sourceStream.skip(from);
-      IOUtils.copy(new BoundedInputStream(sourceStream, len), targetStream);
+    if (s3Object.isCompressed()) {
+      try (InputStream in = new DigestInputStream(
+          CompressedDataFile.open(s3Object.getDataFile().toPath(), skip), md5)) {
+        Files.copy(new BoundedInputStream(in, remaining), partFile.toPath(),
+            StandardCopyOption.REPLACE_EXISTING);
+      }
+      return Hex.encodeHexString(md5.digest());
     }
-    try (final InputStream is = FileUtils.openInputStream(partFile)) {
-      return DigestUtils.md5Hex(is);
+
+    try (final FileChannel targetChannel = FileChannel.open(partFile.toPath(),
+        StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+      for (final Path dataFile : s3Object.dataFiles()) {
+        if (remaining <= 0) {
+          break;
+        }
+        try (final FileChannel sourceChannel =
+            FileChannel.open(dataFile, StandardOpenOption.READ)) {
+          final long fileSize = sourceChannel.size();
+          if (skip >= fileSize) {
+            skip -= fileSize;
+            continue;
+          }
+          final long length = Math.min(remaining, fileSize - skip);
+          copyRegion(sourceChannel, skip, length, targetChannel, md5);
+          skip = 0;
+          remaining -= length;
+        }
+      }
     }
+    return Hex.encodeHexString(md5.digest());
   }
 
-  private File ensurePartFile(final String partNumber,
-      final String destinationBucket,
-      final String destinationFilename,
-      final String uploadId) throws IOException {
-    final File partFile = Paths.get(rootFolder.getAbsolutePath(),
-        destinationBucket,
-        destinationFilename,
-        uploadId,
-        partNumber + PART_SUFFIX).toFile();
+  /**
+   * Resolves the range of an object to copy to a part. Like the range of a GET, a range reaching
+   * past the end of the object ends with it.
+   *
+   * @param copyRange the requested range, or {@code null} to copy the whole object.
+   * @param size the size of the object.
+   *
+   * @return the range to copy, empty for an empty object.
+   *
+   * @throws S3Exception if the range starts past the end of the object.
+   */
+  static Range copyRangeOf(final Range copyRange, final long size) {
+    if (copyRange == null) {
+      return new Range(0, size - 1);
+    }
+    if (copyRange.getStart() >= size) {
+      throw new S3Exception(REQUESTED_RANGE_NOT_SATISFIABLE.value(), "InvalidRange",
+          "The requested range is not satisfiable");
+    }
+    return new Range(copyRange.getStart(), Math.min(copyRange.getEnd(), size - 1));
+  }
 
-    if (!partFile.exists() && !partFile.createNewFile()) {
-      throw new IllegalStateException("Could not create buffer file");
+  /**
+   * Copies a region of a file to a channel, e.g. the current position of another file. The region
+   * is memory mapped piece by piece, and each piece is digested and written straight from the
+   * mapping, so every byte is read once.
+   *
+   * @param target channel to write the region to, or {@code null} to only digest it.
+   * @param digest digest to update with the copied bytes. Optional.
+   */
+  static void copyRegion(final FileChannel source, final long position, final long count,
+      final WritableByteChannel target, final MessageDigest digest) throws IOException {
+    long copied = 0;
+    while (copied < count) {
+      final long length = Math.min(MAPPED_REGION_SIZE, count - copied);
+      final MappedByteBuffer region =
+          source.map(FileChannel.MapMode.READ_ONLY, position + copied, length);
+      if (digest != null) {
+        digest.update(region.duplicate());
+      }
+      while (target != null && region.hasRemaining()) {
+        target.write(region);
+      }
+      copied += length;
     }
-    return partFile;
   }
 
+  private File partFile(final String bucketName, final String fileName, final String uploadId,
+      final String partNumber) {
+    return Paths.get(objectFolder(bucketName, fileName).getPath(), uploadId,
+        partNumber + PART_SUFFIX).toFile();
+  }
+
+  /**
+   * Verifies that an upload was prepared and is still in progress. The folder of a completed
+   * upload may still exist, so the registered uploads are checked, not the folders.
+   */
   private void verifyMultipartUploadPreparation(final String destinationBucket,
       final String destinationFilename, final String uploadId) {
     final Path partsFolder =
-        Paths.get(rootFolder.getAbsolutePath(), destinationBucket, destinationFilename, uploadId);
+        objectFolder(destinationBucket, destinationFilename).toPath().resolve(uploadId);
 
-    if (!partsFolder.toFile().exists() || !partsFolder.toFile().isDirectory()) {
+    if (!uploadIdToInfo.containsKey(uploadId) || !partsFolder.toFile().isDirectory()) {
       throw new IllegalStateException("Missed preparing Multipart Request");
     }
   }
@@ -1229,4 +2214,123 @@ public class FileStore {
     }
     return s3Object;
   }
+
+  /**
+   * Rebuilds the bucket registry, the object index and the multipart uploads from the changes
+   * replayed from the metadata journal. Only the references to blobs are counted, no files are
+   * touched.
+   */
+  private final class JournalReplay implements MetadataJournal.Changes {
+
+    @Override
+    public void bucketCreated(final String bucketName) {
+      final Bucket bucket = buckets.computeIfAbsent(bucketName,
+          name -> bucketFromPath(new File(rootFolder, name).toPath()));
+      if (bucket != null) {
+        objectsOf(bucketName);
+      }
+    }
+
+    @Override
+    public void bucketDeleted(final String bucketName) {
+      buckets.remove(bucketName);
+      final NavigableMap<String, S3Object> objects = objectIndex.remove(bucketName);
+      if (objects != null) {
+        objects.values().forEach(this::unreferenceBlob);
+      }
+    }
+
+    @Override
+    public void objectStored(final String bucketName, final S3Object s3Object) {
+      final NavigableMap<String, S3Object> objects = objectIndex.get(bucketName);
+      if (objects == null) {
+        return;
+      }
+      resolveDataFile(s3Object, objectFolder(bucketName, s3Object.getName()));
+      if (s3Object.getDataBlob() != null) {
+        blobReferences.merge(s3Object.getDataBlob(), 1, Integer::sum);
+      }
+      unreferenceBlob(objects.put(indexKey(s3Object.getName()), s3Object));
+    }
+
+    @Override
+    public void objectDeleted(final String bucketName, final String objectName) {
+      final NavigableMap<String, S3Object> objects = objectIndex.get(bucketName);
+      if (objects != null) {
+        unreferenceBlob(objects.remove(indexKey(objectName)));
+      }
+    }
+
+    @Override
+    public void uploadPrepared(final MultipartUploadInfo uploadInfo) {
+      uploadIdToInfo.put(uploadInfo.upload.getUploadId(), uploadInfo);
+    }
+
+    @Override
+    public void partIndexed(final String uploadId, final Part part) {
+      final MultipartUploadInfo uploadInfo = uploadIdToInfo.get(uploadId);
+      if (uploadInfo != null) {
+        uploadInfo.parts.put(part.getPartNumber(), part);
+      }
+    }
+
+    @Override
+    public void uploadEnded(final String uploadId) {
+      uploadIdToInfo.remove(uploadId);
+    }
+
+    private void unreferenceBlob(final S3Object s3Object) {
+      if (s3Object != null && s3Object.getDataBlob() != null) {
+        blobReferences.computeIfPresent(s3Object.getDataBlob(),
+            (name, references) -> references > 1 ? references - 1 : null);
+      }
+    }
+  }
+
+  /**
+   * The data of an object, with its data files open. Inline data needs no file.
+   */
+  private static final class FileObjectData implements S3ObjectData {
+
+    private final S3Object s3Object;
+
+    private final List<FileChannel> channels = new ArrayList<>();
+
+    private FileObjectData(final S3Object s3Object) throws IOException {
+      this.s3Object = s3Object;
+      if (s3Object.getInlineData() != null) {
+        return;
+      }
+      try {
+        for (final Path dataFile : s3Object.dataFiles()) {
+          channels.add(FileChannel.open(dataFile, StandardOpenOption.READ));
+        }
+      } catch (final IOException | RuntimeException e) {
+        close();
+        throw e;
+      }
+    }
+
+    @Override
+    public S3Object getS3Object() {
+      return s3Object;
+    }
+
+    @Override
+    public void transferTo(final long position, final long count,
+        final OutputStream outputStream) throws IOException {
+      if (s3Object.getInlineData() != null) {
+        outputStream.write(s3Object.getInlineData(), (int) position, (int) count);
+      } else if (s3Object.isCompressed()) {
+        CompressedDataFile.transfer(channels.get(0), position, count, outputStream);
+      } else {
+        FileTransfer.transferConcatenated(channels, position, count, outputStream);
+      }
+    }
+
+    @Override
+    public void close() {
+      channels.forEach(IOUtils::closeQuietly);
+    }
+  }
 }
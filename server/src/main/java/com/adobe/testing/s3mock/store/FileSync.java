@@ -0,0 +1,207 @@
+/*
+ *  Copyright 2017-2022 Adobe.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *          http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package com.adobe.testing.s3mock.store;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Forces files and folders to disk according to a {@link Durability}.
+ *
+ * <p>With {@link Durability#GROUP_COMMIT}, callers force their files themselves, concurrently with
+ * each other, as the data of distinct files can't be forced together. They queue the folders to
+ * force and wait. A single committer thread takes all queued folders, forces each distinct one once
+ * and then releases all callers of the batch. Folders queued while a batch is forced form the next
+ * batch, so concurrent writes into the same folders share the cost of forcing them.</p>
+ */
+final class FileSync implements Closeable {
+
+  private static final Logger LOG = LoggerFactory.getLogger(FileSync.class);
+
+  private final Durability durability;
+
+  private final BlockingQueue<Commit> pending = new LinkedBlockingQueue<>();
+
+  private final ExecutorService committer;
+
+  FileSync(final Durability durability) {
+    this.durability = durability;
+    if (durability == Durability.GROUP_COMMIT) {
+      committer = Executors.newSingleThreadExecutor(runnable -> {
+        final Thread thread = new Thread(runnable, "group-committer");
+        thread.setDaemon(true);
+        return thread;
+      });
+      committer.execute(this::commitBatches);
+    } else {
+      committer = null;
+    }
+  }
+
+  /**
+   * Forces files or folders to disk, if the durability asks for it. Returns once they are.
+   *
+   * @param paths the files and folders to force.
+   *
+   * @throws IOException if a path can't be forced.
+   */
+  void sync(final Path... paths) throws IOException {
+    switch (durability) {
+      case NONE:
+        return;
+      case FSYNC:
+        for (final Path path : new LinkedHashSet<>(Arrays.asList(paths))) {
+          force(path);
+        }
+        return;
+      default:
+        final List<Path> folders = new ArrayList<>();
+        for (final Path path : new LinkedHashSet<>(Arrays.asList(paths))) {
+          if (Files.isDirectory(path)) {
+            folders.add(path);
+          } else {
+            force(path);
+          }
+        }
+        if (folders.isEmpty()) {
+          return;
+        }
+        final Commit commit = new Commit(folders);
+        pending.add(commit);
+        if (committer.isShutdown()) {
+          failPending();
+        }
+        commit.await();
+    }
+  }
+
+  /**
+   * Stops the committer. Callers still waiting fail.
+   */
+  @Override
+  public void close() {
+    if (committer == null) {
+      return;
+    }
+    committer.shutdownNow();
+    failPending();
+  }
+
+  private void failPending() {
+    final List<Commit> abandoned = new ArrayList<>();
+    pending.drainTo(abandoned);
+    abandoned.forEach(commit -> commit.result.completeExceptionally(
+        new IOException("File store closed before the data was forced to disk")));
+  }
+
+  private void commitBatches() {
+    final List<Commit> batch = new ArrayList<>();
+    try {
+      while (!Thread.currentThread().isInterrupted()) {
+        batch.add(pending.take());
+        pending.drainTo(batch);
+        final Set<Path> paths = new LinkedHashSet<>();
+        batch.forEach(commit -> paths.addAll(commit.folders));
+
+        final Map<Path, IOException> failures = new HashMap<>();
+        for (final Path path : paths) {
+          try {
+            force(path);
+          } catch (final IOException e) {
+            failures.put(path, e);
+          }
+        }
+        batch.forEach(commit -> commit.complete(failures));
+        batch.clear();
+      }
+    } catch (final InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  private static void force(final Path path) throws IOException {
+    if (Files.isDirectory(path)) {
+      try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+        channel.force(true);
+      } catch (final IOException e) {
+        // some platforms, e.g. Windows, can't open or force folders
+        LOG.debug("Could not force folder {}", path, e);
+      }
+    } else {
+      try (FileChannel channel = FileChannel.open(path, StandardOpenOption.WRITE)) {
+        channel.force(true);
+      }
+    }
+  }
+
+  /**
+   * The folders a caller waits for being forced.
+   */
+  private static final class Commit {
+
+    private final Collection<Path> folders;
+
+    private final CompletableFuture<Void> result = new CompletableFuture<>();
+
+    private Commit(final Collection<Path> folders) {
+      this.folders = folders;
+    }
+
+    private void complete(final Map<Path, IOException> failures) {
+      for (final Path path : folders) {
+        final IOException failure = failures.get(path);
+        if (failure != null) {
+          result.completeExceptionally(failure);
+          return;
+        }
+      }
+      result.complete(null);
+    }
+
+    private void await() throws IOException {
+      try {
+        result.get();
+      } catch (final InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new InterruptedIOException("Interrupted while forcing data to disk");
+      } catch (final ExecutionException e) {
+        throw (IOException) e.getCause();
+      }
+    }
+  }
+}
@@ -0,0 +1,602 @@
+/*
+ *  Copyright 2017-2022 Adobe.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *          http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package com.adobe.testing.s3mock.store;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static java.util.Objects.requireNonNull;
+import static org.apache.commons.lang3.StringUtils.isNotBlank;
+import static org.springframework.http.HttpStatus.BAD_REQUEST;
+import static org.springframework.http.HttpStatus.NOT_FOUND;
+
+import com.adobe.testing.s3mock.dto.Bucket;
+import com.adobe.testing.s3mock.dto.CopyObjectResult;
+import com.adobe.testing.s3mock.dto.MultipartUpload;
+import com.adobe.testing.s3mock.dto.Owner;
+import com.adobe.testing.s3mock.dto.Part;
+import com.adobe.testing.s3mock.dto.Range;
+import com.adobe.testing.s3mock.dto.Tag;
+import com.adobe.testing.s3mock.util.AwsChunkedDecodingInputStream;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+import org.apache.commons.codec.binary.Base64;
+import org.apache.commons.codec.binary.Hex;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * {@link ObjectStore} keeping everything in memory, for short-lived instances that don't need to
+ * persist anything. Metadata lives in concurrent maps, object data in {@link OffHeapSlabs}, so
+ * no request touches the file system and stored data doesn't burden the garbage collector.
+ */
+public class InMemoryStore implements ObjectStore {
+
+  /**
+   * Value of the storage property selecting this engine.
+   */
+  static final String STORAGE = "in-memory";
+
+  private static final DateTimeFormatter S3_OBJECT_DATE_FORMAT = DateTimeFormatter
+      .ofPattern("yyyy-MM-dd'T'HH:mm:ss.SSS'Z'")
+      .withZone(ZoneId.of("UTC"));
+
+  private static final String DEFAULT_CONTENT_TYPE = "binary/octet-stream";
+
+  private static final Logger LOG = LoggerFactory.getLogger(InMemoryStore.class);
+
+  private final OffHeapSlabs slabs;
+
+  private final ObjectMapper objectMapper = new ObjectMapper();
+
+  private final Map<String, Bucket> buckets = new ConcurrentHashMap<>();
+
+  /**
+   * The objects per bucket. Keys are the object names as stored, as in {@link FileStore}.
+   */
+  private final Map<String, NavigableMap<String, S3Object>> objectIndex =
+      new ConcurrentHashMap<>();
+
+  private final Map<String, InMemoryUpload> uploads = new ConcurrentHashMap<>();
+
+  /**
+   * Constructs a new {@link InMemoryStore}.
+   *
+   * @param capacity the maximum number of bytes of object data to hold.
+   * @param initialBuckets buckets to create.
+   */
+  public InMemoryStore(final long capacity, final List<String> initialBuckets) {
+    slabs = new OffHeapSlabs(capacity);
+    LOG.info("Storing objects in memory, up to {} bytes.", capacity);
+    initialBuckets.forEach(this::createBucket);
+  }
+
+  @Override
+  public Bucket createBucket(final String bucketName) {
+    objectsOf(bucketName);
+    return buckets.computeIfAbsent(bucketName,
+        name -> new Bucket(null, name, S3_OBJECT_DATE_FORMAT.format(Instant.now())));
+  }
+
+  @Override
+  public List<Bucket> listBuckets() {
+    return buckets.values().stream()
+        .sorted(Comparator.comparing(Bucket::getName))
+        .collect(Collectors.toList());
+  }
+
+  @Override
+  public Bucket getBucket(final String bucketName) {
+    return buckets.get(bucketName);
+  }
+
+  @Override
+  public Boolean doesBucketExist(final String bucketName) {
+    return getBucket(bucketName) != null;
+  }
+
+  @Override
+  public boolean deleteBucket(final String bucketName) {
+    if (buckets.remove(bucketName) == null) {
+      return false;
+    }
+    final NavigableMap<String, S3Object> objects = objectIndex.remove(bucketName);
+    if (objects != null) {
+      objects.values().forEach(InMemoryStore::release);
+    }
+    return true;
+  }
+
+  @Override
+  public S3Object putS3Object(final String bucketName,
+      final String fileName,
+      final String contentType,
+      final String contentEncoding,
+      final InputStream dataStream,
+      final boolean useV4ChunkedWithSigningFormat,
+      final Map<String, String> userMetadata,
+      final String encryption, final String kmsKeyId,
+      final String contentMd5) throws IOException {
+    final MessageDigest md5 = md5();
+    final MessageDigest etagDigest = kmsKeyId == null ? md5 : saltedMd5(kmsKeyId);
+    final InputStream inputStream = useV4ChunkedWithSigningFormat
+        ? new AwsChunkedDecodingInputStream(dataStream) : dataStream;
+    final OffHeapData data = etagDigest == md5
+        ? OffHeapData.read(slabs, inputStream, md5)
+        : OffHeapData.read(slabs, inputStream, md5, etagDigest);
+
+    final byte[] md5Bytes = md5.digest();
+    if (contentMd5 != null && !Base64.encodeBase64String(md5Bytes).equals(contentMd5)) {
+      data.release();
+      throw new S3Exception(BAD_REQUEST.value(), "BadRequest",
+          "Content-MD5 does not match object md5");
+    }
+
+    final InMemoryObject s3Object = new InMemoryObject(data);
+    s3Object.setName(fileName);
+    s3Object.setContentType(contentType != null ? contentType : DEFAULT_CONTENT_TYPE);
+    s3Object.setContentEncoding(contentEncoding);
+    s3Object.setUserMetadata(userMetadata);
+    s3Object.setEncrypted(isNotBlank(encryption) && isNotBlank(kmsKeyId));
+    s3Object.setKmsEncryption(encryption);
+    s3Object.setKmsEncryptionKeyId(kmsKeyId);
+    s3Object.setEtag(Hex.encodeHexString(etagDigest == md5 ? md5Bytes : etagDigest.digest()));
+    store(bucketName, s3Object);
+    return s3Object;
+  }
+
+  /**
+   * Sets the tags of an object by indexing a tagged copy of it, which shares its data. Readers may
+   * hold the indexed object, so it isn't changed. The copy only replaces the object it was made
+   * of, so a concurrent put or delete of the key isn't undone.
+   *
+   * @throws S3Exception if the object doesn't exist.
+   */
+  @Override
+  public void setObjectTags(final String bucketName, final String fileName,
+      final List<Tag> tags) throws IOException {
+    final NavigableMap<String, S3Object> objects = objectIndex.get(bucketName);
+    final String key = FileStore.indexKey(fileName);
+    while (true) {
+      final S3Object sourceObject = objects != null ? objects.get(key) : null;
+      if (sourceObject == null) {
+        throw new S3Exception(NOT_FOUND.value(), "NoSuchKey", "The specified key does not exist.");
+      }
+      final OffHeapData data = ((InMemoryObject) sourceObject).data;
+      if (!data.retain()) {
+        // replaced or deleted concurrently
+        continue;
+      }
+      final InMemoryObject s3Object =
+          objectMapper.updateValue(new InMemoryObject(data), sourceObject);
+      s3Object.setTags(tags);
+      if (objects.replace(key, sourceObject, s3Object)) {
+        release(sourceObject);
+        return;
+      }
+      data.release();
+    }
+  }
+
+  @Override
+  public S3Object getS3Object(final String bucketName, final String objectName) {
+    final NavigableMap<String, S3Object> objects =
+        objectIndex.get(requireNonNull(bucketName, "bucketName == null"));
+    return objects != null ? objects.get(FileStore.indexKey(objectName)) : null;
+  }
+
+  @Override
+  public void transferS3ObjectData(final S3Object s3Object, final long position,
+      final long count, final OutputStream outputStream) throws IOException {
+    final OffHeapData data = retain(s3Object);
+    try {
+      data.transferTo(position, count, outputStream);
+    } finally {
+      data.release();
+    }
+  }
+
+  /**
+   * Looks up an object and takes a reference to its data. If the data was released before, the
+   * object was replaced after the lookup, and the replacing object is opened.
+   */
+  @Override
+  public S3ObjectData openS3ObjectData(final String bucketName, final String objectName) {
+    while (true) {
+      final S3Object s3Object = getS3Object(bucketName, objectName);
+      if (s3Object == null) {
+        return null;
+      }
+      final OffHeapData data = ((InMemoryObject) s3Object).data;
+      if (data.retain()) {
+        return new InMemoryObjectData(s3Object, data);
+      }
+    }
+  }
+
+  @Override
+  public List<S3Object> getS3Objects(final String bucketName, final String prefix) {
+    final String keyPrefix = prefix != null ? FileStore.objectKey(prefix) : null;
+    return new ArrayList<>(listObjects(bucketName, keyPrefix, null, null, Integer.MAX_VALUE)
+        .getContents().values());
+  }
+
+  @Override
+  public ObjectListing listObjects(final String bucketName, final String prefix,
+      final String delimiter, final String startAfter, final int maxKeys) {
+    final NavigableMap<String, S3Object> objects =
+        objectIndex.get(requireNonNull(bucketName, "bucketName == null"));
+    if (objects == null) {
+      return new ObjectListing(Collections.emptyMap(), Collections.emptyList(), false, null);
+    }
+    return ObjectListing.of(objects, prefix, delimiter, startAfter, maxKeys);
+  }
+
+  /**
+   * Copies an object by sharing its data. Only the ETag is computed again, if the KMS key that
+   * salts it changes, or if the source's ETag is the one of a multipart upload.
+   */
+  @Override
+  public CopyObjectResult copyS3ObjectEncrypted(final String sourceBucketName,
+      final String sourceObjectName,
+      final String destinationBucketName,
+      final String destinationObjectName,
+      final String encryption,
+      final String kmsKeyId,
+      final Map<String, String> userMetadata) {
+    final S3Object sourceObject = getS3Object(sourceBucketName, sourceObjectName);
+    if (sourceObject == null) {
+      return null;
+    }
+    final OffHeapData data = retain(sourceObject);
+
+    String etag = sourceObject.getEtag();
+    if (!Objects.equals(sourceObject.getKmsKeyId(), kmsKeyId) || etag.contains("-")) {
+      final MessageDigest etagDigest = kmsKeyId == null ? md5() : saltedMd5(kmsKeyId);
+      data.digest(etagDigest);
+      etag = Hex.encodeHexString(etagDigest.digest());
+    }
+
+    final InMemoryObject s3Object = new InMemoryObject(data);
+    s3Object.setName(destinationObjectName);
+    s3Object.setContentType(sourceObject.getContentType());
+    s3Object.setContentEncoding(sourceObject.getContentEncoding());
+    s3Object.setUserMetadata(userMetadata != null && !userMetadata.isEmpty()
+        ? userMetadata : sourceObject.getUserMetadata());
+    s3Object.setEncrypted(isNotBlank(encryption) && isNotBlank(kmsKeyId));
+    s3Object.setKmsEncryption(encryption);
+    s3Object.setKmsEncryptionKeyId(kmsKeyId);
+    s3Object.setEtag(etag);
+    store(destinationBucketName, s3Object);
+
+    return new CopyObjectResult(s3Object.getModificationDate(), s3Object.getEtag());
+  }
+
+  @Override
+  public boolean deleteObject(final String bucketName, final String objectName) {
+    final NavigableMap<String, S3Object> objects = objectIndex.get(bucketName);
+    final S3Object s3Object =
+        objects != null ? objects.remove(FileStore.indexKey(objectName)) : null;
+    release(s3Object);
+    return s3Object != null;
+  }
+
+  @Override
+  public MultipartUpload prepareMultipartUpload(final String bucketName, final String fileName,
+      final String contentType, final String contentEncoding, final String uploadId,
+      final Owner owner, final Owner initiator, final Map<String, String> userMetadata) {
+    if (getBucket(bucketName) == null) {
+      createBucket(bucketName);
+    }
+    final MultipartUpload upload =
+        new MultipartUpload(fileName, uploadId, owner, initiator, new Date());
+    uploads.put(uploadId, new InMemoryUpload(new MultipartUploadInfo(upload,
+        contentType, contentEncoding, userMetadata, bucketName)));
+    return upload;
+  }
+
+  @Override
+  public Collection<MultipartUpload> listMultipartUploads(final String bucketName) {
+    return uploads.values()
+        .stream()
+        .map(upload -> upload.info)
+        .filter(info -> bucketName == null || bucketName.equals(info.bucket))
+        .map(info -> info.upload)
+        .collect(Collectors.toList());
+  }
+
+  @Override
+  public void abortMultipartUpload(final String bucketName, final String fileName,
+      final String uploadId) {
+    synchronizedUpload(uploadId, upload -> {
+      uploads.remove(uploadId);
+      upload.parts.values().forEach(OffHeapData::release);
+      return null;
+    });
+  }
+
+  @Override
+  public String putPart(final String bucketName,
+      final String fileName,
+      final String uploadId,
+      final String partNumber,
+      final InputStream inputStream,
+      final boolean useV4ChunkedWithSigningFormat) throws IOException {
+    final MessageDigest md5 = md5();
+    final OffHeapData data = OffHeapData.read(slabs, useV4ChunkedWithSigningFormat
+        ? new AwsChunkedDecodingInputStream(inputStream) : inputStream, md5);
+    return storePart(uploadId, partNumber, data, Hex.encodeHexString(md5.digest()));
+  }
+
+  @Override
+  public String copyPart(final String bucket,
+      final String key,
+      final Range copyRange,
+      final String partNumber,
+      final String destinationBucket,
+      final String destinationFilename,
+      final String uploadId) {
+    if (!uploads.containsKey(uploadId)) {
+      throw new IllegalStateException("Missed preparing Multipart Request");
+    }
+    final S3Object sourceObject = getS3Object(bucket, key);
+    if (sourceObject == null) {
+      throw new IllegalStateException("Source Object not found");
+    }
+
+    final Range range = FileStore.copyRangeOf(copyRange, Long.parseLong(sourceObject.getSize()));
+    final MessageDigest md5 = md5();
+    final OffHeapData sourceData = retain(sourceObject);
+    final OffHeapData data;
+    try {
+      data = sourceData.copy(range.getStart(), range.getEnd() - range.getStart() + 1, md5);
+    } finally {
+      sourceData.release();
+    }
+    return storePart(uploadId, partNumber, data, Hex.encodeHexString(md5.digest()));
+  }
+
+  @Override
+  public List<Part> getMultipartUploadParts(final String bucketName, final String fileName,
+      final String uploadId) {
+    final InMemoryUpload upload = uploads.get(uploadId);
+    if (upload == null) {
+      return Collections.emptyList();
+    }
+    return new ArrayList<>(upload.info.parts.values());
+  }
+
+  /**
+   * Completes a multipart upload by joining the data of the parts, without copying it.
+   */
+  @Override
+  public String completeMultipartUpload(final String bucketName, final String fileName,
+      final String uploadId, final List<Part> parts, final String encryption,
+      final String kmsKeyId) {
+    return synchronizedUpload(uploadId, upload -> {
+      final MultipartUploadInfo uploadInfo = upload.info;
+      final String etag = uploadInfo.etagOf(parts);
+
+      final Set<Integer> partNumbers = new HashSet<>();
+      final List<OffHeapData> partData = new ArrayList<>();
+      for (final Part part : parts) {
+        if (!partNumbers.add(part.getPartNumber())) {
+          throw new IllegalArgumentException("Part " + part.getPartNumber() + " is listed twice");
+        }
+        partData.add(upload.parts.get(part.getPartNumber()));
+      }
+      uploads.remove(uploadId);
+      upload.parts.forEach((partNumber, data) -> {
+        if (!partNumbers.contains(partNumber)) {
+          data.release();
+        }
+      });
+
+      final InMemoryObject s3Object = new InMemoryObject(OffHeapData.join(slabs, partData));
+      s3Object.setName(fileName);
+      s3Object.setContentType(
+          uploadInfo.contentType != null ? uploadInfo.contentType : DEFAULT_CONTENT_TYPE);
+      s3Object.setContentEncoding(uploadInfo.contentEncoding);
+      s3Object.setUserMetadata(uploadInfo.userMetadata);
+      s3Object.setEncrypted(encryption != null || kmsKeyId != null);
+      s3Object.setKmsEncryption(encryption);
+      s3Object.setKmsEncryptionKeyId(kmsKeyId);
+      s3Object.setEtag(etag);
+      store(bucketName, s3Object);
+      return etag;
+    });
+  }
+
+  /**
+   * Frees all data.
+   */
+  @Override
+  public void close() {
+    objectIndex.values().forEach(objects -> objects.values().forEach(InMemoryStore::release));
+    objectIndex.clear();
+    buckets.clear();
+    uploads.values().forEach(upload -> upload.parts.values().forEach(OffHeapData::release));
+    uploads.clear();
+  }
+
+  /**
+   * Indexes an object, setting its size and timestamps, and releases the data of the object it
+   * replaces.
+   */
+  private void store(final String bucketName, final InMemoryObject s3Object) {
+    final Instant now = Instant.now();
+    s3Object.setSize(Long.toString(s3Object.data.size()));
+    s3Object.setCreationDate(S3_OBJECT_DATE_FORMAT.format(now));
+    s3Object.setModificationDate(S3_OBJECT_DATE_FORMAT.format(now));
+    s3Object.setLastModified(now.toEpochMilli());
+
+    if (getBucket(bucketName) == null) {
+      createBucket(bucketName);
+    }
+    release(objectsOf(bucketName).put(FileStore.indexKey(s3Object.getName()), s3Object));
+  }
+
+  private String storePart(final String uploadId, final String partNumber,
+      final OffHeapData data, final String etag) {
+    try {
+      return synchronizedUpload(uploadId, upload -> {
+        final int number = Integer.parseInt(partNumber);
+        final OffHeapData replaced = upload.parts.put(number, data);
+        if (replaced != null) {
+          replaced.release();
+        }
+        upload.info.indexPart(number, etag, data.size(), new Date());
+        return etag;
+      });
+    } catch (final RuntimeException e) {
+      data.release();
+      throw e;
+    }
+  }
+
+  private NavigableMap<String, S3Object> objectsOf(final String bucketName) {
+    return objectIndex.computeIfAbsent(bucketName,
+        name -> new ConcurrentSkipListMap<>(ObjectListing.KEY_ORDER));
+  }
+
+  /**
+   * Synchronize access on the upload, to handle concurrent abortion/completion.
+   */
+  private <T> T synchronizedUpload(final String uploadId,
+      final Function<InMemoryUpload, T> callback) {
+    final InMemoryUpload upload = uploads.get(uploadId);
+    if (upload == null) {
+      throw new IllegalArgumentException("Unknown upload " + uploadId);
+    }
+    synchronized (upload) {
+      if (uploads.get(uploadId) != upload) {
+        throw new IllegalStateException(
+            "Upload " + uploadId + " was aborted or completed concurrently");
+      }
+      return callback.apply(upload);
+    }
+  }
+
+  /**
+   * Takes a reference to the data of an object, for reading it.
+   */
+  private static OffHeapData retain(final S3Object s3Object) {
+    final OffHeapData data = ((InMemoryObject) s3Object).data;
+    if (!data.retain()) {
+      throw new IllegalStateException(
+          "Object " + s3Object.getName() + " was replaced or deleted concurrently");
+    }
+    return data;
+  }
+
+  private static void release(final S3Object s3Object) {
+    if (s3Object != null) {
+      ((InMemoryObject) s3Object).data.release();
+    }
+  }
+
+  private static MessageDigest md5() {
+    try {
+      return MessageDigest.getInstance("MD5");
+    } catch (final NoSuchAlgorithmException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+
+  private static MessageDigest saltedMd5(final String salt) {
+    final MessageDigest md5 = md5();
+    md5.update(salt.getBytes(UTF_8));
+    return md5;
+  }
+
+  /**
+   * An object whose data is held by the store.
+   */
+  private static final class InMemoryObject extends S3Object {
+
+    private final OffHeapData data;
+
+    private InMemoryObject(final OffHeapData data) {
+      this.data = data;
+    }
+  }
+
+  /**
+   * The data of an object, referenced until it is closed.
+   */
+  private static final class InMemoryObjectData implements S3ObjectData {
+
+    private final S3Object s3Object;
+
+    private final OffHeapData data;
+
+    private InMemoryObjectData(final S3Object s3Object, final OffHeapData data) {
+      this.s3Object = s3Object;
+      this.data = data;
+    }
+
+    @Override
+    public S3Object getS3Object() {
+      return s3Object;
+    }
+
+    @Override
+    public void transferTo(final long position, final long count,
+        final OutputStream outputStream) throws IOException {
+      data.transferTo(position, count, outputStream);
+    }
+
+    @Override
+    public void close() {
+      data.release();
+    }
+  }
+
+  /**
+   * A multipart upload together with the data of its parts.
+   */
+  private static final class InMemoryUpload {
+
+    private final MultipartUploadInfo info;
+
+    private final Map<Integer, OffHeapData> parts = new ConcurrentHashMap<>();
+
+    private InMemoryUpload(final MultipartUploadInfo info) {
+      this.info = info;
+    }
+  }
+}
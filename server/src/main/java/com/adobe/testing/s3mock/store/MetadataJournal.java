@@ -0,0 +1,508 @@
+/*
+ *  Copyright 2017-2022 Adobe.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *          http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package com.adobe.testing.s3mock.store;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import com.adobe.testing.s3mock.dto.MultipartUpload;
+import com.adobe.testing.s3mock.dto.Owner;
+import com.adobe.testing.s3mock.dto.Part;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Date;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.stream.Stream;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Append-only journal of the metadata changes of a {@link FileStore}, so a retained root can be
+ * loaded from a snapshot and a short journal instead of reading every metadata file, and multipart
+ * uploads survive restarts.
+ *
+ * <p>Each change is appended to the current journal as a line of JSON, holding the full state of
+ * what changed, so replaying a change twice does no harm. Every {@link #RECORDS_PER_SNAPSHOT}
+ * changes, and on start and close, the journal is rotated and a snapshot of the store's state is
+ * written in the same format. Loading replays the latest snapshot and the journals from its
+ * generation on. Older snapshots and journals are deleted once a snapshot is complete.</p>
+ *
+ * <p>A change is appended after it was applied, while the store still holds the lock of the key,
+ * so changes of one key are journaled in order. Changes made before {@link #start(State)} are not
+ * journaled, they are part of the first snapshot.</p>
+ */
+final class MetadataJournal implements Closeable {
+
+  static final long RECORDS_PER_SNAPSHOT = 100_000;
+
+  private static final String SNAPSHOT_PREFIX = "snapshot-";
+  private static final String JOURNAL_PREFIX = "journal-";
+  private static final String TEMP_SUFFIX = ".tmp";
+
+  private static final String TYPE = "type";
+  private static final String BUCKET = "bucket";
+  private static final String DELETE_BUCKET = "deleteBucket";
+  private static final String OBJECT = "object";
+  private static final String DELETE_OBJECT = "deleteObject";
+  private static final String UPLOAD = "upload";
+  private static final String PART = "part";
+  private static final String END_UPLOAD = "endUpload";
+
+  private static final Logger LOG = LoggerFactory.getLogger(MetadataJournal.class);
+
+  private final Path folder;
+
+  private final ObjectMapper objectMapper;
+
+  private final FileSync fileSync;
+
+  /**
+   * Guards the current journal and its generation.
+   */
+  private final Lock journalLock = new ReentrantLock();
+
+  /**
+   * Serializes snapshots.
+   */
+  private final Lock snapshotLock = new ReentrantLock();
+
+  private final AtomicBoolean snapshotScheduled = new AtomicBoolean();
+
+  private final ExecutorService snapshotter = Executors.newSingleThreadExecutor(runnable -> {
+    final Thread thread = new Thread(runnable, "metadata-snapshotter");
+    thread.setDaemon(true);
+    return thread;
+  });
+
+  private final Changes recorder = new Encoder(this::append);
+
+  private State state;
+
+  private long generation;
+
+  private FileChannel journal;
+
+  private Path journalFile;
+
+  private long records;
+
+  /**
+   * The metadata changes of a {@link FileStore}, as journaled and replayed.
+   */
+  interface Changes {
+
+    void bucketCreated(String bucketName) throws IOException;
+
+    void bucketDeleted(String bucketName) throws IOException;
+
+    void objectStored(String bucketName, S3Object s3Object) throws IOException;
+
+    void objectDeleted(String bucketName, String objectName) throws IOException;
+
+    void uploadPrepared(MultipartUploadInfo uploadInfo) throws IOException;
+
+    void partIndexed(String uploadId, Part part) throws IOException;
+
+    void uploadEnded(String uploadId) throws IOException;
+  }
+
+  /**
+   * The state of a {@link FileStore}, written to snapshots as the changes recreating it.
+   */
+  @FunctionalInterface
+  interface State {
+
+    void writeTo(Changes changes) throws IOException;
+  }
+
+  /**
+   * Constructs a new {@link MetadataJournal}.
+   *
+   * @param folder the folder of the snapshots and journals. Created if it doesn't exist.
+   * @param objectMapper the mapper of the objects' metadata.
+   * @param fileSync forces appended changes and snapshots to disk.
+   *
+   * @throws IOException if the folder can't be created.
+   */
+  MetadataJournal(final Path folder, final ObjectMapper objectMapper, final FileSync fileSync)
+      throws IOException {
+    this.folder = Files.createDirectories(folder);
+    this.objectMapper = objectMapper;
+    this.fileSync = fileSync;
+    final NavigableMap<Long, Path> files = generations(SNAPSHOT_PREFIX);
+    files.putAll(generations(JOURNAL_PREFIX));
+    generation = files.isEmpty() ? 0 : files.lastKey();
+  }
+
+  /**
+   * Checks if there is a state to replay, i.e. if the journal was started on this folder before.
+   */
+  boolean hasSnapshot() throws IOException {
+    return !generations(SNAPSHOT_PREFIX).isEmpty();
+  }
+
+  /**
+   * Replays the latest snapshot and the journals written since, if there is a snapshot. A line
+   * that can't be parsed, i.e. a change torn by a crash, ends the journal it is in.
+   *
+   * @param changes receives the changes in the order they were journaled.
+   *
+   * @throws IOException if a file can't be read.
+   */
+  void replay(final Changes changes) throws IOException {
+    final NavigableMap<Long, Path> snapshots = generations(SNAPSHOT_PREFIX);
+    final NavigableMap<Long, Path> journals = generations(JOURNAL_PREFIX);
+    if (snapshots.isEmpty()) {
+      return;
+    }
+    replayFile(snapshots.lastEntry().getValue(), changes);
+    for (final Path file : journals.tailMap(snapshots.lastKey(), true).values()) {
+      replayFile(file, changes);
+    }
+  }
+
+  /**
+   * Starts journaling changes, writing a snapshot of the current state first.
+   *
+   * @param state the state of the store, read for snapshots.
+   *
+   * @throws IOException if the snapshot can't be written.
+   */
+  void start(final State state) throws IOException {
+    this.state = state;
+    snapshot();
+  }
+
+  /**
+   * Receives the changes to journal. Changes before {@link #start(State)} are ignored.
+   */
+  Changes recorder() {
+    return recorder;
+  }
+
+  /**
+   * Rotates the journal and writes a snapshot of the current state. Changes journaled while the
+   * snapshot is written go to the new journal, which is replayed on top of the snapshot.
+   *
+   * @throws IOException if the snapshot can't be written.
+   */
+  void snapshot() throws IOException {
+    snapshotLock.lock();
+    try {
+      final long snapshotGeneration;
+      journalLock.lock();
+      try {
+        snapshotGeneration = generation + 1;
+        final Path nextJournalFile = folder.resolve(fileName(JOURNAL_PREFIX, snapshotGeneration));
+        final FileChannel nextJournal = FileChannel.open(nextJournalFile,
+            StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+        if (journal != null) {
+          journal.close();
+        }
+        journal = nextJournal;
+        journalFile = nextJournalFile;
+        generation = snapshotGeneration;
+        records = 0;
+      } finally {
+        journalLock.unlock();
+      }
+
+      final Path snapshotFile = folder.resolve(fileName(SNAPSHOT_PREFIX, snapshotGeneration));
+      final Path tempFile = snapshotFile.resolveSibling(snapshotFile.getFileName() + TEMP_SUFFIX);
+      try (OutputStream out = new BufferedOutputStream(Files.newOutputStream(tempFile))) {
+        state.writeTo(new Encoder(record -> out.write(record)));
+      }
+      fileSync.sync(tempFile);
+      Files.move(tempFile, snapshotFile, StandardCopyOption.ATOMIC_MOVE,
+          StandardCopyOption.REPLACE_EXISTING);
+      fileSync.sync(folder);
+
+      deleteBefore(SNAPSHOT_PREFIX, snapshotGeneration);
+      deleteBefore(JOURNAL_PREFIX, snapshotGeneration);
+    } finally {
+      snapshotLock.unlock();
+    }
+  }
+
+  /**
+   * Stops journaling. Changes after closing are ignored.
+   */
+  @Override
+  public void close() {
+    snapshotter.shutdown();
+    try {
+      snapshotter.awaitTermination(1, TimeUnit.MINUTES);
+    } catch (final InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+    journalLock.lock();
+    try {
+      if (journal != null) {
+        journal.close();
+        journal = null;
+      }
+    } catch (final IOException e) {
+      LOG.error("Could not close metadata journal {}", journalFile, e);
+    } finally {
+      journalLock.unlock();
+    }
+  }
+
+  private void append(final byte[] record) throws IOException {
+    final Path file;
+    final boolean snapshotDue;
+    journalLock.lock();
+    try {
+      if (journal == null) {
+        return;
+      }
+      final ByteBuffer buffer = ByteBuffer.wrap(record);
+      while (buffer.hasRemaining()) {
+        journal.write(buffer);
+      }
+      file = journalFile;
+      snapshotDue = ++records >= RECORDS_PER_SNAPSHOT;
+    } finally {
+      journalLock.unlock();
+    }
+    fileSync.sync(file);
+
+    if (snapshotDue && snapshotScheduled.compareAndSet(false, true)) {
+      snapshotter.execute(() -> {
+        snapshotScheduled.set(false);
+        try {
+          snapshot();
+        } catch (final IOException e) {
+          LOG.error("Could not write metadata snapshot", e);
+        }
+      });
+    }
+  }
+
+  private void replayFile(final Path file, final Changes changes) throws IOException {
+    try (BufferedReader reader = Files.newBufferedReader(file, UTF_8)) {
+      String line;
+      while ((line = reader.readLine()) != null) {
+        final JsonNode record;
+        try {
+          record = objectMapper.readTree(line);
+        } catch (final JsonProcessingException e) {
+          LOG.warn("Ignoring torn end of metadata journal {}", file);
+          return;
+        }
+        decode(record, changes);
+      }
+    }
+  }
+
+  private void decode(final JsonNode record, final Changes changes) throws IOException {
+    final String type = record.path(TYPE).asText();
+    switch (type) {
+      case BUCKET:
+        changes.bucketCreated(record.get("bucket").asText());
+        break;
+      case DELETE_BUCKET:
+        changes.bucketDeleted(record.get("bucket").asText());
+        break;
+      case OBJECT:
+        changes.objectStored(record.get("bucket").asText(),
+            objectMapper.treeToValue(record.get("object"), S3Object.class));
+        break;
+      case DELETE_OBJECT:
+        changes.objectDeleted(record.get("bucket").asText(), record.get("name").asText());
+        break;
+      case UPLOAD:
+        changes.uploadPrepared(decodeUpload(record));
+        break;
+      case PART:
+        changes.partIndexed(record.get("uploadId").asText(), decodePart(record));
+        break;
+      case END_UPLOAD:
+        changes.uploadEnded(record.get("uploadId").asText());
+        break;
+      default:
+        LOG.warn("Ignoring metadata journal record of unknown type {}", type);
+    }
+  }
+
+  private MultipartUploadInfo decodeUpload(final JsonNode record) {
+    final MultipartUpload upload = new MultipartUpload(record.get("key").asText(),
+        record.get("uploadId").asText(), decodeOwner(record.path("owner")),
+        decodeOwner(record.path("initiator")), new Date(record.get("initiated").asLong()));
+    final Map<String, String> userMetadata = objectMapper.convertValue(
+        record.get("userMetadata"), new TypeReference<Map<String, String>>() { });
+    return new MultipartUploadInfo(upload, record.path("contentType").textValue(),
+        record.path("contentEncoding").textValue(), userMetadata, record.get("bucket").asText());
+  }
+
+  private static Owner decodeOwner(final JsonNode owner) {
+    return owner.isObject()
+        ? new Owner(owner.get("id").asLong(), owner.path("displayName").textValue())
+        : null;
+  }
+
+  private static Part decodePart(final JsonNode record) {
+    final Part part = new Part();
+    part.setPartNumber(record.get("partNumber").asInt());
+    part.setETag(record.get("etag").asText());
+    part.setSize(record.get("size").asLong());
+    part.setLastModified(new Date(record.get("lastModified").asLong()));
+    return part;
+  }
+
+  private NavigableMap<Long, Path> generations(final String prefix) throws IOException {
+    final NavigableMap<Long, Path> generations = new TreeMap<>();
+    try (Stream<Path> files = Files.list(folder)) {
+      files.forEach(file -> {
+        final String name = file.getFileName().toString();
+        if (name.startsWith(prefix) && !name.endsWith(TEMP_SUFFIX)) {
+          try {
+            generations.put(Long.parseLong(name.substring(prefix.length())), file);
+          } catch (final NumberFormatException e) {
+            LOG.warn("Ignoring unexpected file {} in metadata journal folder", file);
+          }
+        }
+      });
+    }
+    return generations;
+  }
+
+  private void deleteBefore(final String prefix, final long firstKept) throws IOException {
+    for (final Path file : generations(prefix).headMap(firstKept, false).values()) {
+      Files.deleteIfExists(file);
+    }
+  }
+
+  private static String fileName(final String prefix, final long generation) {
+    return String.format("%s%016d", prefix, generation);
+  }
+
+  /**
+   * Writes records, one line of JSON each.
+   */
+  @FunctionalInterface
+  private interface RecordWriter {
+
+    void write(byte[] record) throws IOException;
+  }
+
+  /**
+   * Encodes changes as records.
+   */
+  private final class Encoder implements Changes {
+
+    private final RecordWriter writer;
+
+    private Encoder(final RecordWriter writer) {
+      this.writer = writer;
+    }
+
+    @Override
+    public void bucketCreated(final String bucketName) throws IOException {
+      write(record(BUCKET).put("bucket", bucketName));
+    }
+
+    @Override
+    public void bucketDeleted(final String bucketName) throws IOException {
+      write(record(DELETE_BUCKET).put("bucket", bucketName));
+    }
+
+    @Override
+    public void objectStored(final String bucketName, final S3Object s3Object)
+        throws IOException {
+      final ObjectNode record = record(OBJECT).put("bucket", bucketName);
+      record.set("object", objectMapper.valueToTree(s3Object));
+      write(record);
+    }
+
+    @Override
+    public void objectDeleted(final String bucketName, final String objectName)
+        throws IOException {
+      write(record(DELETE_OBJECT).put("bucket", bucketName).put("name", objectName));
+    }
+
+    @Override
+    public void uploadPrepared(final MultipartUploadInfo uploadInfo) throws IOException {
+      final MultipartUpload upload = uploadInfo.upload;
+      final ObjectNode record = record(UPLOAD)
+          .put("bucket", uploadInfo.bucket)
+          .put("key", upload.getKey())
+          .put("uploadId", upload.getUploadId())
+          .put("initiated", upload.getInitiated().getTime())
+          .put("contentType", uploadInfo.contentType)
+          .put("contentEncoding", uploadInfo.contentEncoding);
+      record.set("owner", encodeOwner(upload.getOwner()));
+      record.set("initiator", encodeOwner(upload.getInitiator()));
+      record.set("userMetadata", objectMapper.valueToTree(uploadInfo.userMetadata));
+      write(record);
+    }
+
+    @Override
+    public void partIndexed(final String uploadId, final Part part) throws IOException {
+      write(record(PART)
+          .put("uploadId", uploadId)
+          .put("partNumber", part.getPartNumber())
+          .put("etag", part.getETag())
+          .put("size", part.getSize())
+          .put("lastModified", part.getLastModified().getTime()));
+    }
+
+    @Override
+    public void uploadEnded(final String uploadId) throws IOException {
+      write(record(END_UPLOAD).put("uploadId", uploadId));
+    }
+
+    private ObjectNode record(final String type) {
+      return objectMapper.createObjectNode().put(TYPE, type);
+    }
+
+    private JsonNode encodeOwner(final Owner owner) {
+      return owner == null ? objectMapper.nullNode() : objectMapper.createObjectNode()
+          .put("id", owner.getId())
+          .put("displayName", owner.getDisplayName());
+    }
+
+    private void write(final ObjectNode record) throws IOException {
+      final byte[] json = objectMapper.writeValueAsBytes(record);
+      final byte[] line = new byte[json.length + 1];
+      System.arraycopy(json, 0, line, 0, json.length);
+      line[json.length] = '\n';
+      writer.write(line);
+    }
+  }
+}
@@ -0,0 +1,34 @@
+/*
+ *  Copyright 2017-2022 Adobe.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *          http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package com.adobe.testing.s3mock.store;
+
+/**
+ * How {@link FileStore} assembles the parts of a completed multipart upload into an object.
+ */
+public enum MultipartAssembly {
+
+  /**
+   * Concatenates the parts into one data file, letting the kernel copy the bytes.
+   */
+  CONCATENATE,
+
+  /**
+   * Keeps the part files and stores the object as an ordered manifest of them, so completing an
+   * upload doesn't copy any data. Reads concatenate the parts.
+   */
+  MANIFEST
+}
@@ -17,18 +17,31 @@
 package com.adobe.testing.s3mock.store;
 
 import com.adobe.testing.s3mock.dto.MultipartUpload;
+import com.adobe.testing.s3mock.dto.Part;
+import java.nio.ByteBuffer;
+import java.util.Date;
+import java.util.List;
 import java.util.Map;
+import java.util.NavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import org.apache.commons.codec.DecoderException;
+import org.apache.commons.codec.binary.Hex;
+import org.apache.commons.codec.digest.DigestUtils;
 
 /**
- * Encapsulates {@link MultipartUpload} and corresponding {@code contentType}.
+ * Encapsulates {@link MultipartUpload} and corresponding {@code contentType}, and indexes the
+ * uploaded parts by part number.
  */
 class MultipartUploadInfo {
 
+  private static final int MD5_LENGTH = 16;
+
   final MultipartUpload upload;
   final String contentType;
   final String contentEncoding;
   final Map<String, String> userMetadata;
   final String bucket;
+  final NavigableMap<Integer, Part> parts = new ConcurrentSkipListMap<>();
 
   MultipartUploadInfo(final MultipartUpload upload, final String contentType,
       final String contentEncoding,
@@ -40,4 +53,56 @@ class MultipartUploadInfo {
     this.userMetadata = userMetadata;
     this.bucket = bucket;
   }
+
+  /**
+   * Adds an uploaded part to the index, so its ETag never has to be calculated from its data
+   * again.
+   *
+   * @return the indexed part.
+   */
+  Part indexPart(final int partNumber, final String etag, final long size,
+      final Date lastModified) {
+    final Part part = new Part();
+    part.setPartNumber(partNumber);
+    part.setETag(etag);
+    part.setSize(size);
+    part.setLastModified(lastModified);
+    parts.put(partNumber, part);
+    return part;
+  }
+
+  /**
+   * Computes the ETag of the object assembled from the given parts: the MD5 of the concatenated
+   * MD5s of the parts, followed by the number of parts.
+   *
+   * @param completedParts the parts to assemble, in order.
+   *
+   * @return the ETag.
+   *
+   * @throws IllegalArgumentException if a part wasn't uploaded.
+   */
+  String etagOf(final List<Part> completedParts) {
+    final ByteBuffer allMd5s = ByteBuffer.allocate(completedParts.size() * MD5_LENGTH);
+    for (final Part part : completedParts) {
+      final Part uploadedPart = parts.get(part.getPartNumber());
+      if (uploadedPart == null) {
+        throw new IllegalArgumentException("Unknown part " + part.getPartNumber());
+      }
+      try {
+        allMd5s.put(Hex.decodeHex(uploadedPart.getETag()));
+      } catch (final DecoderException e) {
+        throw new IllegalStateException("Invalid ETag of part " + part.getPartNumber(), e);
+      }
+    }
+    return DigestUtils.md5Hex(allMd5s.array()) + "-" + completedParts.size();
+  }
+
+  /**
+   * Computes the size of the object assembled from the given uploaded parts.
+   */
+  long sizeOf(final List<Part> completedParts) {
+    return completedParts.stream()
+        .mapToLong(part -> parts.get(part.getPartNumber()).getSize())
+        .sum();
+  }
 }
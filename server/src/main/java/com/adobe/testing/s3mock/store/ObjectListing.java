@@ -0,0 +1,223 @@
+/*
+ *  Copyright 2017-2022 Adobe.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *          http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package com.adobe.testing.s3mock.store;
+
+import static org.apache.commons.lang3.StringUtils.isEmpty;
+import static org.apache.commons.lang3.StringUtils.isNotEmpty;
+
+import com.adobe.testing.s3mock.util.StringEncoding;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+
+/**
+ * One page of a bucket listing: the objects and common prefixes in key order, and whether there
+ * are more keys left.
+ */
+public class ObjectListing {
+
+  /**
+   * Order of the object indexes, which are keyed by the object names as stored: by object key, as
+   * S3 lists keys. Names that decode to the same key are ordered with the name encoded like the
+   * requests of S3Mock's API first, then by name.
+   */
+  static final Comparator<String> KEY_ORDER = (name, other) -> {
+    final String key = FileStore.objectKey(name);
+    final int byKey = key.compareTo(FileStore.objectKey(other));
+    if (byKey != 0 || name.equals(other)) {
+      return byKey;
+    }
+    final boolean canonical = name.equals(StringEncoding.encode(key));
+    if (canonical != other.equals(StringEncoding.encode(key))) {
+      return canonical ? -1 : 1;
+    }
+    return name.compareTo(other);
+  };
+
+  private final Map<String, S3Object> contents;
+
+  private final List<String> commonPrefixes;
+
+  private final boolean truncated;
+
+  private final String nextMarker;
+
+  /**
+   * Constructs a new {@link ObjectListing}.
+   *
+   * @param contents the listed objects by name as stored, in key order.
+   * @param commonPrefixes the listed common prefixes, in key order.
+   * @param truncated {@code true} if more keys match the listing request.
+   * @param nextMarker the last key or common prefix of the page if it is truncated.
+   */
+  public ObjectListing(final Map<String, S3Object> contents, final List<String> commonPrefixes,
+      final boolean truncated, final String nextMarker) {
+    this.contents = Collections.unmodifiableMap(contents);
+    this.commonPrefixes = Collections.unmodifiableList(commonPrefixes);
+    this.truncated = truncated;
+    this.nextMarker = nextMarker;
+  }
+
+  /**
+   * Lists a page of a sorted object index. Seeks straight to the first key after
+   * {@code prefix} / {@code startAfter} and visits at most {@code maxKeys + 1} keys.
+   *
+   * <p>If a {@code delimiter} is given, all keys containing it after the prefix are rolled up into
+   * one common prefix, and the listing seeks past that prefix's whole key range. Keys and common
+   * prefixes both count towards {@code maxKeys}. A common prefix up to {@code startAfter} is
+   * considered listed already, so a {@link #getNextMarker() next marker} pointing at a common
+   * prefix continues behind it.</p>
+   *
+   * @param objects the objects of a bucket, by name as stored, ordered by {@link #KEY_ORDER}.
+   * @param prefix only keys starting with this prefix are listed. Optional.
+   * @param delimiter the delimiter to roll up common prefixes by. Optional.
+   * @param startAfter only keys after this key are listed. Optional.
+   * @param maxKeys maximum number of keys and common prefixes in the page.
+   *
+   * @return the {@link ObjectListing}.
+   */
+  static ObjectListing of(final NavigableMap<String, S3Object> objects, final String prefix,
+      final String delimiter, final String startAfter, final int maxKeys) {
+    final String normalizedPrefix = prefix == null ? "" : prefix;
+
+    final Map<String, S3Object> contents = new LinkedHashMap<>();
+    final List<String> commonPrefixes = new ArrayList<>();
+    String lastListed = null;
+
+    final NavigableMap<String, S3Object> tail;
+    if (isNotEmpty(startAfter) && startAfter.compareTo(normalizedPrefix) >= 0) {
+      tail = seek(objects, startAfter + Character.MIN_VALUE);
+    } else {
+      tail = seek(objects, normalizedPrefix);
+    }
+
+    Iterator<Map.Entry<String, S3Object>> entries = tail.entrySet().iterator();
+    while (entries.hasNext()) {
+      final Map.Entry<String, S3Object> entry = entries.next();
+      final String key = FileStore.objectKey(entry.getKey());
+      if (!key.startsWith(normalizedPrefix)) {
+        break;
+      }
+
+      final String commonPrefix = commonPrefix(key, normalizedPrefix, delimiter);
+      if (commonPrefix == null) {
+        if (contents.size() + commonPrefixes.size() == maxKeys) {
+          return new ObjectListing(contents, commonPrefixes, true, lastListed);
+        }
+        contents.put(entry.getKey(), entry.getValue());
+        lastListed = key;
+        continue;
+      }
+
+      if (isEmpty(startAfter) || commonPrefix.compareTo(startAfter) > 0) {
+        if (contents.size() + commonPrefixes.size() == maxKeys) {
+          return new ObjectListing(contents, commonPrefixes, true, lastListed);
+        }
+        commonPrefixes.add(commonPrefix);
+        lastListed = commonPrefix;
+      }
+
+      // none of the keys below the common prefix can add anything to the listing
+      final String end = prefixEnd(commonPrefix);
+      if (end == null) {
+        break;
+      }
+      entries = seek(tail, end).entrySet().iterator();
+    }
+    return new ObjectListing(contents, commonPrefixes, false, null);
+  }
+
+  /**
+   * Seeks to the objects whose keys are not less than the given key. The key encoded is the first
+   * name in {@link #KEY_ORDER} that decodes to it.
+   */
+  private static NavigableMap<String, S3Object> seek(
+      final NavigableMap<String, S3Object> objects, final String key) {
+    return objects.tailMap(StringEncoding.encode(key), true);
+  }
+
+  /**
+   * Rolls up a key into its common prefix.
+   *
+   * @return the key up to and including the first delimiter after the prefix, or {@code null} if
+   *     the key doesn't contain the delimiter there.
+   */
+  private static String commonPrefix(final String key, final String prefix,
+      final String delimiter) {
+    if (isEmpty(delimiter)) {
+      return null;
+    }
+    final int delimiterIndex = key.indexOf(delimiter, prefix.length());
+    if (delimiterIndex < 0) {
+      return null;
+    }
+    return key.substring(0, delimiterIndex + delimiter.length());
+  }
+
+  /**
+   * Computes the smallest string greater than all strings starting with the given prefix.
+   *
+   * @return the end of the prefix's key range, or {@code null} if the range is unbounded.
+   */
+  static String prefixEnd(final String prefix) {
+    int end = prefix.length();
+    while (end > 0 && prefix.charAt(end - 1) == Character.MAX_VALUE) {
+      end--;
+    }
+    if (end == 0) {
+      return null;
+    }
+    return prefix.substring(0, end - 1) + (char) (prefix.charAt(end - 1) + 1);
+  }
+
+  /**
+   * Maps the name of a listed object, as it is stored, to its object key.
+   *
+   * @param objectName the name, as the key of {@link #getContents()}.
+   *
+   * @return the decoded object key.
+   */
+  public static String keyOf(final String objectName) {
+    return FileStore.objectKey(objectName);
+  }
+
+  /**
+   * Retrieves the listed objects.
+   *
+   * @return the objects by name as stored, in key order.
+   */
+  public Map<String, S3Object> getContents() {
+    return contents;
+  }
+
+  public List<String> getCommonPrefixes() {
+    return commonPrefixes;
+  }
+
+  public boolean isTruncated() {
+    return truncated;
+  }
+
+  public String getNextMarker() {
+    return nextMarker;
+  }
+}
@@ -0,0 +1,322 @@
+/*
+ *  Copyright 2017-2022 Adobe.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *          http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package com.adobe.testing.s3mock.store;
+
+import com.adobe.testing.s3mock.dto.Bucket;
+import com.adobe.testing.s3mock.dto.CopyObjectResult;
+import com.adobe.testing.s3mock.dto.MultipartUpload;
+import com.adobe.testing.s3mock.dto.Owner;
+import com.adobe.testing.s3mock.dto.Part;
+import com.adobe.testing.s3mock.dto.Range;
+import com.adobe.testing.s3mock.dto.Tag;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Storage engine of S3Mock: holds the buckets, objects and multipart uploads the controller
+ * serves.
+ *
+ * <p>The engine is chosen by the property {@code com.adobe.testing.s3mock.domain.storage}.
+ * {@link FileStore}, storing each object in a folder of the root directory, is the default.</p>
+ */
+public interface ObjectStore {
+
+  /**
+   * Creates a new bucket.
+   *
+   * @param bucketName name of the bucket.
+   *
+   * @return the created bucket, or the existing one.
+   */
+  Bucket createBucket(String bucketName);
+
+  /**
+   * Lists all buckets.
+   *
+   * @return the buckets, ordered by name.
+   */
+  List<Bucket> listBuckets();
+
+  /**
+   * Retrieves a bucket identified by its name.
+   *
+   * @param bucketName name of the bucket.
+   *
+   * @return the bucket or null if not found.
+   */
+  Bucket getBucket(String bucketName);
+
+  /**
+   * Checks if a bucket exists.
+   *
+   * @param bucketName name of the bucket.
+   *
+   * @return true if the bucket exists.
+   */
+  Boolean doesBucketExist(String bucketName);
+
+  /**
+   * Deletes a bucket and all of its contents.
+   *
+   * @param bucketName name of the bucket.
+   *
+   * @return true if the bucket was deleted.
+   *
+   * @throws IOException if the bucket's data can't be deleted.
+   */
+  boolean deleteBucket(String bucketName) throws IOException;
+
+  /**
+   * Stores an object.
+   *
+   * @param bucketName name of the bucket to store the object in.
+   * @param fileName key of the object.
+   * @param contentType the object's content type.
+   * @param contentEncoding the object's content encoding.
+   * @param dataStream the object's data.
+   * @param useV4ChunkedWithSigningFormat if {@code true}, the data is decoded from the
+   *     aws-chunked format.
+   * @param userMetadata the object's user metadata.
+   * @param encryption the encryption type.
+   * @param kmsKeyId the KMS encryption key id.
+   * @param contentMd5 the base64 encoded MD5 the data has to match. Optional.
+   *
+   * @return the stored object.
+   *
+   * @throws IOException if the data can't be stored.
+   * @throws S3Exception if the data doesn't match the Content-MD5.
+   */
+  S3Object putS3Object(String bucketName, String fileName, String contentType,
+      String contentEncoding, InputStream dataStream, boolean useV4ChunkedWithSigningFormat,
+      Map<String, String> userMetadata, String encryption, String kmsKeyId, String contentMd5)
+      throws IOException;
+
+  /**
+   * Replaces the tags of an object.
+   *
+   * @param bucketName name of the bucket.
+   * @param fileName key of the object.
+   * @param tags the new tags.
+   *
+   * @throws IOException if the tags can't be stored.
+   * @throws S3Exception if the object doesn't exist.
+   */
+  void setObjectTags(String bucketName, String fileName, List<Tag> tags) throws IOException;
+
+  /**
+   * Retrieves the metadata of an object.
+   *
+   * @param bucketName name of the bucket.
+   * @param objectName key of the object.
+   *
+   * @return the object or null if not found.
+   */
+  S3Object getS3Object(String bucketName, String objectName);
+
+  /**
+   * Writes a region of an object's data to an output stream.
+   *
+   * @param s3Object the object, as retrieved from this store.
+   * @param position the position of the region in the object's data.
+   * @param count the length of the region.
+   * @param outputStream the stream to write to.
+   *
+   * @throws IOException if the data can't be read or the stream can't be written.
+   */
+  void transferS3ObjectData(S3Object s3Object, long position, long count,
+      OutputStream outputStream) throws IOException;
+
+  /**
+   * Looks up an object and opens its data, for writing it e.g. from an asynchronously written
+   * response. The data of the returned object stays readable until it is closed, even if the
+   * object is replaced or deleted after the lookup.
+   *
+   * @param bucketName name of the bucket.
+   * @param objectName key of the object.
+   *
+   * @return the opened data, or null if the object is not found.
+   *
+   * @throws IOException if the data can't be opened.
+   */
+  S3ObjectData openS3ObjectData(String bucketName, String objectName) throws IOException;
+
+  /**
+   * Retrieves all objects of a bucket whose keys start with a prefix.
+   *
+   * @param bucketName name of the bucket.
+   * @param prefix prefix of the keys. Optional.
+   *
+   * @return the objects, in key order.
+   *
+   * @throws IOException if the objects can't be read.
+   */
+  List<S3Object> getS3Objects(String bucketName, String prefix) throws IOException;
+
+  /**
+   * Lists a page of the objects of a bucket.
+   *
+   * @param bucketName name of the bucket.
+   * @param prefix only keys starting with this prefix are listed. Optional.
+   * @param delimiter the delimiter to roll up common prefixes by. Optional.
+   * @param startAfter only keys after this key are listed. Optional.
+   * @param maxKeys maximum number of keys and common prefixes in the page.
+   *
+   * @return the {@link ObjectListing}.
+   *
+   * @throws IOException if the objects can't be read.
+   */
+  ObjectListing listObjects(String bucketName, String prefix, String delimiter,
+      String startAfter, int maxKeys) throws IOException;
+
+  /**
+   * Copies an object, optionally encrypting the copy.
+   *
+   * @param sourceBucketName name of the bucket to copy from.
+   * @param sourceObjectName key of the object to copy.
+   * @param destinationBucketName name of the destination bucket.
+   * @param destinationObjectName key of the destination object.
+   * @param encryption the encryption type.
+   * @param kmsKeyId the KMS encryption key id.
+   * @param userMetadata user metadata of the copy. If empty, the source's metadata is kept.
+   *
+   * @return the {@link CopyObjectResult} or null if the source couldn't be found.
+   *
+   * @throws IOException if the object can't be copied.
+   */
+  CopyObjectResult copyS3ObjectEncrypted(String sourceBucketName, String sourceObjectName,
+      String destinationBucketName, String destinationObjectName, String encryption,
+      String kmsKeyId, Map<String, String> userMetadata) throws IOException;
+
+  /**
+   * Deletes an object.
+   *
+   * @param bucketName name of the bucket.
+   * @param objectName key of the object.
+   *
+   * @return true if the object was deleted.
+   *
+   * @throws IOException if the object's data can't be deleted.
+   */
+  boolean deleteObject(String bucketName, String objectName) throws IOException;
+
+  /**
+   * Starts a multipart upload.
+   *
+   * @param bucketName name of the bucket to upload to.
+   * @param fileName key of the object to upload.
+   * @param contentType the object's content type.
+   * @param contentEncoding the object's content encoding.
+   * @param uploadId id of the upload.
+   * @param owner owner of the upload.
+   * @param initiator initiator of the upload.
+   * @param userMetadata the object's user metadata.
+   *
+   * @return the started upload.
+   */
+  MultipartUpload prepareMultipartUpload(String bucketName, String fileName, String contentType,
+      String contentEncoding, String uploadId, Owner owner, Owner initiator,
+      Map<String, String> userMetadata);
+
+  /**
+   * Lists the multipart uploads that were neither completed nor aborted.
+   *
+   * @param bucketName name of the bucket, or null for all buckets.
+   *
+   * @return the uploads.
+   */
+  Collection<MultipartUpload> listMultipartUploads(String bucketName);
+
+  /**
+   * Aborts a multipart upload, discarding its parts.
+   *
+   * @param bucketName name of the bucket.
+   * @param fileName key of the object.
+   * @param uploadId id of the upload.
+   */
+  void abortMultipartUpload(String bucketName, String fileName, String uploadId);
+
+  /**
+   * Stores a part of a multipart upload.
+   *
+   * @param bucketName name of the bucket.
+   * @param fileName key of the object.
+   * @param uploadId id of the upload.
+   * @param partNumber number of the part.
+   * @param inputStream the part's data.
+   * @param useV4ChunkedWithSigningFormat if {@code true}, the data is decoded from the
+   *     aws-chunked format.
+   *
+   * @return the ETag of the part.
+   *
+   * @throws IOException if the part can't be stored.
+   */
+  String putPart(String bucketName, String fileName, String uploadId, String partNumber,
+      InputStream inputStream, boolean useV4ChunkedWithSigningFormat) throws IOException;
+
+  /**
+   * Stores a range of an object as a part of a multipart upload.
+   *
+   * @param bucket name of the source bucket.
+   * @param key key of the source object.
+   * @param copyRange the range to copy. Optional.
+   * @param partNumber number of the part.
+   * @param destinationBucket name of the bucket of the upload.
+   * @param destinationFilename key of the object of the upload.
+   * @param uploadId id of the upload.
+   *
+   * @return the ETag of the part.
+   *
+   * @throws IOException if the part can't be stored.
+   */
+  String copyPart(String bucket, String key, Range copyRange, String partNumber,
+      String destinationBucket, String destinationFilename, String uploadId) throws IOException;
+
+  /**
+   * Lists the parts of a multipart upload.
+   *
+   * @param bucketName name of the bucket.
+   * @param fileName key of the object.
+   * @param uploadId id of the upload.
+   *
+   * @return the parts, ordered by part number.
+   */
+  List<Part> getMultipartUploadParts(String bucketName, String fileName, String uploadId);
+
+  /**
+   * Completes a multipart upload, storing the object assembled from the given parts.
+   *
+   * @param bucketName name of the bucket.
+   * @param fileName key of the object.
+   * @param uploadId id of the upload.
+   * @param parts the parts to assemble, in order.
+   * @param encryption the encryption type.
+   * @param kmsKeyId the KMS encryption key id.
+   *
+   * @return the ETag of the object.
+   */
+  String completeMultipartUpload(String bucketName, String fileName, String uploadId,
+      List<Part> parts, String encryption, String kmsKeyId);
+
+  /**
+   * Releases the store's resources on shutdown.
+   */
+  void close();
+}
@@ -0,0 +1,265 @@
+/*
+ *  Copyright 2017-2022 Adobe.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *          http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package com.adobe.testing.s3mock.store;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.eclipse.jetty.server.HttpOutput;
+
+/**
+ * Immutable data held in chunks of {@link OffHeapSlabs}.
+ *
+ * <p>The data can be shared, e.g. by an object and its copies. It is reference counted, and its
+ * chunks are freed when the last reference is released. Readers take a reference for the duration
+ * of the read, so chunks are never reused while they are read.</p>
+ */
+final class OffHeapData {
+
+  private final OffHeapSlabs slabs;
+
+  /**
+   * The chunks, each flipped for reading.
+   */
+  private final List<ByteBuffer> chunks;
+
+  private final long size;
+
+  private final AtomicInteger references = new AtomicInteger(1);
+
+  private OffHeapData(final OffHeapSlabs slabs, final List<ByteBuffer> chunks) {
+    this.slabs = slabs;
+    this.chunks = chunks;
+    this.size = chunks.stream().mapToLong(ByteBuffer::remaining).sum();
+  }
+
+  /**
+   * Reads a stream into off-heap chunks.
+   *
+   * @param slabs the slabs to take the chunks from.
+   * @param inputStream the data.
+   * @param digests digests to update with the data.
+   *
+   * @return the data, referenced once.
+   *
+   * @throws IOException if the stream can't be read.
+   * @throws S3Exception if the capacity of the slabs is exhausted.
+   */
+  static OffHeapData read(final OffHeapSlabs slabs, final InputStream inputStream,
+      final MessageDigest... digests) throws IOException {
+    final List<ByteBuffer> chunks = new ArrayList<>();
+    try {
+      final ReadableByteChannel source = Channels.newChannel(inputStream);
+      boolean endOfStream = false;
+      while (!endOfStream) {
+        final ByteBuffer chunk = slabs.allocate();
+        chunks.add(chunk);
+        while (chunk.hasRemaining() && !endOfStream) {
+          endOfStream = source.read(chunk) < 0;
+        }
+        chunk.flip();
+        if (!chunk.hasRemaining()) {
+          chunks.remove(chunks.size() - 1);
+          slabs.free(Collections.singletonList(chunk));
+        }
+        for (final MessageDigest digest : digests) {
+          digest.update(chunk.duplicate());
+        }
+      }
+      shrinkLastChunk(slabs, chunks);
+    } catch (final IOException | RuntimeException e) {
+      slabs.free(chunks);
+      throw e;
+    }
+    return new OffHeapData(slabs, chunks);
+  }
+
+  /**
+   * Joins data into one, without copying it. The joined data takes over the references of the
+   * given data.
+   *
+   * @param slabs the slabs the chunks were taken from.
+   * @param data the data to join, in order.
+   *
+   * @return the joined data, referenced once.
+   */
+  static OffHeapData join(final OffHeapSlabs slabs, final List<OffHeapData> data) {
+    final List<ByteBuffer> chunks = new ArrayList<>();
+    data.forEach(part -> chunks.addAll(part.chunks));
+    return new OffHeapData(slabs, chunks);
+  }
+
+  /**
+   * Copies a region into new chunks.
+   *
+   * @param position the position of the region.
+   * @param count the length of the region.
+   * @param digest digest to update with the region.
+   *
+   * @return the copied region, referenced once.
+   *
+   * @throws S3Exception if the capacity of the slabs is exhausted.
+   */
+  OffHeapData copy(final long position, final long count, final MessageDigest digest) {
+    final List<ByteBuffer> copiedChunks = new ArrayList<>();
+    try {
+      ByteBuffer target = null;
+      for (final ByteBuffer region : regions(position, count)) {
+        digest.update(region.duplicate());
+        while (region.hasRemaining()) {
+          if (target == null || !target.hasRemaining()) {
+            target = slabs.allocate();
+            copiedChunks.add(target);
+          }
+          final ByteBuffer piece = region.duplicate();
+          piece.limit(piece.position() + Math.min(piece.remaining(), target.remaining()));
+          target.put(piece);
+          region.position(piece.position());
+        }
+      }
+      copiedChunks.forEach(ByteBuffer::flip);
+      shrinkLastChunk(slabs, copiedChunks);
+    } catch (final RuntimeException e) {
+      slabs.free(copiedChunks);
+      throw e;
+    }
+    return new OffHeapData(slabs, copiedChunks);
+  }
+
+  /**
+   * Moves the data of the last chunk into a chunk of the smallest size class holding it, so small
+   * objects and the ends of larger ones don't take a whole chunk. The chunk is kept if no smaller
+   * one can be allocated.
+   */
+  private static void shrinkLastChunk(final OffHeapSlabs slabs, final List<ByteBuffer> chunks) {
+    if (chunks.isEmpty()) {
+      return;
+    }
+    final ByteBuffer lastChunk = chunks.get(chunks.size() - 1);
+    if (OffHeapSlabs.chunkSize(lastChunk.remaining()) >= lastChunk.capacity()) {
+      return;
+    }
+    final ByteBuffer smallerChunk;
+    try {
+      smallerChunk = slabs.allocate(lastChunk.remaining());
+    } catch (final S3Exception e) {
+      return;
+    }
+    smallerChunk.put(lastChunk.duplicate()).flip();
+    chunks.set(chunks.size() - 1, smallerChunk);
+    slabs.free(Collections.singletonList(lastChunk));
+  }
+
+  /**
+   * Updates a digest with the data.
+   */
+  void digest(final MessageDigest digest) {
+    chunks.forEach(chunk -> digest.update(chunk.duplicate()));
+  }
+
+  /**
+   * Writes a region to an output stream. Jetty's response output writes the chunks to the
+   * connection as they are, other streams get them through a channel.
+   *
+   * @param position the position of the region.
+   * @param count the length of the region.
+   * @param outputStream the stream to write to.
+   *
+   * @throws IOException if the stream can't be written.
+   */
+  void transferTo(final long position, final long count, final OutputStream outputStream)
+      throws IOException {
+    if (outputStream instanceof HttpOutput) {
+      for (final ByteBuffer region : regions(position, count)) {
+        ((HttpOutput) outputStream).write(region);
+      }
+      return;
+    }
+    final WritableByteChannel target = Channels.newChannel(outputStream);
+    for (final ByteBuffer region : regions(position, count)) {
+      while (region.hasRemaining()) {
+        target.write(region);
+      }
+    }
+  }
+
+  /**
+   * Views a region of the data as independent buffers over the chunks.
+   */
+  private List<ByteBuffer> regions(final long position, final long count) {
+    if (count <= 0) {
+      return Collections.emptyList();
+    }
+    final List<ByteBuffer> regions = new ArrayList<>();
+    long skip = position;
+    long remaining = count;
+    for (final ByteBuffer chunk : chunks) {
+      if (remaining <= 0) {
+        break;
+      }
+      if (skip >= chunk.remaining()) {
+        skip -= chunk.remaining();
+        continue;
+      }
+      final ByteBuffer region = chunk.duplicate();
+      region.position(region.position() + (int) skip);
+      region.limit(region.position() + (int) Math.min(remaining, region.remaining()));
+      regions.add(region);
+      remaining -= region.remaining();
+      skip = 0;
+    }
+    return regions;
+  }
+
+  long size() {
+    return size;
+  }
+
+  /**
+   * Takes another reference.
+   *
+   * @return {@code false} if the data was freed already.
+   */
+  boolean retain() {
+    int count;
+    do {
+      count = references.get();
+      if (count == 0) {
+        return false;
+      }
+    } while (!references.compareAndSet(count, count + 1));
+    return true;
+  }
+
+  /**
+   * Releases a reference, freeing the chunks when the last one is released.
+   */
+  void release() {
+    if (references.decrementAndGet() == 0) {
+      slabs.free(chunks);
+    }
+  }
+}
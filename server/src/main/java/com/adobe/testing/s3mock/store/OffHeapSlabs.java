@@ -0,0 +1,170 @@
+/*
+ *  Copyright 2017-2022 Adobe.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *          http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package com.adobe.testing.s3mock.store;
+
+import static org.springframework.http.HttpStatus.INSUFFICIENT_STORAGE;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedDeque;
+
+/**
+ * Hands out chunks of off-heap memory in a few size classes. The chunks are carved from direct
+ * {@link ByteBuffer} slabs, which are allocated on demand up to a capacity and never released.
+ * Chunks of the smaller classes are split from chunks of the next larger class, so small objects
+ * don't take a whole {@link #CHUNK_SIZE} chunk. Freed chunks are reused within their class, they
+ * aren't merged again, so the amount of direct memory is bounded and stored data never puts
+ * pressure on the garbage collector.
+ */
+final class OffHeapSlabs {
+
+  static final int CHUNK_SIZE = 64 * 1024;
+
+  private static final int MIN_CHUNK_SIZE = 256;
+
+  /**
+   * Each size class holds chunks four times as large as the previous one.
+   */
+  private static final int SIZE_CLASS_SHIFT = 2;
+
+  private static final int SLAB_SIZE = 16 * 1024 * 1024;
+
+  private final long capacity;
+
+  /**
+   * The free chunks of each size class, from {@link #MIN_CHUNK_SIZE} to {@link #CHUNK_SIZE}.
+   */
+  private final List<Deque<ByteBuffer>> freeChunks = new ArrayList<>();
+
+  private long allocated;
+
+  /**
+   * Constructs new {@link OffHeapSlabs}.
+   *
+   * @param capacity the maximum number of bytes to allocate.
+   */
+  OffHeapSlabs(final long capacity) {
+    this.capacity = capacity;
+    for (int size = MIN_CHUNK_SIZE; size <= CHUNK_SIZE; size <<= SIZE_CLASS_SHIFT) {
+      freeChunks.add(new ConcurrentLinkedDeque<>());
+    }
+  }
+
+  /**
+   * Takes a free chunk of the largest size class.
+   *
+   * @return an empty chunk of {@link #CHUNK_SIZE} bytes.
+   *
+   * @throws S3Exception if the capacity is exhausted.
+   */
+  ByteBuffer allocate() {
+    return allocate(CHUNK_SIZE);
+  }
+
+  /**
+   * Takes a free chunk of the smallest size class holding the given number of bytes.
+   *
+   * @param size the number of bytes, at most {@link #CHUNK_SIZE}.
+   *
+   * @return an empty chunk of {@link #chunkSize(int)} bytes.
+   *
+   * @throws S3Exception if the capacity is exhausted.
+   */
+  ByteBuffer allocate(final int size) {
+    final int sizeClass = sizeClassOf(size);
+    ByteBuffer chunk = freeChunks.get(sizeClass).pollFirst();
+    if (chunk == null) {
+      chunk = sizeClass == freeChunks.size() - 1 ? allocateSlab() : split(sizeClass);
+    }
+    chunk.clear();
+    return chunk;
+  }
+
+  /**
+   * Returns chunks to be reused.
+   *
+   * @param chunks chunks taken by {@link #allocate(int)}.
+   */
+  void free(final Collection<ByteBuffer> chunks) {
+    // the most recently used chunks are handed out first, they are the most likely to be paged in
+    chunks.forEach(chunk -> freeChunks.get(sizeClassOf(chunk.capacity())).addFirst(chunk));
+  }
+
+  /**
+   * Gets the size of the chunks {@link #allocate(int)} hands out for a number of bytes.
+   */
+  static int chunkSize(final int size) {
+    return sizeOf(sizeClassOf(size));
+  }
+
+  private static int sizeOf(final int sizeClass) {
+    return MIN_CHUNK_SIZE << (sizeClass * SIZE_CLASS_SHIFT);
+  }
+
+  private static int sizeClassOf(final int size) {
+    int sizeClass = 0;
+    while (sizeOf(sizeClass) < size) {
+      sizeClass++;
+    }
+    return sizeClass;
+  }
+
+  /**
+   * Splits a chunk of the next larger size class, keeping all but its first part as free chunks.
+   */
+  private ByteBuffer split(final int sizeClass) {
+    final ByteBuffer larger = allocate(sizeOf(sizeClass + 1));
+    final int chunkSize = sizeOf(sizeClass);
+    for (int offset = chunkSize; offset < larger.capacity(); offset += chunkSize) {
+      freeChunks.get(sizeClass).addLast(chunkOf(larger, offset, chunkSize));
+    }
+    return chunkOf(larger, 0, chunkSize);
+  }
+
+  /**
+   * Allocates a new slab, keeping all but its first chunk as free chunks.
+   */
+  private synchronized ByteBuffer allocateSlab() {
+    final Deque<ByteBuffer> freeLargeChunks = freeChunks.get(freeChunks.size() - 1);
+    final ByteBuffer freeChunk = freeLargeChunks.pollFirst();
+    if (freeChunk != null) {
+      return freeChunk;
+    }
+
+    final long slabSize = Math.min(SLAB_SIZE, (capacity - allocated) / CHUNK_SIZE * CHUNK_SIZE);
+    if (slabSize < CHUNK_SIZE) {
+      throw new S3Exception(INSUFFICIENT_STORAGE.value(), "InsufficientStorage",
+          "The capacity of the in-memory storage is exhausted.");
+    }
+    final ByteBuffer slab = ByteBuffer.allocateDirect((int) slabSize);
+    allocated += slabSize;
+
+    for (int offset = CHUNK_SIZE; offset < slabSize; offset += CHUNK_SIZE) {
+      freeLargeChunks.addLast(chunkOf(slab, offset, CHUNK_SIZE));
+    }
+    return chunkOf(slab, 0, CHUNK_SIZE);
+  }
+
+  private static ByteBuffer chunkOf(final ByteBuffer buffer, final int offset, final int size) {
+    buffer.limit(offset + size);
+    buffer.position(offset);
+    return buffer.slice();
+  }
+}
@@ -18,10 +18,12 @@ package com.adobe.testing.s3mock.store;
 
 import com.adobe.testing.s3mock.dto.Tag;
 import java.io.File;
+import java.nio.file.Path;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
 import java.util.Map;
+import java.util.stream.Collectors;
 
 /**
  * Holds S3 object metadata.
@@ -52,6 +54,16 @@ public class S3Object {
 
   private transient File dataFile = null;
 
+  private List<String> dataFileParts;
+
+  private String dataBlob;
+
+  private String dataVersion;
+
+  private byte[] inlineData;
+
+  private boolean compressed;
+
   private String kmsKeyId;
 
   private Map<String, String> userMetadata;
@@ -130,6 +142,71 @@ public class S3Object {
     this.dataFile = dataFile;
   }
 
+  public List<String> getDataFileParts() {
+    return dataFileParts;
+  }
+
+  public void setDataFileParts(final List<String> dataFileParts) {
+    this.dataFileParts = dataFileParts;
+  }
+
+  public String getDataBlob() {
+    return dataBlob;
+  }
+
+  public void setDataBlob(final String dataBlob) {
+    this.dataBlob = dataBlob;
+  }
+
+  /**
+   * Version of the object's data file, which the data file is named after.
+   *
+   * @return the version, or {@code null} if the data file isn't versioned.
+   */
+  public String getDataVersion() {
+    return dataVersion;
+  }
+
+  public void setDataVersion(final String dataVersion) {
+    this.dataVersion = dataVersion;
+  }
+
+  public byte[] getInlineData() {
+    return inlineData;
+  }
+
+  public void setInlineData(final byte[] inlineData) {
+    this.inlineData = inlineData;
+  }
+
+  /**
+   * Whether the data file holds the object's data compressed in blocks, as written by
+   * {@link CompressedDataFile}.
+   *
+   * @return true if the data file is compressed.
+   */
+  public boolean isCompressed() {
+    return compressed;
+  }
+
+  public void setCompressed(final boolean compressed) {
+    this.compressed = compressed;
+  }
+
+  /**
+   * Lists the files holding the object's data, in order. That's the data file, unless the object
+   * was assembled as a manifest of the parts of a multipart upload.
+   *
+   * @return the data files.
+   */
+  public List<Path> dataFiles() {
+    if (dataFileParts == null) {
+      return Collections.singletonList(dataFile.toPath());
+    }
+    final Path objectFolder = dataFile.toPath().getParent();
+    return dataFileParts.stream().map(objectFolder::resolve).collect(Collectors.toList());
+  }
+
   public String getKmsEncryption() {
     return kmsEncryption;
   }
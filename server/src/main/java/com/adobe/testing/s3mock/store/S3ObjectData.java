@@ -0,0 +1,52 @@
+/*
+ *  Copyright 2017-2022 Adobe.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *          http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package com.adobe.testing.s3mock.store;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * The data of an object, opened by {@link ObjectStore#openS3ObjectData(String, String)}. It stays
+ * readable until it is closed, even if the object is replaced or deleted meanwhile.
+ */
+public interface S3ObjectData extends Closeable {
+
+  /**
+   * Retrieves the object whose data this is.
+   *
+   * @return the object.
+   */
+  S3Object getS3Object();
+
+  /**
+   * Writes a region of the data to an output stream.
+   *
+   * @param position the position of the region in the object's data.
+   * @param count the length of the region.
+   * @param outputStream the stream to write to.
+   *
+   * @throws IOException if the data can't be read or the stream can't be written.
+   */
+  void transferTo(long position, long count, OutputStream outputStream) throws IOException;
+
+  /**
+   * Releases the data.
+   */
+  @Override
+  void close();
+}
@@ -0,0 +1,618 @@
+/*
+ *  Copyright 2017-2022 Adobe.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *          http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package com.adobe.testing.s3mock.store;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A segment file of the {@link SegmentStore}: records appended one after the other, and read with
+ * positional reads through one shared channel.
+ *
+ * <p>A record is a fixed size header, followed by the bucket name, the key, the data and the
+ * metadata. The header holds the type and the lengths of the other fields. A record is reserved
+ * first, with everything but its data written and its type {@link #RESERVED}, and its type is
+ * written once the data is, so a record torn by a crash is skipped when it is read back. The data
+ * of reserved records can be written concurrently. Segments are preallocated, so reading stops at
+ * the first position without a header.</p>
+ *
+ * <p>Segments are reference counted. The store holds one reference until the segment is
+ * compacted, readers hold one while they read. The file is closed and deleted once the last
+ * reference is released.</p>
+ */
+final class Segment {
+
+  static final byte OBJECT = 1;
+
+  static final byte TOMBSTONE = 2;
+
+  static final byte BUCKET = 3;
+
+  static final byte BUCKET_TOMBSTONE = 4;
+
+  static final byte PART = 5;
+
+  /**
+   * Replaces the metadata of an object, whose data stays in its {@link #OBJECT} record.
+   */
+  static final byte METADATA = 6;
+
+  /**
+   * A record whose data is still being written, or whose writing failed. It is skipped when read.
+   */
+  static final byte RESERVED = 7;
+
+  /**
+   * Magic number, type, the lengths of bucket name, key, metadata, and data.
+   */
+  static final int HEADER_SIZE = 4 + 1 + 4 + 4 + 4 + 8;
+
+  private static final int MAGIC = 0x53334d4b;
+
+  private static final int TYPE_OFFSET = 4;
+
+  private static final String PREFIX = "segment-";
+
+  private static final String SUFFIX = ".log";
+
+  private static final Logger LOG = LoggerFactory.getLogger(Segment.class);
+
+  private final int id;
+
+  private final Path path;
+
+  private final FileChannel channel;
+
+  private final AtomicLong liveBytes = new AtomicLong();
+
+  private final AtomicInteger references = new AtomicInteger(1);
+
+  private final AtomicInteger reservations = new AtomicInteger();
+
+  /**
+   * End of the last record. Only modified by the appending thread.
+   */
+  private volatile long writePosition;
+
+  private Segment(final int id, final Path path, final FileChannel channel) {
+    this.id = id;
+    this.path = path;
+    this.channel = channel;
+  }
+
+  /**
+   * Creates a new, empty segment file.
+   *
+   * @param folder the folder to create the file in.
+   * @param id the id of the segment.
+   * @param size the size to preallocate.
+   *
+   * @return the {@link Segment}.
+   *
+   * @throws IOException if the file can't be created.
+   */
+  static Segment create(final Path folder, final int id, final long size) throws IOException {
+    final Path path = folder.resolve(String.format("%s%08d%s", PREFIX, id, SUFFIX));
+    final FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE_NEW,
+        StandardOpenOption.READ, StandardOpenOption.WRITE);
+    channel.write(ByteBuffer.allocate(1), size - 1);
+    return new Segment(id, path, channel);
+  }
+
+  /**
+   * Opens an existing segment file. Its records are read with {@link #readRecord(long, long)}.
+   *
+   * @param path the segment file.
+   *
+   * @return the {@link Segment}.
+   *
+   * @throws IOException if the file can't be opened.
+   */
+  static Segment open(final Path path) throws IOException {
+    return new Segment(idOf(path), path,
+        FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE));
+  }
+
+  /**
+   * Checks whether a file is a segment file.
+   *
+   * @param path the file.
+   *
+   * @return {@code true} if the file name is one of a segment.
+   */
+  static boolean isSegment(final Path path) {
+    final String name = path.getFileName().toString();
+    return name.startsWith(PREFIX) && name.endsWith(SUFFIX)
+        && name.substring(PREFIX.length(), name.length() - SUFFIX.length()).matches("\\d+");
+  }
+
+  /**
+   * Parses the id from the name of a segment file.
+   *
+   * @param path the segment file.
+   *
+   * @return the id.
+   */
+  static int idOf(final Path path) {
+    final String name = path.getFileName().toString();
+    return Integer.parseInt(name.substring(PREFIX.length(), name.length() - SUFFIX.length()));
+  }
+
+  int getId() {
+    return id;
+  }
+
+  FileChannel getChannel() {
+    return channel;
+  }
+
+  long getWritePosition() {
+    return writePosition;
+  }
+
+  long getLiveBytes() {
+    return liveBytes.get();
+  }
+
+  /**
+   * Accounts for records becoming live or obsolete.
+   *
+   * @param bytes the length of the records, negative if they became obsolete.
+   */
+  void addLiveBytes(final long bytes) {
+    liveBytes.addAndGet(bytes);
+  }
+
+  /**
+   * Appends a record at the end of the segment, writing its data right away.
+   *
+   * @param type the type of the record.
+   * @param bucket the bucket name.
+   * @param key the key.
+   * @param dataLength the length of the data.
+   * @param data writes the data.
+   * @param metadata the metadata.
+   *
+   * @return the location of the record.
+   *
+   * @throws IOException if the record can't be written.
+   */
+  Location append(final byte type, final String bucket, final String key, final long dataLength,
+      final DataWriter data, final byte[] metadata) throws IOException {
+    try (Reservation reservation = reserve(type, bucket, key, dataLength, metadata)) {
+      reservation.write(data);
+      return reservation.commit();
+    }
+  }
+
+  /**
+   * Reserves a record at the end of the segment. Everything but the data is written, with the
+   * type {@link #RESERVED}. The data is written and the record committed with the returned
+   * {@link Reservation}, which is closed in any case. The segment isn't to be compacted while
+   * it has reservations.
+   *
+   * @param type the type of the record.
+   * @param bucket the bucket name.
+   * @param key the key.
+   * @param dataLength the length of the data.
+   * @param metadata the metadata.
+   *
+   * @return the {@link Reservation}.
+   *
+   * @throws IOException if the record can't be written.
+   */
+  Reservation reserve(final byte type, final String bucket, final String key,
+      final long dataLength, final byte[] metadata) throws IOException {
+    final byte[] bucketBytes = bucket.getBytes(UTF_8);
+    final byte[] keyBytes = key.getBytes(UTF_8);
+    final long offset = writePosition;
+    final long dataOffset = offset + HEADER_SIZE + bucketBytes.length + keyBytes.length;
+    writeFully((ByteBuffer) ByteBuffer.allocate(HEADER_SIZE + bucketBytes.length + keyBytes.length)
+        .putInt(MAGIC)
+        .put(RESERVED)
+        .putInt(bucketBytes.length)
+        .putInt(keyBytes.length)
+        .putInt(metadata.length)
+        .putLong(dataLength)
+        .put(bucketBytes)
+        .put(keyBytes)
+        .flip(), offset);
+    writeFully(ByteBuffer.wrap(metadata), dataOffset + dataLength);
+
+    final long length = dataOffset + dataLength + metadata.length - offset;
+    writePosition = offset + length;
+    reservations.incrementAndGet();
+    return new Reservation(type, new Location(id, offset, length, dataOffset), dataLength);
+  }
+
+  /**
+   * Checks whether records are reserved, but not committed or closed yet.
+   */
+  boolean hasReservations() {
+    return reservations.get() > 0;
+  }
+
+  /**
+   * Appends a copy of a record of another segment.
+   *
+   * @param source the segment holding the record.
+   * @param location the location of the record.
+   *
+   * @return the location of the copy.
+   *
+   * @throws IOException if the record can't be copied.
+   */
+  Location appendCopy(final Segment source, final Location location) throws IOException {
+    final long offset = writePosition;
+    channel.position(offset + HEADER_SIZE);
+    FileStore.copyRegion(source.channel, location.getOffset() + HEADER_SIZE,
+        location.getLength() - HEADER_SIZE, channel, null);
+    channel.position(offset);
+    FileStore.copyRegion(source.channel, location.getOffset(), HEADER_SIZE, channel, null);
+
+    writePosition = offset + location.getLength();
+    return new Location(id, offset, location.getLength(),
+        offset + location.getDataOffset() - location.getOffset());
+  }
+
+  /**
+   * Reads the record at a position.
+   *
+   * @param position the position of the record.
+   * @param limit the position no record extends beyond.
+   *
+   * @return the {@link Record}, or {@code null} if there is no complete record at the position.
+   *
+   * @throws IOException if the segment can't be read.
+   */
+  Record readRecord(final long position, final long limit) throws IOException {
+    if (position + HEADER_SIZE > limit) {
+      return null;
+    }
+    final ByteBuffer header = readFully(position, HEADER_SIZE);
+    if (header.getInt() != MAGIC) {
+      return null;
+    }
+    final byte type = header.get();
+    final int bucketLength = header.getInt();
+    final int keyLength = header.getInt();
+    final int metadataLength = header.getInt();
+    final long dataLength = header.getLong();
+    if (bucketLength < 0 || keyLength < 0 || metadataLength < 0 || dataLength < 0) {
+      return null;
+    }
+    final long dataOffset = position + HEADER_SIZE + bucketLength + keyLength;
+    final long length = dataOffset + dataLength + metadataLength - position;
+    if (position + length > limit) {
+      return null;
+    }
+
+    final ByteBuffer names = readFully(position + HEADER_SIZE, bucketLength + keyLength);
+    final String bucket = new String(names.array(), 0, bucketLength, UTF_8);
+    final String key = new String(names.array(), bucketLength, keyLength, UTF_8);
+    final byte[] metadata = readFully(dataOffset + dataLength, metadataLength).array();
+    return new Record(new Location(id, position, length, dataOffset), type, bucket, key,
+        dataLength, metadata);
+  }
+
+  /**
+   * Reads all records, up to the first position without a complete record, which becomes the
+   * position new records are appended at.
+   *
+   * @param visitor called for each record, in order.
+   *
+   * @throws IOException if the segment can't be read.
+   */
+  void recover(final RecordVisitor visitor) throws IOException {
+    final long size = channel.size();
+    long position = 0;
+    Record record;
+    while ((record = readRecord(position, size)) != null) {
+      visitor.visit(record);
+      position += record.getLocation().getLength();
+    }
+    writePosition = position;
+  }
+
+  /**
+   * Takes a reference to the segment, for reading from it.
+   *
+   * @return {@code false} if the segment was compacted and deleted already.
+   */
+  boolean retain() {
+    int count;
+    do {
+      count = references.get();
+      if (count == 0) {
+        return false;
+      }
+    } while (!references.compareAndSet(count, count + 1));
+    return true;
+  }
+
+  /**
+   * Releases a reference to the segment, deleting it when the last one is released.
+   */
+  void release() {
+    if (references.decrementAndGet() == 0) {
+      try {
+        channel.close();
+        Files.deleteIfExists(path);
+      } catch (final IOException e) {
+        LOG.error("Could not delete segment {}", path, e);
+      }
+    }
+  }
+
+  /**
+   * Closes the segment file, keeping it.
+   */
+  void close() {
+    try {
+      channel.close();
+    } catch (final IOException e) {
+      LOG.error("Could not close segment {}", path, e);
+    }
+  }
+
+  private void writeFully(final ByteBuffer buffer, final long position) throws IOException {
+    while (buffer.hasRemaining()) {
+      channel.write(buffer, position + buffer.position());
+    }
+  }
+
+  private ByteBuffer readFully(final long position, final int length) throws IOException {
+    final ByteBuffer buffer = ByteBuffer.allocate(length);
+    while (buffer.hasRemaining()) {
+      if (channel.read(buffer, position + buffer.position()) < 0) {
+        throw new IOException("Unexpected end of segment " + path);
+      }
+    }
+    return (ByteBuffer) buffer.flip();
+  }
+
+  /**
+   * Writes the data of a record.
+   */
+  @FunctionalInterface
+  interface DataWriter {
+
+    /**
+     * Writes the data.
+     *
+     * @param target writes to the record's data.
+     *
+     * @throws IOException if the data can't be written.
+     */
+    void write(WritableByteChannel target) throws IOException;
+  }
+
+  /**
+   * A reserved record. Its data is written with positional writes, so it may be written while
+   * other records are appended.
+   */
+  final class Reservation implements AutoCloseable {
+
+    private final byte type;
+
+    private final Location location;
+
+    private final long dataLength;
+
+    private boolean done;
+
+    private Reservation(final byte type, final Location location, final long dataLength) {
+      this.type = type;
+      this.location = location;
+      this.dataLength = dataLength;
+    }
+
+    Location getLocation() {
+      return location;
+    }
+
+    /**
+     * Writes the data of the record.
+     *
+     * @param data writes the data.
+     *
+     * @throws IOException if the data can't be written, or its length isn't the reserved one.
+     */
+    void write(final DataWriter data) throws IOException {
+      final DataChannel target = new DataChannel(location.getDataOffset(), dataLength);
+      data.write(target);
+      if (target.remaining != 0) {
+        throw new IOException("Expected " + dataLength + " bytes of data, but got "
+            + (dataLength - target.remaining));
+      }
+    }
+
+    /**
+     * Commits the record by writing its type.
+     *
+     * @return the location of the record.
+     *
+     * @throws IOException if the type can't be written.
+     */
+    Location commit() throws IOException {
+      writeFully(ByteBuffer.wrap(new byte[] {type}), location.getOffset() + TYPE_OFFSET);
+      close();
+      return location;
+    }
+
+    /**
+     * Ends the reservation, leaving the record {@link #RESERVED} unless it was committed. Does
+     * nothing if the reservation ended already.
+     */
+    @Override
+    public void close() {
+      if (!done) {
+        done = true;
+        reservations.decrementAndGet();
+      }
+    }
+  }
+
+  /**
+   * Writes the data of a reserved record, refusing to write beyond it.
+   */
+  private final class DataChannel implements WritableByteChannel {
+
+    private long position;
+
+    private long remaining;
+
+    private DataChannel(final long position, final long length) {
+      this.position = position;
+      this.remaining = length;
+    }
+
+    @Override
+    public int write(final ByteBuffer source) throws IOException {
+      if (source.remaining() > remaining) {
+        throw new IOException("Data exceeds the reserved " + remaining + " bytes");
+      }
+      final int written = channel.write(source, position);
+      position += written;
+      remaining -= written;
+      return written;
+    }
+
+    @Override
+    public boolean isOpen() {
+      return channel.isOpen();
+    }
+
+    @Override
+    public void close() {
+      // the segment's channel stays open
+    }
+  }
+
+  /**
+   * Visits the records of a segment.
+   */
+  @FunctionalInterface
+  interface RecordVisitor {
+
+    void visit(Record record) throws IOException;
+  }
+
+  /**
+   * Where a record is stored.
+   */
+  static final class Location {
+
+    private final int segment;
+
+    private final long offset;
+
+    private final long length;
+
+    private final long dataOffset;
+
+    Location(final int segment, final long offset, final long length, final long dataOffset) {
+      this.segment = segment;
+      this.offset = offset;
+      this.length = length;
+      this.dataOffset = dataOffset;
+    }
+
+    int getSegment() {
+      return segment;
+    }
+
+    long getOffset() {
+      return offset;
+    }
+
+    long getLength() {
+      return length;
+    }
+
+    long getDataOffset() {
+      return dataOffset;
+    }
+
+    boolean isSameAs(final Location other) {
+      return other != null && segment == other.segment && offset == other.offset;
+    }
+  }
+
+  /**
+   * A record as read from a segment, without its data.
+   */
+  static final class Record {
+
+    private final Location location;
+
+    private final byte type;
+
+    private final String bucket;
+
+    private final String key;
+
+    private final long dataLength;
+
+    private final byte[] metadata;
+
+    private Record(final Location location, final byte type, final String bucket,
+        final String key, final long dataLength, final byte[] metadata) {
+      this.location = location;
+      this.type = type;
+      this.bucket = bucket;
+      this.key = key;
+      this.dataLength = dataLength;
+      this.metadata = metadata;
+    }
+
+    Location getLocation() {
+      return location;
+    }
+
+    byte getType() {
+      return type;
+    }
+
+    String getBucket() {
+      return bucket;
+    }
+
+    String getKey() {
+      return key;
+    }
+
+    long getDataLength() {
+      return dataLength;
+    }
+
+    byte[] getMetadata() {
+      return metadata;
+    }
+  }
+}
@@ -0,0 +1,1248 @@
+/*
+ *  Copyright 2017-2022 Adobe.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *          http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package com.adobe.testing.s3mock.store;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static java.util.Objects.requireNonNull;
+import static org.apache.commons.lang3.StringUtils.isNotBlank;
+import static org.springframework.http.HttpStatus.BAD_REQUEST;
+import static org.springframework.http.HttpStatus.NOT_FOUND;
+
+import com.adobe.testing.s3mock.dto.Bucket;
+import com.adobe.testing.s3mock.dto.CopyObjectResult;
+import com.adobe.testing.s3mock.dto.MultipartUpload;
+import com.adobe.testing.s3mock.dto.Owner;
+import com.adobe.testing.s3mock.dto.Part;
+import com.adobe.testing.s3mock.dto.Range;
+import com.adobe.testing.s3mock.dto.Tag;
+import com.adobe.testing.s3mock.util.AwsChunkedDecodingInputStream;
+import com.adobe.testing.s3mock.util.FileTransfer;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import org.apache.commons.codec.binary.Base64;
+import org.apache.commons.codec.binary.Hex;
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.io.input.BoundedInputStream;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * {@link ObjectStore} appending all buckets, objects and parts as records to large, preallocated
+ * {@link Segment segment files}, instead of creating folders and files per object. An object is
+ * written with one append and read with positional reads from an open segment, the metadata of
+ * all objects is kept in memory along with the location of their records.
+ *
+ * <p>Changing only the metadata of an object, like its tags, appends a metadata record, which
+ * refers to the data of the object's record instead of copying it.</p>
+ *
+ * <p>Replaced and deleted objects leave obsolete records behind. Segments that are mostly obsolete
+ * are compacted in the background, by appending their remaining live records to the current
+ * segment and deleting them. On startup, the index is rebuilt by reading all segments in order.
+ * Multipart uploads in progress don't survive a restart.</p>
+ *
+ * <p>Records are reserved and published under one append lock, which also guards all changes of
+ * the index, while their data is written without holding it. Changes of an object also hold a
+ * lock of its key, from reserving its record until it is indexed, so the order of the records of
+ * a key in the segments is the order of its changes.</p>
+ */
+public class SegmentStore implements ObjectStore {
+
+  /**
+   * Value of the storage property selecting this engine.
+   */
+  static final String STORAGE = "segments";
+
+  /**
+   * Bodies up to this size are buffered on the heap, larger ones in a temporary file, before they
+   * are appended.
+   */
+  private static final int BUFFERED_BODY_SIZE = 1024 * 1024;
+
+  /**
+   * Segments with less than this share of live records are compacted.
+   */
+  private static final double COMPACTION_THRESHOLD = 0.5;
+
+  private static final long COMPACTION_INTERVAL_SECONDS = 10;
+
+  private static final int KEY_LOCK_STRIPES = 256;
+
+  private static final DateTimeFormatter S3_OBJECT_DATE_FORMAT = DateTimeFormatter
+      .ofPattern("yyyy-MM-dd'T'HH:mm:ss.SSS'Z'")
+      .withZone(ZoneId.of("UTC"));
+
+  private static final String DEFAULT_CONTENT_TYPE = "binary/octet-stream";
+
+  private static final Logger LOG = LoggerFactory.getLogger(SegmentStore.class);
+
+  private final File rootFolder;
+
+  private final boolean retainFilesOnExit;
+
+  private final long segmentSize;
+
+  private final ObjectMapper objectMapper = new ObjectMapper();
+
+  private final ReentrantLock appendLock = new ReentrantLock();
+
+  /**
+   * Locks guarding the changes of objects, shared by keys by hash.
+   */
+  private final Lock[] keyLocks = new Lock[KEY_LOCK_STRIPES];
+
+  /**
+   * The bucket and key of the objects whose records are reserved, but not yet indexed.
+   * Compaction doesn't move other records of these keys, as they would end up after the reserved
+   * ones.
+   */
+  private final Set<String> pendingKeys = ConcurrentHashMap.newKeySet();
+
+  private final NavigableMap<Integer, Segment> segments = new ConcurrentSkipListMap<>();
+
+  /**
+   * The segment records are appended to. Guarded by {@link #appendLock}.
+   */
+  private Segment activeSegment;
+
+  private final Map<String, Bucket> buckets = new ConcurrentHashMap<>();
+
+  private final Map<String, Segment.Location> bucketRecords = new ConcurrentHashMap<>();
+
+  /**
+   * The objects per bucket. Keys are the object names as stored, as in {@link FileStore}.
+   */
+  private final Map<String, NavigableMap<String, S3Object>> objectIndex =
+      new ConcurrentHashMap<>();
+
+  private final Map<String, SegmentUpload> uploads = new ConcurrentHashMap<>();
+
+  private final ScheduledExecutorService compactor;
+
+  /**
+   * Constructs a new {@link SegmentStore}.
+   *
+   * @param rootDirectory folder to store the segments in. A temporary folder is used if omitted.
+   * @param retainFilesOnExit whether to keep the segments on {@link #close()}.
+   * @param initialBuckets buckets to create.
+   * @param segmentSize size of new segment files.
+   */
+  public SegmentStore(final String rootDirectory, final boolean retainFilesOnExit,
+      final List<String> initialBuckets, final long segmentSize) {
+    rootFolder = rootDirectory == null || rootDirectory.isEmpty()
+        ? new File(FileUtils.getTempDirectory(), "s3mockSegmentStore" + new Date().getTime())
+        : new File(rootDirectory);
+    this.retainFilesOnExit = retainFilesOnExit;
+    this.segmentSize = segmentSize;
+    Arrays.setAll(keyLocks, stripe -> new ReentrantLock());
+    try {
+      FileUtils.forceMkdir(rootFolder);
+      recover();
+    } catch (final IOException e) {
+      throw new IllegalStateException("Could not open segments in " + rootFolder, e);
+    }
+    LOG.info("Using \"{}\" as root folder for segments of {} bytes. Will retain files on exit: {}",
+        rootFolder.getAbsolutePath(), segmentSize, retainFilesOnExit);
+
+    compactor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+      final Thread thread = new Thread(runnable, "segment-compactor");
+      thread.setDaemon(true);
+      return thread;
+    });
+    compactor.scheduleWithFixedDelay(this::compact, COMPACTION_INTERVAL_SECONDS,
+        COMPACTION_INTERVAL_SECONDS, TimeUnit.SECONDS);
+    initialBuckets.forEach(this::createBucket);
+  }
+
+  @Override
+  public Bucket createBucket(final String bucketName) {
+    appendLock.lock();
+    try {
+      final Bucket existing = buckets.get(bucketName);
+      if (existing != null) {
+        return existing;
+      }
+      final String creationDate = S3_OBJECT_DATE_FORMAT.format(Instant.now());
+      final Segment.Location location = append(Segment.BUCKET, bucketName, "", 0, target -> {
+      }, creationDate.getBytes(UTF_8));
+      live(location);
+      bucketRecords.put(bucketName, location);
+      objectsOf(bucketName);
+      final Bucket bucket = new Bucket(null, bucketName, creationDate);
+      buckets.put(bucketName, bucket);
+      return bucket;
+    } catch (final IOException e) {
+      throw new IllegalStateException("Could not create bucket " + bucketName, e);
+    } finally {
+      appendLock.unlock();
+    }
+  }
+
+  @Override
+  public List<Bucket> listBuckets() {
+    return buckets.values().stream()
+        .sorted(Comparator.comparing(Bucket::getName))
+        .collect(Collectors.toList());
+  }
+
+  @Override
+  public Bucket getBucket(final String bucketName) {
+    return buckets.get(bucketName);
+  }
+
+  @Override
+  public Boolean doesBucketExist(final String bucketName) {
+    return getBucket(bucketName) != null;
+  }
+
+  @Override
+  public boolean deleteBucket(final String bucketName) {
+    appendLock.lock();
+    try {
+      if (!buckets.containsKey(bucketName)) {
+        return false;
+      }
+      append(Segment.BUCKET_TOMBSTONE, bucketName, "", 0, target -> {
+      }, new byte[0]);
+      removeBucket(bucketName);
+      return true;
+    } catch (final IOException e) {
+      throw new IllegalStateException("Could not delete bucket " + bucketName, e);
+    } finally {
+      appendLock.unlock();
+    }
+  }
+
+  @Override
+  public S3Object putS3Object(final String bucketName,
+      final String fileName,
+      final String contentType,
+      final String contentEncoding,
+      final InputStream dataStream,
+      final boolean useV4ChunkedWithSigningFormat,
+      final Map<String, String> userMetadata,
+      final String encryption, final String kmsKeyId,
+      final String contentMd5) throws IOException {
+    final MessageDigest md5 = md5();
+    final MessageDigest etagDigest = kmsKeyId == null ? md5 : saltedMd5(kmsKeyId);
+    final InputStream inputStream = useV4ChunkedWithSigningFormat
+        ? new AwsChunkedDecodingInputStream(dataStream) : dataStream;
+    try (Body body = etagDigest == md5
+        ? readBody(inputStream, md5) : readBody(inputStream, md5, etagDigest)) {
+      final byte[] md5Bytes = md5.digest();
+      if (contentMd5 != null && !Base64.encodeBase64String(md5Bytes).equals(contentMd5)) {
+        throw new S3Exception(BAD_REQUEST.value(), "BadRequest",
+            "Content-MD5 does not match object md5");
+      }
+
+      final SegmentObject s3Object = new SegmentObject();
+      s3Object.setName(fileName);
+      s3Object.setContentType(contentType != null ? contentType : DEFAULT_CONTENT_TYPE);
+      s3Object.setContentEncoding(contentEncoding);
+      s3Object.setUserMetadata(userMetadata);
+      s3Object.setEncrypted(isNotBlank(encryption) && isNotBlank(kmsKeyId));
+      s3Object.setKmsEncryption(encryption);
+      s3Object.setKmsEncryptionKeyId(kmsKeyId);
+      s3Object.setEtag(Hex.encodeHexString(etagDigest == md5 ? md5Bytes : etagDigest.digest()));
+      store(bucketName, s3Object, body.length, body::writeTo);
+      return s3Object;
+    }
+  }
+
+  /**
+   * Sets the tags of an object by appending a metadata record, keeping the object's data where it
+   * is.
+   */
+  @Override
+  public void setObjectTags(final String bucketName, final String fileName,
+      final List<Tag> tags) {
+    final String key = FileStore.indexKey(fileName);
+    final Lock lock = keyLock(bucketName, key);
+    lock.lock();
+    appendLock.lock();
+    try {
+      final SegmentObject sourceObject = (SegmentObject) getS3Object(bucketName, fileName);
+      if (sourceObject == null) {
+        throw new S3Exception(NOT_FOUND.value(), "NoSuchKey", "The specified key does not exist.");
+      }
+      final SegmentObject s3Object =
+          objectMapper.readValue(objectMapper.writeValueAsBytes(sourceObject), SegmentObject.class);
+      s3Object.setTags(tags);
+      s3Object.location = sourceObject.location;
+      s3Object.metadataLocation = live(append(Segment.METADATA, bucketName, key, 0, target -> {
+      }, objectMapper.writeValueAsBytes(s3Object)));
+      obsolete(sourceObject.metadataLocation);
+      objectsOf(bucketName).put(key, s3Object);
+    } catch (final IOException e) {
+      throw new IllegalStateException("Could not set tags of " + fileName, e);
+    } finally {
+      appendLock.unlock();
+      lock.unlock();
+    }
+  }
+
+  @Override
+  public S3Object getS3Object(final String bucketName, final String objectName) {
+    final NavigableMap<String, S3Object> objects =
+        objectIndex.get(requireNonNull(bucketName, "bucketName == null"));
+    return objects != null ? objects.get(FileStore.indexKey(objectName)) : null;
+  }
+
+  @Override
+  public void transferS3ObjectData(final S3Object s3Object, final long position,
+      final long count, final OutputStream outputStream) throws IOException {
+    final SegmentObject segmentObject = (SegmentObject) s3Object;
+    final Segment segment = retain(segmentObject);
+    try {
+      FileTransfer.transfer(segment.getChannel(),
+          segmentObject.location.getDataOffset() + position, count, outputStream);
+    } finally {
+      segment.release();
+    }
+  }
+
+  /**
+   * Looks up an object and takes a reference to the segment holding its record. Records are never
+   * overwritten, so the data stays in place until the segment is released. If the segment was
+   * compacted after the lookup, the object is looked up again.
+   */
+  @Override
+  public S3ObjectData openS3ObjectData(final String bucketName, final String objectName) {
+    while (true) {
+      final SegmentObject s3Object = (SegmentObject) getS3Object(bucketName, objectName);
+      if (s3Object == null) {
+        return null;
+      }
+      final Segment.Location location = s3Object.location;
+      final Segment segment = segments.get(location.getSegment());
+      if (segment != null && segment.retain()) {
+        return new SegmentObjectData(s3Object, segment, location.getDataOffset());
+      }
+    }
+  }
+
+  @Override
+  public List<S3Object> getS3Objects(final String bucketName, final String prefix) {
+    final String keyPrefix = prefix != null ? FileStore.objectKey(prefix) : null;
+    return new ArrayList<>(listObjects(bucketName, keyPrefix, null, null, Integer.MAX_VALUE)
+        .getContents().values());
+  }
+
+  @Override
+  public ObjectListing listObjects(final String bucketName, final String prefix,
+      final String delimiter, final String startAfter, final int maxKeys) {
+    final NavigableMap<String, S3Object> objects =
+        objectIndex.get(requireNonNull(bucketName, "bucketName == null"));
+    if (objects == null) {
+      return new ObjectListing(Collections.emptyMap(), Collections.emptyList(), false, null);
+    }
+    return ObjectListing.of(objects, prefix, delimiter, startAfter, maxKeys);
+  }
+
+  /**
+   * Copies an object by copying its record's data within the segments. The ETag is only computed
+   * again if the KMS key that salts it changes, or if the source's ETag is the one of a multipart
+   * upload. It is part of the metadata written when the record is reserved, so the source is read
+   * once more to compute it.
+   */
+  @Override
+  public CopyObjectResult copyS3ObjectEncrypted(final String sourceBucketName,
+      final String sourceObjectName,
+      final String destinationBucketName,
+      final String destinationObjectName,
+      final String encryption,
+      final String kmsKeyId,
+      final Map<String, String> userMetadata) throws IOException {
+    final SegmentObject sourceObject =
+        (SegmentObject) getS3Object(sourceBucketName, sourceObjectName);
+    if (sourceObject == null) {
+      return null;
+    }
+
+    final SegmentObject s3Object = new SegmentObject();
+    s3Object.setName(destinationObjectName);
+    s3Object.setContentType(sourceObject.getContentType());
+    s3Object.setContentEncoding(sourceObject.getContentEncoding());
+    s3Object.setUserMetadata(userMetadata != null && !userMetadata.isEmpty()
+        ? userMetadata : sourceObject.getUserMetadata());
+    s3Object.setEncrypted(isNotBlank(encryption) && isNotBlank(kmsKeyId));
+    s3Object.setKmsEncryption(encryption);
+    s3Object.setKmsEncryptionKeyId(kmsKeyId);
+
+    final MessageDigest etagDigest;
+    if (!Objects.equals(sourceObject.getKmsKeyId(), kmsKeyId)
+        || sourceObject.getEtag().contains("-")) {
+      etagDigest = kmsKeyId == null ? md5() : saltedMd5(kmsKeyId);
+    } else {
+      etagDigest = null;
+      s3Object.setEtag(sourceObject.getEtag());
+    }
+
+    final long size = Long.parseLong(sourceObject.getSize());
+    final Segment segment = retain(sourceObject);
+    try {
+      final Segment.Location source = sourceObject.location;
+      if (etagDigest != null) {
+        FileStore.copyRegion(segment.getChannel(), source.getDataOffset(), size, null,
+            etagDigest);
+        s3Object.setEtag(Hex.encodeHexString(etagDigest.digest()));
+      }
+      store(destinationBucketName, s3Object, size, target -> FileStore.copyRegion(
+          segment.getChannel(), source.getDataOffset(), size, target, null));
+    } finally {
+      segment.release();
+    }
+    return new CopyObjectResult(s3Object.getModificationDate(), s3Object.getEtag());
+  }
+
+  @Override
+  public boolean deleteObject(final String bucketName, final String objectName) {
+    final String key = FileStore.indexKey(objectName);
+    final Lock lock = keyLock(bucketName, key);
+    lock.lock();
+    appendLock.lock();
+    try {
+      final NavigableMap<String, S3Object> objects = objectIndex.get(bucketName);
+      if (objects == null || !objects.containsKey(key)) {
+        return false;
+      }
+      append(Segment.TOMBSTONE, bucketName, key, 0, target -> {
+      }, new byte[0]);
+      obsolete(objects.remove(key));
+      return true;
+    } catch (final IOException e) {
+      throw new IllegalStateException("Could not delete " + objectName, e);
+    } finally {
+      appendLock.unlock();
+      lock.unlock();
+    }
+  }
+
+  @Override
+  public MultipartUpload prepareMultipartUpload(final String bucketName, final String fileName,
+      final String contentType, final String contentEncoding, final String uploadId,
+      final Owner owner, final Owner initiator, final Map<String, String> userMetadata) {
+    if (getBucket(bucketName) == null) {
+      createBucket(bucketName);
+    }
+    final MultipartUpload upload =
+        new MultipartUpload(fileName, uploadId, owner, initiator, new Date());
+    uploads.put(uploadId, new SegmentUpload(new MultipartUploadInfo(upload,
+        contentType, contentEncoding, userMetadata, bucketName)));
+    return upload;
+  }
+
+  @Override
+  public Collection<MultipartUpload> listMultipartUploads(final String bucketName) {
+    return uploads.values()
+        .stream()
+        .map(upload -> upload.info)
+        .filter(info -> bucketName == null || bucketName.equals(info.bucket))
+        .map(info -> info.upload)
+        .collect(Collectors.toList());
+  }
+
+  @Override
+  public void abortMultipartUpload(final String bucketName, final String fileName,
+      final String uploadId) {
+    synchronizedUpload(uploadId, upload -> {
+      appendLock.lock();
+      try {
+        uploads.remove(uploadId);
+        upload.parts.values().forEach(this::obsolete);
+        return null;
+      } finally {
+        appendLock.unlock();
+      }
+    });
+  }
+
+  @Override
+  public String putPart(final String bucketName,
+      final String fileName,
+      final String uploadId,
+      final String partNumber,
+      final InputStream inputStream,
+      final boolean useV4ChunkedWithSigningFormat) throws IOException {
+    final MessageDigest md5 = md5();
+    try (Body body = readBody(useV4ChunkedWithSigningFormat
+        ? new AwsChunkedDecodingInputStream(inputStream) : inputStream, md5)) {
+      return storePart(uploadId, partNumber, body.length, body::writeTo,
+          Hex.encodeHexString(md5.digest()));
+    }
+  }
+
+  @Override
+  public String copyPart(final String bucket,
+      final String key,
+      final Range copyRange,
+      final String partNumber,
+      final String destinationBucket,
+      final String destinationFilename,
+      final String uploadId) throws IOException {
+    if (!uploads.containsKey(uploadId)) {
+      throw new IllegalStateException("Missed preparing Multipart Request");
+    }
+    final SegmentObject sourceObject = (SegmentObject) getS3Object(bucket, key);
+    if (sourceObject == null) {
+      throw new IllegalStateException("Source Object not found");
+    }
+
+    final Range range = FileStore.copyRangeOf(copyRange, Long.parseLong(sourceObject.getSize()));
+    final long position = range.getStart();
+    final long count = range.getEnd() - range.getStart() + 1;
+    final MessageDigest md5 = md5();
+    final Segment segment = retain(sourceObject);
+    try {
+      final Segment.Location source = sourceObject.location;
+      return storePart(uploadId, partNumber, count,
+          target -> FileStore.copyRegion(segment.getChannel(), source.getDataOffset() + position,
+              count, target, md5),
+          null, md5);
+    } finally {
+      segment.release();
+    }
+  }
+
+  @Override
+  public List<Part> getMultipartUploadParts(final String bucketName, final String fileName,
+      final String uploadId) {
+    final SegmentUpload upload = uploads.get(uploadId);
+    if (upload == null) {
+      return Collections.emptyList();
+    }
+    return new ArrayList<>(upload.info.parts.values());
+  }
+
+  /**
+   * Completes a multipart upload by appending the data of the parts as one object. The segments
+   * of the parts are referenced while their data is copied, as compaction may move them.
+   */
+  @Override
+  public String completeMultipartUpload(final String bucketName, final String fileName,
+      final String uploadId, final List<Part> parts, final String encryption,
+      final String kmsKeyId) {
+    return synchronizedUpload(uploadId, upload -> {
+      final MultipartUploadInfo uploadInfo = upload.info;
+      final String etag = uploadInfo.etagOf(parts);
+
+      final Set<Integer> partNumbers = new HashSet<>();
+      for (final Part part : parts) {
+        if (!partNumbers.add(part.getPartNumber())) {
+          throw new IllegalArgumentException("Part " + part.getPartNumber() + " is listed twice");
+        }
+      }
+
+      final SegmentObject s3Object = new SegmentObject();
+      s3Object.setName(fileName);
+      s3Object.setContentType(
+          uploadInfo.contentType != null ? uploadInfo.contentType : DEFAULT_CONTENT_TYPE);
+      s3Object.setContentEncoding(uploadInfo.contentEncoding);
+      s3Object.setUserMetadata(uploadInfo.userMetadata);
+      s3Object.setEncrypted(encryption != null || kmsKeyId != null);
+      s3Object.setKmsEncryption(encryption);
+      s3Object.setKmsEncryptionKeyId(kmsKeyId);
+      s3Object.setEtag(etag);
+
+      final List<Segment.Location> partLocations = new ArrayList<>();
+      final List<Segment> partSegments = new ArrayList<>();
+      appendLock.lock();
+      try {
+        // part records are only moved by compaction while the append lock is held, and segments
+        // are only deleted while it is held, so each one still holds the store's reference
+        for (final Part part : parts) {
+          final Segment.Location location = upload.parts.get(part.getPartNumber());
+          final Segment segment = segments.get(location.getSegment());
+          segment.retain();
+          partLocations.add(location);
+          partSegments.add(segment);
+        }
+      } finally {
+        appendLock.unlock();
+      }
+
+      try {
+        store(bucketName, s3Object, uploadInfo.sizeOf(parts), target -> {
+          for (int i = 0; i < parts.size(); i++) {
+            FileStore.copyRegion(partSegments.get(i).getChannel(),
+                partLocations.get(i).getDataOffset(),
+                uploadInfo.parts.get(parts.get(i).getPartNumber()).getSize(), target, null);
+          }
+        });
+      } catch (final IOException e) {
+        throw new IllegalStateException("Could not complete upload " + uploadId, e);
+      } finally {
+        partSegments.forEach(Segment::release);
+      }
+
+      appendLock.lock();
+      try {
+        uploads.remove(uploadId);
+        upload.parts.values().forEach(this::obsolete);
+      } finally {
+        appendLock.unlock();
+      }
+      return etag;
+    });
+  }
+
+  /**
+   * Stops compaction and closes all segments. Deletes the root folder, unless files are to be
+   * retained on exit.
+   */
+  @Override
+  public void close() {
+    compactor.shutdownNow();
+    try {
+      compactor.awaitTermination(COMPACTION_INTERVAL_SECONDS, TimeUnit.SECONDS);
+    } catch (final InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+    appendLock.lock();
+    try {
+      segments.values().forEach(Segment::close);
+      segments.clear();
+    } finally {
+      appendLock.unlock();
+    }
+    if (retainFilesOnExit) {
+      return;
+    }
+    try {
+      FileUtils.deleteDirectory(rootFolder);
+    } catch (final IOException e) {
+      LOG.error("Could not delete root folder {}", rootFolder.getAbsolutePath(), e);
+    }
+  }
+
+  File getRootFolder() {
+    return rootFolder;
+  }
+
+  /**
+   * Compacts all segments but the active one whose share of live records fell below the
+   * {@link #COMPACTION_THRESHOLD}. Runs in the background periodically.
+   */
+  void compact() {
+    for (final Segment segment : segments.values()) {
+      if (segment == activeSegment || segment.hasReservations()
+          || segment.getLiveBytes() >= segment.getWritePosition() * COMPACTION_THRESHOLD) {
+        continue;
+      }
+      try {
+        compact(segment);
+      } catch (final IOException | RuntimeException e) {
+        LOG.error("Could not compact segment {}", segment.getId(), e);
+      }
+    }
+  }
+
+  /**
+   * Appends the live records of a segment to the active segment, and deletes it.
+   *
+   * <p>Tombstones are kept as long as older segments may still hold the records they delete, and
+   * the key or bucket they delete doesn't exist again. A live record after the tombstone supersedes
+   * the older records anyway. Only a bucket tombstone followed by a new bucket of the same name
+   * can't be moved, as it also deletes the bucket's older objects. Compaction of its segment is
+   * postponed until the older segments are gone.</p>
+   */
+  private void compact(final Segment segment) throws IOException {
+    final long limit = segment.getWritePosition();
+    long position = 0;
+    Segment.Record record;
+    while ((record = segment.readRecord(position, limit)) != null) {
+      appendLock.lock();
+      try {
+        if (!relocate(segment, record)) {
+          LOG.debug("Postponed compaction of segment {}", segment.getId());
+          return;
+        }
+      } finally {
+        appendLock.unlock();
+      }
+      position += record.getLocation().getLength();
+    }
+
+    appendLock.lock();
+    try {
+      segments.remove(segment.getId());
+      segment.release();
+    } finally {
+      appendLock.unlock();
+    }
+    LOG.debug("Compacted segment {}", segment.getId());
+  }
+
+  /**
+   * Moves a record to the active segment, if it is still needed. Must be called with the append
+   * lock held.
+   *
+   * @return {@code false} if the record can't be moved yet.
+   */
+  private boolean relocate(final Segment segment, final Segment.Record record)
+      throws IOException {
+    if ((record.getType() == Segment.OBJECT || record.getType() == Segment.METADATA
+        || record.getType() == Segment.TOMBSTONE)
+        && pendingKeys.contains(keyOf(record.getBucket(), record.getKey()))) {
+      return false;
+    }
+    final Segment.Location location = record.getLocation();
+    final boolean olderSegments = segments.firstKey() < segment.getId();
+    final NavigableMap<String, S3Object> objects = objectIndex.get(record.getBucket());
+    switch (record.getType()) {
+      case Segment.OBJECT:
+        final SegmentObject s3Object =
+            objects != null ? (SegmentObject) objects.get(record.getKey()) : null;
+        if (s3Object != null && location.isSameAs(s3Object.location)) {
+          s3Object.location = s3Object.metadataLocation == null
+              ? live(appendCopy(segment, location)) : live(appendMerged(segment, record, s3Object));
+        }
+        return true;
+      case Segment.METADATA:
+        final SegmentObject tagged =
+            objects != null ? (SegmentObject) objects.get(record.getKey()) : null;
+        if (tagged != null && location.isSameAs(tagged.metadataLocation)) {
+          tagged.metadataLocation = live(appendCopy(segment, location));
+        }
+        return true;
+      case Segment.PART:
+        final SegmentUpload upload = uploads.get(record.getKey());
+        final int partNumber = Integer.parseInt(new String(record.getMetadata(), UTF_8));
+        if (upload != null && location.isSameAs(upload.parts.get(partNumber))) {
+          upload.parts.put(partNumber, live(appendCopy(segment, location)));
+        }
+        return true;
+      case Segment.BUCKET:
+        if (location.isSameAs(bucketRecords.get(record.getBucket()))) {
+          bucketRecords.put(record.getBucket(), live(appendCopy(segment, location)));
+        }
+        return true;
+      case Segment.TOMBSTONE:
+        if (olderSegments && (objects == null || !objects.containsKey(record.getKey()))) {
+          appendCopy(segment, location);
+        }
+        return true;
+      case Segment.BUCKET_TOMBSTONE:
+        if (olderSegments && buckets.containsKey(record.getBucket())) {
+          return false;
+        }
+        if (olderSegments) {
+          appendCopy(segment, location);
+        }
+        return true;
+      default:
+        return true;
+    }
+  }
+
+  /**
+   * Rebuilds the buckets and the object index from the segments in the root folder, and opens the
+   * newest segment for appending. Leftover temporary files are deleted.
+   */
+  private void recover() throws IOException {
+    final List<Path> files;
+    try (Stream<Path> list = Files.list(rootFolder.toPath())) {
+      files = list.collect(Collectors.toList());
+    }
+    for (final Path file : files) {
+      if (Segment.isSegment(file)) {
+        final Segment segment = Segment.open(file);
+        segments.put(segment.getId(), segment);
+      } else if (file.getFileName().toString().endsWith(Body.SUFFIX)) {
+        Files.delete(file);
+      }
+    }
+    for (final Segment segment : segments.values()) {
+      segment.recover(this::apply);
+    }
+    activeSegment = segments.isEmpty()
+        ? roll() : segments.lastEntry().getValue();
+  }
+
+  private void apply(final Segment.Record record) throws IOException {
+    final Segment.Location location = record.getLocation();
+    switch (record.getType()) {
+      case Segment.OBJECT:
+        final SegmentObject s3Object =
+            objectMapper.readValue(record.getMetadata(), SegmentObject.class);
+        s3Object.location = live(location);
+        obsolete(objectsOf(record.getBucket()).put(record.getKey(), s3Object));
+        break;
+      case Segment.METADATA:
+        final NavigableMap<String, S3Object> dataObjects = objectIndex.get(record.getBucket());
+        final SegmentObject dataObject =
+            dataObjects != null ? (SegmentObject) dataObjects.get(record.getKey()) : null;
+        if (dataObject != null) {
+          final SegmentObject updated =
+              objectMapper.readValue(record.getMetadata(), SegmentObject.class);
+          updated.location = dataObject.location;
+          updated.metadataLocation = live(location);
+          obsolete(dataObject.metadataLocation);
+          dataObjects.put(record.getKey(), updated);
+        }
+        break;
+      case Segment.TOMBSTONE:
+        final NavigableMap<String, S3Object> objects = objectIndex.get(record.getBucket());
+        if (objects != null) {
+          obsolete(objects.remove(record.getKey()));
+        }
+        break;
+      case Segment.BUCKET:
+        obsolete(bucketRecords.put(record.getBucket(), live(location)));
+        objectsOf(record.getBucket());
+        buckets.put(record.getBucket(), new Bucket(null, record.getBucket(),
+            new String(record.getMetadata(), UTF_8)));
+        break;
+      case Segment.BUCKET_TOMBSTONE:
+        removeBucket(record.getBucket());
+        break;
+      default:
+        // uploads in progress are not recovered, their parts are obsolete, reserved records are
+        // incomplete
+    }
+  }
+
+  /**
+   * Indexes an object, setting its size and timestamps, and appends its record. The record is
+   * reserved with the append lock held, its data is written without holding it, and it is
+   * indexed with the lock held again.
+   */
+  private void store(final String bucketName, final SegmentObject s3Object, final long size,
+      final Segment.DataWriter data) throws IOException {
+    final Instant now = Instant.now();
+    s3Object.setSize(Long.toString(size));
+    s3Object.setCreationDate(S3_OBJECT_DATE_FORMAT.format(now));
+    s3Object.setModificationDate(S3_OBJECT_DATE_FORMAT.format(now));
+    s3Object.setLastModified(now.toEpochMilli());
+
+    final String key = FileStore.indexKey(s3Object.getName());
+    final Lock lock = keyLock(bucketName, key);
+    lock.lock();
+    try {
+      final Segment.Location bucketRecord;
+      final Segment.Reservation reservation;
+      appendLock.lock();
+      try {
+        if (getBucket(bucketName) == null) {
+          createBucket(bucketName);
+        }
+        bucketRecord = bucketRecords.get(bucketName);
+        reservation = reserve(Segment.OBJECT, bucketName, key, size,
+            objectMapper.writeValueAsBytes(s3Object));
+        pendingKeys.add(keyOf(bucketName, key));
+      } finally {
+        appendLock.unlock();
+      }
+
+      try {
+        reservation.write(data);
+        appendLock.lock();
+        try {
+          final Segment.Location location = reservation.commit();
+          // a bucket deleted meanwhile took the record with it, as it precedes the tombstone
+          if (bucketRecords.get(bucketName) == bucketRecord) {
+            index(bucketName, s3Object, location);
+          }
+        } finally {
+          appendLock.unlock();
+        }
+      } finally {
+        reservation.close();
+        pendingKeys.remove(keyOf(bucketName, key));
+      }
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  private void index(final String bucketName, final SegmentObject s3Object,
+      final Segment.Location location) {
+    s3Object.location = live(location);
+    obsolete(objectsOf(bucketName).put(FileStore.indexKey(s3Object.getName()), s3Object));
+  }
+
+  private String storePart(final String uploadId, final String partNumber, final long size,
+      final Segment.DataWriter data, final String etag) throws IOException {
+    return storePart(uploadId, partNumber, size, data, etag, null);
+  }
+
+  /**
+   * Appends a part record and indexes it with its upload.
+   *
+   * @param etag the ETag of the part, or {@code null} to take it from the digest.
+   * @param digest digesting the part while it is written, if the ETag isn't known in advance.
+   */
+  private String storePart(final String uploadId, final String partNumber, final long size,
+      final Segment.DataWriter data, final String etag, final MessageDigest digest)
+      throws IOException {
+    final int number = Integer.parseInt(partNumber);
+    try {
+      return synchronizedUpload(uploadId, upload -> {
+        try {
+          final Segment.Reservation reservation;
+          appendLock.lock();
+          try {
+            reservation = reserve(Segment.PART, upload.info.bucket, uploadId, size,
+                partNumber.getBytes(UTF_8));
+          } finally {
+            appendLock.unlock();
+          }
+
+          try {
+            reservation.write(data);
+            final String partEtag = etag != null ? etag : Hex.encodeHexString(digest.digest());
+            appendLock.lock();
+            try {
+              obsolete(upload.parts.put(number, live(reservation.commit())));
+              upload.info.indexPart(number, partEtag, size, new Date());
+            } finally {
+              appendLock.unlock();
+            }
+            return partEtag;
+          } finally {
+            reservation.close();
+          }
+        } catch (final IOException e) {
+          throw new UncheckedIOException(e);
+        }
+      });
+    } catch (final UncheckedIOException e) {
+      throw e.getCause();
+    }
+  }
+
+  /**
+   * Appends a record to the active segment, first rolling over to a new segment if the record
+   * doesn't fit. Must be called with the append lock held.
+   */
+  private Segment.Location append(final byte type, final String bucket, final String key,
+      final long dataLength, final Segment.DataWriter data, final byte[] metadata)
+      throws IOException {
+    return segmentFor(dataLength).append(type, bucket, key, dataLength, data, metadata);
+  }
+
+  /**
+   * Reserves a record in the active segment, first rolling over to a new segment if the record
+   * doesn't fit. Must be called with the append lock held.
+   */
+  private Segment.Reservation reserve(final byte type, final String bucket, final String key,
+      final long dataLength, final byte[] metadata) throws IOException {
+    return segmentFor(dataLength).reserve(type, bucket, key, dataLength, metadata);
+  }
+
+  private Segment segmentFor(final long dataLength) throws IOException {
+    if (activeSegment.getWritePosition() > 0
+        && activeSegment.getWritePosition() + Segment.HEADER_SIZE + dataLength > segmentSize) {
+      activeSegment = roll();
+    }
+    return activeSegment;
+  }
+
+  /**
+   * Appends a copy of an object's record, with the metadata of its metadata record instead of the
+   * record's own, so the object doesn't depend on a metadata record anymore. Must be called with
+   * the append lock held.
+   */
+  private Segment.Location appendMerged(final Segment source, final Segment.Record record,
+      final SegmentObject s3Object) throws IOException {
+    final Segment.Location location = record.getLocation();
+    final Segment.Location merged = append(Segment.OBJECT, record.getBucket(), record.getKey(),
+        record.getDataLength(), target -> FileStore.copyRegion(source.getChannel(),
+            location.getDataOffset(), record.getDataLength(), target, null),
+        objectMapper.writeValueAsBytes(s3Object));
+    obsolete(s3Object.metadataLocation);
+    s3Object.metadataLocation = null;
+    return merged;
+  }
+
+  /**
+   * Appends a copy of a record to the active segment. Must be called with the append lock held.
+   */
+  private Segment.Location appendCopy(final Segment source, final Segment.Location location)
+      throws IOException {
+    if (activeSegment.getWritePosition() > 0
+        && activeSegment.getWritePosition() + location.getLength() > segmentSize) {
+      activeSegment = roll();
+    }
+    return activeSegment.appendCopy(source, location);
+  }
+
+  private Segment roll() throws IOException {
+    final int id = segments.isEmpty() ? 1 : segments.lastKey() + 1;
+    final Segment segment = Segment.create(rootFolder.toPath(), id, segmentSize);
+    segments.put(id, segment);
+    return segment;
+  }
+
+  private void removeBucket(final String bucketName) {
+    buckets.remove(bucketName);
+    obsolete(bucketRecords.remove(bucketName));
+    final NavigableMap<String, S3Object> objects = objectIndex.remove(bucketName);
+    if (objects != null) {
+      objects.values().forEach(this::obsolete);
+    }
+  }
+
+  private Segment.Location live(final Segment.Location location) {
+    segments.get(location.getSegment()).addLiveBytes(location.getLength());
+    return location;
+  }
+
+  private void obsolete(final Segment.Location location) {
+    if (location != null) {
+      segments.get(location.getSegment()).addLiveBytes(-location.getLength());
+    }
+  }
+
+  private void obsolete(final S3Object s3Object) {
+    if (s3Object != null) {
+      obsolete(((SegmentObject) s3Object).location);
+      obsolete(((SegmentObject) s3Object).metadataLocation);
+    }
+  }
+
+  private NavigableMap<String, S3Object> objectsOf(final String bucketName) {
+    return objectIndex.computeIfAbsent(bucketName,
+        name -> new ConcurrentSkipListMap<>(ObjectListing.KEY_ORDER));
+  }
+
+  /**
+   * Retrieves the lock guarding the changes of an object. Keys with the same hash share a lock.
+   */
+  private Lock keyLock(final String bucketName, final String key) {
+    return keyLocks[Math.floorMod(keyOf(bucketName, key).hashCode(), KEY_LOCK_STRIPES)];
+  }
+
+  private static String keyOf(final String bucketName, final String key) {
+    return bucketName + "/" + key;
+  }
+
+  /**
+   * Synchronize access on the upload, to handle concurrent abortion/completion.
+   */
+  private <T> T synchronizedUpload(final String uploadId,
+      final Function<SegmentUpload, T> callback) {
+    final SegmentUpload upload = uploads.get(uploadId);
+    if (upload == null) {
+      throw new IllegalArgumentException("Unknown upload " + uploadId);
+    }
+    synchronized (upload) {
+      if (uploads.get(uploadId) != upload) {
+        throw new IllegalStateException(
+            "Upload " + uploadId + " was aborted or completed concurrently");
+      }
+      return callback.apply(upload);
+    }
+  }
+
+  /**
+   * Takes a reference to the segment holding the record of an object, for reading it. If the
+   * record was moved by compaction meanwhile, the object's new location is used.
+   */
+  private Segment retain(final SegmentObject s3Object) {
+    Segment.Location location = s3Object.location;
+    while (true) {
+      final Segment segment = segments.get(location.getSegment());
+      if (segment != null && segment.retain()) {
+        if (s3Object.location == location) {
+          return segment;
+        }
+        segment.release();
+      } else if (s3Object.location == location) {
+        throw new IllegalStateException(
+            "Object " + s3Object.getName() + " was replaced or deleted concurrently");
+      }
+      location = s3Object.location;
+    }
+  }
+
+  private Body readBody(final InputStream inputStream, final MessageDigest... digests)
+      throws IOException {
+    InputStream digestStream = inputStream;
+    for (final MessageDigest digest : digests) {
+      digestStream = new DigestInputStream(digestStream, digest);
+    }
+
+    // buffers only the bytes that arrive, up to one more than fit on the heap
+    final byte[] head = IOUtils.toByteArray(
+        new BoundedInputStream(digestStream, BUFFERED_BODY_SIZE + 1L));
+    if (head.length <= BUFFERED_BODY_SIZE) {
+      return new Body(ByteBuffer.wrap(head), null, head.length);
+    }
+
+    final Path file = Files.createTempFile(rootFolder.toPath(), "body", Body.SUFFIX);
+    try (OutputStream out = Files.newOutputStream(file)) {
+      out.write(head);
+      final long length = head.length + IOUtils.copyLarge(digestStream, out);
+      return new Body(null, file, length);
+    } catch (final IOException e) {
+      Files.deleteIfExists(file);
+      throw e;
+    }
+  }
+
+  private static MessageDigest md5() {
+    try {
+      return MessageDigest.getInstance("MD5");
+    } catch (final NoSuchAlgorithmException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+
+  private static MessageDigest saltedMd5(final String salt) {
+    final MessageDigest md5 = md5();
+    md5.update(salt.getBytes(UTF_8));
+    return md5;
+  }
+
+  /**
+   * A request body to append, buffered on the heap or in a temporary file.
+   */
+  private static final class Body implements AutoCloseable {
+
+    private static final String SUFFIX = ".body";
+
+    private final ByteBuffer buffer;
+
+    private final Path file;
+
+    private final long length;
+
+    private Body(final ByteBuffer buffer, final Path file, final long length) {
+      this.buffer = buffer;
+      this.file = file;
+      this.length = length;
+    }
+
+    private void writeTo(final WritableByteChannel target) throws IOException {
+      if (buffer != null) {
+        while (buffer.hasRemaining()) {
+          target.write(buffer);
+        }
+        return;
+      }
+      try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+        FileTransfer.transferTo(channel, 0, length, target);
+      }
+    }
+
+    @Override
+    public void close() throws IOException {
+      if (file != null) {
+        Files.deleteIfExists(file);
+      }
+    }
+  }
+
+  /**
+   * An object together with the location of its record, and of the metadata record replacing the
+   * record's metadata, if any. The locations change if the records are moved by compaction.
+   */
+  private static final class SegmentObject extends S3Object {
+
+    private transient volatile Segment.Location location;
+
+    private transient volatile Segment.Location metadataLocation;
+  }
+
+  /**
+   * The data of an object, in a segment referenced until it is closed.
+   */
+  private static final class SegmentObjectData implements S3ObjectData {
+
+    private final S3Object s3Object;
+
+    private final Segment segment;
+
+    private final long dataOffset;
+
+    private SegmentObjectData(final S3Object s3Object, final Segment segment,
+        final long dataOffset) {
+      this.s3Object = s3Object;
+      this.segment = segment;
+      this.dataOffset = dataOffset;
+    }
+
+    @Override
+    public S3Object getS3Object() {
+      return s3Object;
+    }
+
+    @Override
+    public void transferTo(final long position, final long count,
+        final OutputStream outputStream) throws IOException {
+      FileTransfer.transfer(segment.getChannel(), dataOffset + position, count, outputStream);
+    }
+
+    @Override
+    public void close() {
+      segment.release();
+    }
+  }
+
+  /**
+   * A multipart upload together with the records of its parts.
+   */
+  private static final class SegmentUpload {
+
+    private final MultipartUploadInfo info;
+
+    private final Map<Integer, Segment.Location> parts = new ConcurrentHashMap<>();
+
+    private SegmentUpload(final MultipartUploadInfo info) {
+      this.info = info;
+    }
+  }
+}
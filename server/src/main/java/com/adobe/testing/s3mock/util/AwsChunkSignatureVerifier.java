@@ -0,0 +1,156 @@
+/*
+ *  Copyright 2017-2022 Adobe.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *          http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package com.adobe.testing.s3mock.util;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.springframework.http.HttpStatus.FORBIDDEN;
+
+import com.adobe.testing.s3mock.store.S3Exception;
+import java.security.InvalidKeyException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import org.apache.commons.codec.binary.Hex;
+
+/**
+ * Verifies the chunk signatures of a {@code STREAMING-AWS4-HMAC-SHA256-PAYLOAD} upload, one chunk
+ * after the other.
+ *
+ * <p>The signature of each chunk is computed from the signature of the previous chunk and the
+ * SHA-256 of the chunk data. The chain starts with the seed signature of the Authorization header.
+ * The seed signature itself is not verified.</p>
+ *
+ * @see <a href="https://docs.aws.amazon.com/AmazonS3/latest/API/sigv4-streaming.html">
+ *     Signature Calculations for the Authorization Header: Transferring Payload in Multiple
+ *     Chunks</a>
+ */
+public class AwsChunkSignatureVerifier {
+
+  private static final String HMAC_ALGORITHM = "HmacSHA256";
+
+  private static final String STRING_TO_SIGN_PREFIX = "AWS4-HMAC-SHA256-PAYLOAD";
+
+  private static final String EMPTY_SHA256 =
+      "e3b0c44298fc1c149afbf4c8996fb92427ae41e4649b934ca495991b7852b855";
+
+  private static final Pattern AUTHORIZATION = Pattern.compile(
+      "AWS4-HMAC-SHA256\\s+Credential=[^/]+/(([^/]+)/([^/]+)/([^/]+)/aws4_request)\\s*,.*"
+          + "Signature=([0-9a-f]{64}).*");
+
+  private final byte[] signingKey;
+
+  private final String timestamp;
+
+  private final String scope;
+
+  private final MessageDigest chunkDigest;
+
+  private String previousSignature;
+
+  /**
+   * Constructs a new {@link AwsChunkSignatureVerifier}.
+   *
+   * @param signingKey the SigV4 signing key of the request.
+   * @param timestamp the request timestamp, as sent in the x-amz-date header.
+   * @param scope the credential scope, like {@code 20130524/us-east-1/s3/aws4_request}.
+   * @param seedSignature the signature of the Authorization header.
+   */
+  public AwsChunkSignatureVerifier(final byte[] signingKey, final String timestamp,
+      final String scope, final String seedSignature) {
+    this.signingKey = signingKey;
+    this.timestamp = timestamp;
+    this.scope = scope;
+    this.previousSignature = seedSignature;
+    try {
+      this.chunkDigest = MessageDigest.getInstance("SHA-256");
+    } catch (final NoSuchAlgorithmException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+
+  /**
+   * Creates a verifier for the chunks of a request.
+   *
+   * @param authorization the Authorization header of the request.
+   * @param timestamp the x-amz-date header of the request.
+   * @param secretKey the secret access key the request was signed with.
+   *
+   * @return the {@link AwsChunkSignatureVerifier}.
+   *
+   * @throws S3Exception if the request is not signed with AWS Signature Version 4.
+   */
+  public static AwsChunkSignatureVerifier forRequest(final String authorization,
+      final String timestamp, final String secretKey) {
+    final Matcher matcher = authorization == null ? null : AUTHORIZATION.matcher(authorization);
+    if (matcher == null || !matcher.matches() || timestamp == null) {
+      throw new S3Exception(FORBIDDEN.value(), "SignatureDoesNotMatch",
+          "The request is not signed with AWS Signature Version 4.");
+    }
+
+    byte[] key = hmac(("AWS4" + secretKey).getBytes(UTF_8), matcher.group(2));
+    key = hmac(key, matcher.group(3));
+    key = hmac(key, matcher.group(4));
+    key = hmac(key, "aws4_request");
+    return new AwsChunkSignatureVerifier(key, timestamp, matcher.group(1), matcher.group(5));
+  }
+
+  /**
+   * Adds data of the current chunk.
+   *
+   * @param bytes the data.
+   * @param offset the offset of the data in the array.
+   * @param length the length of the data.
+   */
+  public void update(final byte[] bytes, final int offset, final int length) {
+    chunkDigest.update(bytes, offset, length);
+  }
+
+  /**
+   * Verifies the signature of the current chunk, and starts the next chunk.
+   *
+   * @param chunkSignature the signature sent in the chunk header.
+   *
+   * @throws S3Exception if the signature doesn't match the chunk.
+   */
+  public void verify(final String chunkSignature) {
+    final String stringToSign = STRING_TO_SIGN_PREFIX + "\n"
+        + timestamp + "\n"
+        + scope + "\n"
+        + previousSignature + "\n"
+        + EMPTY_SHA256 + "\n"
+        + Hex.encodeHexString(chunkDigest.digest());
+    final String signature = Hex.encodeHexString(hmac(signingKey, stringToSign));
+    if (!signature.equals(chunkSignature)) {
+      throw new S3Exception(FORBIDDEN.value(), "SignatureDoesNotMatch",
+          "The chunk signature does not match the chunk data.");
+    }
+    previousSignature = signature;
+  }
+
+  private static byte[] hmac(final byte[] key, final String data) {
+    try {
+      final Mac mac = Mac.getInstance(HMAC_ALGORITHM);
+      mac.init(new SecretKeySpec(key, HMAC_ALGORITHM));
+      return mac.doFinal(data.getBytes(UTF_8));
+    } catch (final NoSuchAlgorithmException | InvalidKeyException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+}
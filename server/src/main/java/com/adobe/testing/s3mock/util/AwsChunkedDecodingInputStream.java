@@ -16,10 +16,12 @@
 
 package com.adobe.testing.s3mock.util;
 
+import static org.springframework.http.HttpStatus.BAD_REQUEST;
+
+import com.adobe.testing.s3mock.store.S3Exception;
+import java.io.EOFException;
 import java.io.IOException;
 import java.io.InputStream;
-import java.nio.ByteBuffer;
-import java.nio.charset.StandardCharsets;
 
 /**
  * Skips V4 style signing metadata from input streams.
@@ -38,26 +40,40 @@ import java.nio.charset.StandardCharsets;
  * [payload-bytes-of-this-chunk][crlf]
  * </pre>
  *
+ * <p>The source is read through a buffer, and chunk payloads are copied in bulk. If an
+ * {@link AwsChunkSignatureVerifier} is given, the signature of each chunk is verified as soon as
+ * the chunk has been read.</p>
+ *
  * @see
  * <a href="http://docs.aws.amazon.com/AWSJavaSDK/latest/javadoc/com/amazonaws/auth/AwsChunkedEncodingInputStream.html">
  *     AwsChunkedEncodingInputStream</a>
  */
 public class AwsChunkedDecodingInputStream extends InputStream {
 
+  private static final int BUFFER_SIZE = 64 * 1024;
+
   /**
-   * That's the max chunk buffer size used in the AWS implementation.
+   * Chunk headers are short, so anything longer than this is not a chunk header.
    */
-  private static final int MAX_CHUNK_SIZE = 256 * 1024;
+  private static final int MAX_HEADER_LENGTH = 4 * 1024;
 
-  private static final byte[] CRLF = "\r\n".getBytes(StandardCharsets.UTF_8);
-
-  private static final byte[] DELIMITER = ";".getBytes(StandardCharsets.UTF_8);
+  private static final String CHUNK_SIGNATURE = "chunk-signature=";
 
   private final InputStream source;
 
+  private final AwsChunkSignatureVerifier verifier;
+
+  private final byte[] buffer = new byte[BUFFER_SIZE];
+
+  private int position = 0;
+
+  private int limit = 0;
+
   private int remainingInChunk = 0;
 
-  private final ByteBuffer byteBuffer = ByteBuffer.allocate(MAX_CHUNK_SIZE);
+  private String chunkSignature;
+
+  private boolean finished = false;
 
   /**
    * Constructs a new {@link AwsChunkedDecodingInputStream}.
@@ -65,30 +81,62 @@ public class AwsChunkedDecodingInputStream extends InputStream {
    * @param source The {@link InputStream} to wrap.
    */
   public AwsChunkedDecodingInputStream(final InputStream source) {
+    this(source, null);
+  }
+
+  /**
+   * Constructs a new {@link AwsChunkedDecodingInputStream} verifying the chunk signatures.
+   *
+   * @param source The {@link InputStream} to wrap.
+   * @param verifier The verifier of the chunk signatures. Optional.
+   */
+  public AwsChunkedDecodingInputStream(final InputStream source,
+      final AwsChunkSignatureVerifier verifier) {
     this.source = source;
+    this.verifier = verifier;
   }
 
   @Override
   public int read() throws IOException {
-    if (remainingInChunk == 0) {
-      final byte[] hexLengthBytes = readUntil(DELIMITER);
-      if (hexLengthBytes == null) {
-        return -1;
-      }
+    final byte[] single = new byte[1];
+    final int read = read(single, 0, 1);
+    return read < 0 ? -1 : single[0] & 0xFF;
+  }
 
-      remainingInChunk =
-          Integer.parseInt(new String(hexLengthBytes, StandardCharsets.UTF_8).trim(), 16);
+  @Override
+  public int read(final byte[] bytes, final int offset, final int length) throws IOException {
+    if (length == 0) {
+      return 0;
+    }
+    if (remainingInChunk == 0 && !nextChunk()) {
+      return -1;
+    }
 
-      if (remainingInChunk == 0) {
-        return -1;
+    final int read;
+    if (position < limit) {
+      read = Math.min(Math.min(length, remainingInChunk), limit - position);
+      System.arraycopy(buffer, position, bytes, offset, read);
+      position += read;
+    } else {
+      read = source.read(bytes, offset, Math.min(length, remainingInChunk));
+      if (read < 0) {
+        throw new EOFException("Stream ended within a chunk");
       }
-
-      readUntil(CRLF);
     }
 
-    remainingInChunk--;
+    remainingInChunk -= read;
+    if (verifier != null) {
+      verifier.update(bytes, offset, read);
+      if (remainingInChunk == 0) {
+        verifier.verify(chunkSignature);
+      }
+    }
+    return read;
+  }
 
-    return source.read();
+  @Override
+  public int available() throws IOException {
+    return Math.min(limit - position, remainingInChunk);
   }
 
   @Override
@@ -97,43 +145,77 @@ public class AwsChunkedDecodingInputStream extends InputStream {
   }
 
   /**
-   * Reads this stream until the byte sequence was found.
-   *
-   * @param endSequence The byte sequence to look for in the stream. The source stream is read
-   *     until the last bytes read are equal to this sequence.
+   * Reads the header of the next chunk.
    *
-   * @return The bytes read <em>before</em> the end sequence started.
+   * @return {@code false} if there is no more data.
    */
-  private byte[] readUntil(final byte[] endSequence) throws IOException {
-    byteBuffer.clear();
-    while (!endsWith(byteBuffer.asReadOnlyBuffer(), endSequence)) {
-      final int c = source.read();
-      if (c < 0) {
-        return null;
-      }
+  private boolean nextChunk() throws IOException {
+    if (finished) {
+      return false;
+    }
 
-      final byte unsigned = (byte) (c & 0xFF);
-      byteBuffer.put(unsigned);
+    final String header = readHeader();
+    if (header == null) {
+      if (verifier != null) {
+        // the final, empty chunk is signed too, without it the data may be truncated
+        throw new S3Exception(BAD_REQUEST.value(), "IncompleteBody",
+            "The request body ended before the final chunk");
+      }
+      finished = true;
+      return false;
     }
 
-    final byte[] result = new byte[byteBuffer.position() - endSequence.length];
-    byteBuffer.rewind();
-    byteBuffer.get(result);
-    return result;
+    final int delimiterIndex = header.indexOf(';');
+    final String hexLength = delimiterIndex < 0 ? header : header.substring(0, delimiterIndex);
+    final int signatureIndex = header.indexOf(CHUNK_SIGNATURE);
+    chunkSignature = signatureIndex < 0
+        ? null
+        : header.substring(signatureIndex + CHUNK_SIGNATURE.length()).trim();
+    remainingInChunk = Integer.parseInt(hexLength.trim(), 16);
+
+    if (remainingInChunk == 0) {
+      finished = true;
+      if (verifier != null) {
+        verifier.verify(chunkSignature);
+      }
+      return false;
+    }
+    return true;
   }
 
-  private boolean endsWith(final ByteBuffer buffer, final byte[] endSequence) {
-    final int pos = buffer.position();
-    if (pos >= endSequence.length) {
-      for (int i = 0; i < endSequence.length; i++) {
-        if (buffer.get(pos - endSequence.length + i) != endSequence[i]) {
-          return false;
-        }
+  /**
+   * Reads the next non-empty line of the source, which is the next chunk header.
+   *
+   * @return The header without its line break, or {@code null} if the source ended.
+   */
+  private String readHeader() throws IOException {
+    final StringBuilder header = new StringBuilder();
+    while (true) {
+      if (position == limit && !fill()) {
+        return header.length() == 0 ? null : header.toString();
       }
 
-      return true;
+      final char c = (char) (buffer[position++] & 0xFF);
+      if (c == '\n') {
+        if (header.length() > 0) {
+          return header.toString();
+        }
+      } else if (c != '\r') {
+        if (header.length() == MAX_HEADER_LENGTH) {
+          throw new IOException("Chunk header exceeds " + MAX_HEADER_LENGTH + " bytes");
+        }
+        header.append(c);
+      }
     }
+  }
 
-    return false;
+  private boolean fill() throws IOException {
+    final int read = source.read(buffer, 0, buffer.length);
+    if (read <= 0) {
+      return false;
+    }
+    position = 0;
+    limit = read;
+    return true;
   }
 }
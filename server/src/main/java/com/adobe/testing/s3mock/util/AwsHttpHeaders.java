@@ -40,6 +40,7 @@ public final class AwsHttpHeaders {
   public static final String X_AMZ_METADATA_DIRECTIVE = "x-amz-metadata-directive";
 
   public static final String X_AMZ_CONTENT_SHA256 = "x-amz-content-sha256";
+  public static final String X_AMZ_DATE = "x-amz-date";
   public static final String X_AMZ_TAGGING = "x-amz-tagging";
   public static final String CONTENT_MD5 = "Content-MD5";
 
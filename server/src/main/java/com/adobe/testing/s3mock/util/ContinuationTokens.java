@@ -0,0 +1,116 @@
+/*
+ *  Copyright 2017-2022 Adobe.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *          http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package com.adobe.testing.s3mock.util;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import java.nio.ByteBuffer;
+import java.security.InvalidKeyException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import java.util.Arrays;
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import org.apache.commons.codec.binary.Base64;
+
+/**
+ * Creates and resolves the continuation tokens of ListObjectsV2.
+ *
+ * <p>A token is the URL-safe base64 encoding of the key to resume the listing after, together with
+ * an HMAC over the bucket name and the key. Paging needs no server side state, and tokens can't be
+ * tampered with or used for another bucket. Tokens stay valid across restarts and between
+ * instances as long as the same secret is used.</p>
+ */
+public class ContinuationTokens {
+
+  private static final String HMAC_ALGORITHM = "HmacSHA256";
+
+  private static final int MAC_LENGTH = 32;
+
+  private final SecretKeySpec secret;
+
+  /**
+   * Constructs a new {@link ContinuationTokens} signing with a random secret.
+   */
+  public ContinuationTokens() {
+    this(randomSecret());
+  }
+
+  /**
+   * Constructs a new {@link ContinuationTokens}.
+   *
+   * @param secret the secret to sign the tokens with.
+   */
+  public ContinuationTokens(final byte[] secret) {
+    this.secret = new SecretKeySpec(secret, HMAC_ALGORITHM);
+  }
+
+  /**
+   * Creates the token to continue a listing of a bucket after the given key.
+   *
+   * @param bucketName name of the listed bucket.
+   * @param continueAfter the key to continue after.
+   *
+   * @return the continuation token.
+   */
+  public String create(final String bucketName, final String continueAfter) {
+    final byte[] key = continueAfter.getBytes(UTF_8);
+    return Base64.encodeBase64URLSafeString(ByteBuffer.allocate(MAC_LENGTH + key.length)
+        .put(mac(bucketName, key))
+        .put(key)
+        .array());
+  }
+
+  /**
+   * Resolves the key to continue a listing of a bucket after.
+   *
+   * @param bucketName name of the listed bucket.
+   * @param continuationToken the token as created by {@link #create(String, String)}.
+   *
+   * @return the key to continue after, or {@code null} if the token is invalid.
+   */
+  public String resolve(final String bucketName, final String continuationToken) {
+    final byte[] token = Base64.decodeBase64(continuationToken);
+    if (token.length < MAC_LENGTH) {
+      return null;
+    }
+    final byte[] key = Arrays.copyOfRange(token, MAC_LENGTH, token.length);
+    if (!MessageDigest.isEqual(Arrays.copyOf(token, MAC_LENGTH), mac(bucketName, key))) {
+      return null;
+    }
+    return new String(key, UTF_8);
+  }
+
+  private byte[] mac(final String bucketName, final byte[] key) {
+    try {
+      final Mac mac = Mac.getInstance(HMAC_ALGORITHM);
+      mac.init(secret);
+      mac.update(bucketName.getBytes(UTF_8));
+      mac.update((byte) 0);
+      return mac.doFinal(key);
+    } catch (final NoSuchAlgorithmException | InvalidKeyException e) {
+      throw new IllegalStateException("Could not sign continuation token", e);
+    }
+  }
+
+  private static byte[] randomSecret() {
+    final byte[] secret = new byte[MAC_LENGTH];
+    new SecureRandom().nextBytes(secret);
+    return secret;
+  }
+}
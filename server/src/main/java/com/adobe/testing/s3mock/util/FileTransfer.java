@@ -0,0 +1,184 @@
+/*
+ *  Copyright 2017-2022 Adobe.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *          http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package com.adobe.testing.s3mock.util;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+import org.eclipse.jetty.server.HttpOutput;
+
+/**
+ * Util-Class for sending file regions to a response without copying them through the heap.
+ */
+public class FileTransfer {
+
+  private FileTransfer() {
+    // empty private constructor
+  }
+
+  /**
+   * Writes a region of a file to an output stream.
+   *
+   * <p>If the stream is Jetty's response output, the region is memory mapped and handed to Jetty,
+   * which writes it to the connection straight from the page cache. This completes the response.
+   * Otherwise the region is transferred with {@link FileChannel#transferTo(long, long,
+   * WritableByteChannel)}.</p>
+   *
+   * @param file the file to read from.
+   * @param position the position of the region in the file.
+   * @param count the length of the region.
+   * @param outputStream the stream to write to.
+   *
+   * @throws IOException if the file can't be read or the stream can't be written.
+   */
+  public static void transfer(final Path file, final long position, final long count,
+      final OutputStream outputStream) throws IOException {
+    try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+      transfer(channel, position, count, outputStream);
+    }
+  }
+
+  /**
+   * Writes a region of an open file to an output stream, like
+   * {@link #transfer(Path, long, long, OutputStream)} does. Only positional reads are used, so the
+   * channel may be shared.
+   *
+   * @param channel the file to read from.
+   * @param position the position of the region in the file.
+   * @param count the length of the region.
+   * @param outputStream the stream to write to.
+   *
+   * @throws IOException if the file can't be read or the stream can't be written.
+   */
+  public static void transfer(final FileChannel channel, final long position, final long count,
+      final OutputStream outputStream) throws IOException {
+    if (outputStream instanceof HttpOutput && count > 0 && count <= Integer.MAX_VALUE) {
+      ((HttpOutput) outputStream)
+          .sendContent(channel.map(FileChannel.MapMode.READ_ONLY, position, count));
+      return;
+    }
+
+    transferTo(channel, position, count, Channels.newChannel(outputStream));
+  }
+
+  /**
+   * Writes a region of the concatenation of files to an output stream.
+   *
+   * <p>A single file is transferred like {@link #transfer(Path, long, long, OutputStream)} does.
+   * Otherwise the overlap of the region with each file is transferred with
+   * {@link FileChannel#transferTo(long, long, WritableByteChannel)}.</p>
+   *
+   * @param files the files to read from, in order.
+   * @param position the position of the region in the concatenated files.
+   * @param count the length of the region.
+   * @param outputStream the stream to write to.
+   *
+   * @throws IOException if a file can't be read or the stream can't be written.
+   */
+  public static void transfer(final List<Path> files, final long position, final long count,
+      final OutputStream outputStream) throws IOException {
+    if (files.size() == 1) {
+      transfer(files.get(0), position, count, outputStream);
+      return;
+    }
+
+    final WritableByteChannel target = Channels.newChannel(outputStream);
+    long skip = position;
+    long remaining = count;
+    for (final Path file : files) {
+      if (remaining <= 0) {
+        break;
+      }
+      try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+        final long size = channel.size();
+        if (skip >= size) {
+          skip -= size;
+          continue;
+        }
+        final long length = Math.min(remaining, size - skip);
+        transferTo(channel, skip, length, target);
+        skip = 0;
+        remaining -= length;
+      }
+    }
+  }
+
+  /**
+   * Writes a region of the concatenation of open files to an output stream, like
+   * {@link #transfer(List, long, long, OutputStream)} does. Only positional reads are used, so the
+   * channels may be shared.
+   *
+   * @param channels the files to read from, in order.
+   * @param position the position of the region in the concatenated files.
+   * @param count the length of the region.
+   * @param outputStream the stream to write to.
+   *
+   * @throws IOException if a file can't be read or the stream can't be written.
+   */
+  public static void transferConcatenated(final List<FileChannel> channels, final long position,
+      final long count, final OutputStream outputStream) throws IOException {
+    if (channels.size() == 1) {
+      transfer(channels.get(0), position, count, outputStream);
+      return;
+    }
+
+    final WritableByteChannel target = Channels.newChannel(outputStream);
+    long skip = position;
+    long remaining = count;
+    for (final FileChannel channel : channels) {
+      if (remaining <= 0) {
+        break;
+      }
+      final long size = channel.size();
+      if (skip >= size) {
+        skip -= size;
+        continue;
+      }
+      final long length = Math.min(remaining, size - skip);
+      transferTo(channel, skip, length, target);
+      skip = 0;
+      remaining -= length;
+    }
+  }
+
+  /**
+   * Transfers a region of a file to a channel, looping until all of it is transferred.
+   *
+   * @param channel the file to read from.
+   * @param position the position of the region in the file.
+   * @param count the length of the region.
+   * @param target the channel to write to.
+   *
+   * @throws IOException if the file can't be read or the channel can't be written.
+   */
+  public static void transferTo(final FileChannel channel, final long position, final long count,
+      final WritableByteChannel target) throws IOException {
+    long transferred = 0;
+    while (transferred < count) {
+      final long bytes = channel.transferTo(position + transferred, count - transferred, target);
+      if (bytes <= 0) {
+        break;
+      }
+      transferred += bytes;
+    }
+  }
+}
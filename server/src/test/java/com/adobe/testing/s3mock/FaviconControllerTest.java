@@ -19,8 +19,8 @@ package com.adobe.testing.s3mock;
 import static org.assertj.core.api.Assertions.assertThat;
 import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.get;
 
-import com.adobe.testing.s3mock.store.FileStore;
 import com.adobe.testing.s3mock.store.KmsKeyStore;
+import com.adobe.testing.s3mock.store.ObjectStore;
 import org.junit.jupiter.api.Test;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.boot.test.autoconfigure.web.servlet.AutoConfigureMockMvc;
@@ -39,7 +39,7 @@ class FaviconControllerTest {
   private KmsKeyStore kmsKeyStore; //Dependency of S3MockConfiguration.
 
   @MockBean
-  private FileStore fileStore; //Dependency of S3MockConfiguration.
+  private ObjectStore fileStore; //Dependency of S3MockConfiguration.
 
   @Autowired
   private MockMvc mvc;
@@ -16,18 +16,24 @@
 
 package com.adobe.testing.s3mock;
 
-import static com.adobe.testing.s3mock.FileStoreController.collapseCommonPrefixes;
-import static com.adobe.testing.s3mock.FileStoreController.filterBucketContentsBy;
 import static com.adobe.testing.s3mock.util.AwsHttpHeaders.CONTENT_MD5;
+import static com.adobe.testing.s3mock.util.AwsHttpHeaders.X_AMZ_CONTENT_SHA256;
 import static com.adobe.testing.s3mock.util.AwsHttpParameters.ENCODING_TYPE;
 import static com.adobe.testing.s3mock.util.AwsHttpParameters.MAX_KEYS;
-import static java.util.stream.Collectors.toList;
+import static com.adobe.testing.s3mock.util.AwsHttpParameters.START_AFTER;
+import static java.nio.charset.StandardCharsets.UTF_8;
 import static org.assertj.core.api.Assertions.assertThat;
 import static org.mockito.ArgumentMatchers.any;
 import static org.mockito.ArgumentMatchers.contains;
 import static org.mockito.ArgumentMatchers.eq;
 import static org.mockito.ArgumentMatchers.isNull;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
+import static org.springframework.http.HttpStatus.BAD_REQUEST;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.asyncDispatch;
 import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.delete;
 import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.get;
 import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.head;
@@ -38,29 +44,30 @@ import com.adobe.testing.s3mock.dto.BucketContents;
 import com.adobe.testing.s3mock.dto.Buckets;
 import com.adobe.testing.s3mock.dto.ListAllMyBucketsResult;
 import com.adobe.testing.s3mock.dto.ListBucketResult;
+import com.adobe.testing.s3mock.dto.ListBucketResultV2;
 import com.adobe.testing.s3mock.dto.Owner;
-import com.adobe.testing.s3mock.store.FileStore;
 import com.adobe.testing.s3mock.store.KmsKeyStore;
+import com.adobe.testing.s3mock.store.ObjectListing;
+import com.adobe.testing.s3mock.store.ObjectStore;
+import com.adobe.testing.s3mock.store.S3Exception;
 import com.adobe.testing.s3mock.store.S3Object;
+import com.adobe.testing.s3mock.store.S3ObjectData;
+import com.adobe.testing.s3mock.util.ContinuationTokens;
 import com.adobe.testing.s3mock.util.DigestUtil;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import com.fasterxml.jackson.dataformat.xml.XmlMapper;
 import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
 import java.nio.file.Paths;
 import java.time.Instant;
 import java.util.ArrayList;
-import java.util.Arrays;
 import java.util.Collections;
 import java.util.List;
 import java.util.Map;
-import java.util.Set;
 import org.apache.commons.io.FileUtils;
-import org.apache.commons.lang3.StringUtils;
 import org.junit.jupiter.api.Test;
-import org.junit.jupiter.params.ParameterizedTest;
-import org.junit.jupiter.params.provider.MethodSource;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.boot.test.autoconfigure.web.servlet.AutoConfigureMockMvc;
 import org.springframework.boot.test.autoconfigure.web.servlet.AutoConfigureWebMvc;
@@ -68,6 +75,7 @@ import org.springframework.boot.test.context.SpringBootTest;
 import org.springframework.boot.test.mock.mockito.MockBean;
 import org.springframework.http.MediaType;
 import org.springframework.test.web.servlet.MockMvc;
+import org.springframework.test.web.servlet.MvcResult;
 import org.springframework.test.web.servlet.result.MockMvcResultMatchers;
 
 @AutoConfigureWebMvc
@@ -77,13 +85,6 @@ class FileStoreControllerTest {
   //verbatim copy from FileStoreController / FileStore
   private static final Owner TEST_OWNER = new Owner(123, "s3-mock-file-store");
   private static final ObjectMapper MAPPER = new XmlMapper();
-  private static final String[] ALL_OBJECTS =
-      new String[] {"3330/0", "33309/0", "a",
-          "b", "b/1", "b/1/1", "b/1/2", "b/2",
-          "c/1", "c/1/1",
-          "d:1", "d:1:1",
-          "eor.txt", "foo/eor.txt"};
-
   private static final String TEST_BUCKET_NAME = "testBucket";
   private static final Bucket TEST_BUCKET =
       new Bucket(Paths.get("/tmp/foo/1"), TEST_BUCKET_NAME, Instant.now().toString());
@@ -93,11 +94,14 @@ class FileStoreControllerTest {
   private KmsKeyStore kmsKeyStore; //Dependency of S3MockConfiguration.
 
   @MockBean
-  private FileStore fileStore;
+  private ObjectStore fileStore;
 
   @Autowired
   private MockMvc mockMvc;
 
+  @Autowired
+  private ContinuationTokens continuationTokens;
+
   @Test
   void testListBuckets_Ok() throws Exception {
     List<Bucket> bucketList = new ArrayList<>();
@@ -136,6 +140,47 @@ class FileStoreControllerTest {
         .andExpect(MockMvcResultMatchers.content().xml(MAPPER.writeValueAsString(expected)));
   }
 
+  @Test
+  void testGetObject_StreamsOpenedDataAndClosesIt() throws Exception {
+    when(fileStore.getBucket(TEST_BUCKET_NAME)).thenReturn(TEST_BUCKET);
+    final S3Object s3Object = new S3Object();
+    s3Object.setName("key");
+    s3Object.setEtag("etag");
+    s3Object.setSize("7");
+    s3Object.setContentType(MediaType.TEXT_PLAIN_VALUE);
+    final S3ObjectData data = mock(S3ObjectData.class);
+    when(data.getS3Object()).thenReturn(s3Object);
+    doAnswer(invocation -> {
+      invocation.getArgument(2, OutputStream.class).write("content".getBytes(UTF_8));
+      return null;
+    }).when(data).transferTo(eq(0L), eq(7L), any(OutputStream.class));
+    when(fileStore.openS3ObjectData(TEST_BUCKET_NAME, "key")).thenReturn(data);
+
+    final MvcResult result = mockMvc.perform(get("/testBucket/key")).andReturn();
+    // the data is opened with the lookup, before the body is written asynchronously
+    verify(fileStore, never()).getS3Object(any(), any());
+
+    mockMvc.perform(asyncDispatch(result))
+        .andExpect(MockMvcResultMatchers.status().isOk())
+        .andExpect(MockMvcResultMatchers.content().string("content"));
+    verify(data).close();
+  }
+
+  @Test
+  void testGetObject_ClosesDataOfUnsatisfiableRange() throws Exception {
+    when(fileStore.getBucket(TEST_BUCKET_NAME)).thenReturn(TEST_BUCKET);
+    final S3Object s3Object = new S3Object();
+    s3Object.setName("key");
+    s3Object.setSize("7");
+    final S3ObjectData data = mock(S3ObjectData.class);
+    when(data.getS3Object()).thenReturn(s3Object);
+    when(fileStore.openS3ObjectData(TEST_BUCKET_NAME, "key")).thenReturn(data);
+
+    mockMvc.perform(get("/testBucket/key").header("Range", "bytes=10-20"))
+        .andExpect(MockMvcResultMatchers.status().isRequestedRangeNotSatisfiable());
+    verify(data).close();
+  }
+
   @Test
   void testHeadBucket_Ok() throws Exception {
     when(fileStore.doesBucketExist(TEST_BUCKET_NAME)).thenReturn(true);
@@ -260,7 +305,7 @@ class FileStoreControllerTest {
   void testListObjectsInsideBucket_InternalServerError() throws Exception {
     givenBucket();
     String prefix = null;
-    when(fileStore.getS3Objects(TEST_BUCKET_NAME, prefix))
+    when(fileStore.listObjects(TEST_BUCKET_NAME, prefix, null, null, 1000))
         .thenThrow(new IOException("THIS IS EXPECTED"));
 
     mockMvc.perform(
@@ -280,18 +325,84 @@ class FileStoreControllerTest {
         new ListBucketResult(TEST_BUCKET_NAME, null, null, 1000, false, null, null,
             Collections.singletonList(bucketContents), Collections.emptyList());
 
-    when(fileStore.getS3Objects(TEST_BUCKET_NAME, prefix))
-        .thenReturn(Collections.singletonList(s3Object(key, "etag")));
+    when(fileStore.listObjects(TEST_BUCKET_NAME, prefix, null, null, 1000))
+        .thenReturn(
+            new ObjectListing(Collections.singletonMap(key, s3Object(key, "etag")),
+                Collections.emptyList(), false, null));
 
-    mockMvc.perform(
+    mockMvc.perform(asyncDispatch(mockMvc.perform(
             get("/testBucket")
                 .accept(MediaType.APPLICATION_XML)
                 .contentType(MediaType.APPLICATION_XML)
-        ).andExpect(MockMvcResultMatchers.status().isOk())
+        ).andReturn())).andExpect(MockMvcResultMatchers.status().isOk())
+        .andExpect(MockMvcResultMatchers.content().contentType(MediaType.APPLICATION_XML))
+        .andExpect(MockMvcResultMatchers.content().xml(MAPPER.writeValueAsString(expected)));
+  }
+
+  @Test
+  void testListObjectsInsideBucket_UrlEncoding() throws Exception {
+    givenBucket();
+    String key = "folder/key:1";
+    BucketContents bucketContents = bucketContents("folder%2Fkey%3A1");
+    ListBucketResult expected =
+        new ListBucketResult(TEST_BUCKET_NAME, null, null, 1000, false, "url", null,
+            Collections.singletonList(bucketContents), Collections.singletonList("other%3A%2F"));
+
+    when(fileStore.listObjects(TEST_BUCKET_NAME, null, "/", null, 1000))
+        .thenReturn(
+            new ObjectListing(Collections.singletonMap(key, s3Object(key, "etag")),
+                Collections.singletonList("other:/"), false, null));
+
+    mockMvc.perform(asyncDispatch(mockMvc.perform(
+            get("/testBucket")
+                .accept(MediaType.APPLICATION_XML)
+                .contentType(MediaType.APPLICATION_XML)
+                .queryParam("delimiter", "/")
+                .queryParam(ENCODING_TYPE, "url")
+        ).andReturn())).andExpect(MockMvcResultMatchers.status().isOk())
+        .andExpect(MockMvcResultMatchers.content().contentType(MediaType.APPLICATION_XML))
+        .andExpect(MockMvcResultMatchers.content().xml(MAPPER.writeValueAsString(expected)));
+  }
+
+  @Test
+  void testListObjectsInsideBucketV2_UrlEncoding() throws Exception {
+    givenBucket();
+    String key = "folder/key:1";
+    BucketContents bucketContents = bucketContents("folder%2Fkey%3A1");
+    ListBucketResultV2 expected =
+        new ListBucketResultV2(TEST_BUCKET_NAME, "folder%2F", 1000, false,
+            Collections.singletonList(bucketContents),
+            Collections.singletonList("folder%2Fa%3A%2F"), null, "1", null, "folder%2Fa", "url");
+
+    when(fileStore.listObjects(TEST_BUCKET_NAME, "folder/", "/", "folder/a", 1000))
+        .thenReturn(
+            new ObjectListing(Collections.singletonMap(key, s3Object(key, "etag")),
+                Collections.singletonList("folder/a:/"), false, null));
+
+    mockMvc.perform(asyncDispatch(mockMvc.perform(
+            get("/testBucket")
+                .accept(MediaType.APPLICATION_XML)
+                .contentType(MediaType.APPLICATION_XML)
+                .queryParam("list-type", "2")
+                .queryParam("prefix", "folder/")
+                .queryParam("delimiter", "/")
+                .queryParam(START_AFTER, "folder/a")
+                .queryParam(ENCODING_TYPE, "url")
+        ).andReturn())).andExpect(MockMvcResultMatchers.status().isOk())
         .andExpect(MockMvcResultMatchers.content().contentType(MediaType.APPLICATION_XML))
         .andExpect(MockMvcResultMatchers.content().xml(MAPPER.writeValueAsString(expected)));
   }
 
+  @Test
+  void testContinuationTokens_RandomSecretByDefault() {
+    final String forged = new ContinuationTokens("\"\"".getBytes(UTF_8))
+        .create(TEST_BUCKET_NAME, "key");
+
+    assertThat(continuationTokens.resolve(TEST_BUCKET_NAME, forged)).isNull();
+    assertThat(continuationTokens.resolve(TEST_BUCKET_NAME,
+        continuationTokens.create(TEST_BUCKET_NAME, "key"))).isEqualTo("key");
+  }
+
   @Test
   void testPutObject_Ok() throws Exception {
     givenBucket();
@@ -302,7 +413,7 @@ class FileStoreControllerTest {
 
     when(fileStore.putS3Object(eq(TEST_BUCKET_NAME), eq(key), contains(MediaType.TEXT_PLAIN_VALUE),
         isNull(),
-        any(InputStream.class), eq(false), any(Map.class), isNull(), isNull()))
+        any(InputStream.class), eq(false), any(Map.class), isNull(), isNull(), isNull()))
         .thenReturn(s3Object(key, digest));
 
     mockMvc.perform(
@@ -314,6 +425,27 @@ class FileStoreControllerTest {
         .andExpect(MockMvcResultMatchers.header().string("etag", "\"" + digest + "\""));
   }
 
+  @Test
+  void testPutObject_ChunkSignaturesNotVerifiedByDefault() throws Exception {
+    givenBucket();
+    String key = "sampleFile.txt";
+    byte[] chunked = "5;chunk-signature=unchecked\r\n12345\r\n0;chunk-signature=unchecked\r\n"
+        .getBytes(UTF_8);
+
+    when(fileStore.putS3Object(eq(TEST_BUCKET_NAME), eq(key), contains(MediaType.TEXT_PLAIN_VALUE),
+        isNull(),
+        any(InputStream.class), eq(true), any(Map.class), isNull(), isNull(), isNull()))
+        .thenReturn(s3Object(key, "etag"));
+
+    mockMvc.perform(
+            put("/testBucket/" + key)
+                .accept(MediaType.APPLICATION_XML)
+                .contentType(MediaType.TEXT_PLAIN_VALUE)
+                .header(X_AMZ_CONTENT_SHA256, "STREAMING-AWS4-HMAC-SHA256-PAYLOAD")
+                .content(chunked)
+        ).andExpect(MockMvcResultMatchers.status().isOk());
+  }
+
   @Test
   void testPutObject_md5_Ok() throws Exception {
     givenBucket();
@@ -325,7 +457,8 @@ class FileStoreControllerTest {
 
     when(fileStore.putS3Object(eq(TEST_BUCKET_NAME), eq(key), contains(MediaType.TEXT_PLAIN_VALUE),
         isNull(),
-        any(InputStream.class), eq(false), any(Map.class), isNull(), isNull()))
+        any(InputStream.class), eq(false), any(Map.class), isNull(), isNull(),
+        eq(base64Digest)))
         .thenReturn(s3Object(key, hexDigest));
 
     mockMvc.perform(
@@ -344,13 +477,14 @@ class FileStoreControllerTest {
     String key = "sampleFile.txt";
 
     File testFile = new File(UPLOAD_FILE_NAME);
-    String hexDigest = DigestUtil.getHexDigest(FileUtils.openInputStream(testFile));
     String base64Digest = DigestUtil.getBase64Digest(FileUtils.openInputStream(testFile));
 
     when(fileStore.putS3Object(eq(TEST_BUCKET_NAME), eq(key), contains(MediaType.TEXT_PLAIN_VALUE),
         isNull(),
-        any(InputStream.class), eq(false), any(Map.class), isNull(), isNull()))
-        .thenReturn(s3Object(key, hexDigest));
+        any(InputStream.class), eq(false), any(Map.class), isNull(), isNull(),
+        eq(base64Digest + 1)))
+        .thenThrow(new S3Exception(BAD_REQUEST.value(), "BadRequest",
+            "Content-MD5 does not match object md5"));
 
     mockMvc.perform(
         put("/testBucket/" + key)
@@ -377,155 +511,4 @@ class FileStoreControllerTest {
     s3Object.setSize("size");
     return s3Object;
   }
-
-  /**
-   * Parameter factory.
-   * Taken from ListObjectIT to make sure we unit test against the same data.
-   */
-  public static Iterable<Param> data() {
-    return Arrays.asList(
-        param(null, null).keys(ALL_OBJECTS),
-        param("", null).keys(ALL_OBJECTS),
-        param(null, "").keys(ALL_OBJECTS),
-        param(null, "/").keys("a", "b", "d:1", "d:1:1", "eor.txt")
-            .prefixes("3330/", "foo/", "c/", "b/", "33309/"),
-        param("", "").keys(ALL_OBJECTS),
-        param("/", null),
-        param("b", null).keys("b", "b/1", "b/1/1", "b/1/2", "b/2"),
-        param("b/", null).keys("b/1", "b/1/1", "b/1/2", "b/2"),
-        param("b", "").keys("b", "b/1", "b/1/1", "b/1/2", "b/2"),
-        param("b", "/").keys("b").prefixes("b/"),
-        param("b/", "/").keys("b/1", "b/2").prefixes("b/1/"),
-        param("b/1", "/").keys("b/1").prefixes("b/1/"),
-        param("b/1/", "/").keys("b/1/1", "b/1/2"),
-        param("c", "/").prefixes("c/"),
-        param("c/", "/").keys("c/1").prefixes("c/1/"),
-        param("eor", "/").keys("eor.txt")
-    );
-  }
-
-  @ParameterizedTest
-  @MethodSource("data")
-  public void testCommonPrefixesAndBucketContentFilter(final Param parameters) {
-    String prefix = parameters.prefix;
-    String delimiter = parameters.delimiter;
-    List<BucketContents> bucketContents = createBucketContentsList(prefix);
-    Set<String> commonPrefixes = collapseCommonPrefixes(prefix, delimiter, bucketContents);
-
-    List<BucketContents> filteredBucketContents =
-        filterBucketContentsBy(bucketContents, commonPrefixes);
-
-    String[] expectedPrefixes = parameters.expectedPrefixes;
-    String[] expectedKeys = parameters.expectedKeys;
-
-    assertThat(commonPrefixes).hasSize(expectedPrefixes.length);
-
-    assertThat(commonPrefixes)
-        .as("Returned prefixes are correct")
-        .containsExactlyInAnyOrderElementsOf(Arrays.asList(expectedPrefixes));
-
-    assertThat(filteredBucketContents.stream().map(BucketContents::getKey).collect(toList()))
-        .as("Returned keys are correct")
-        .containsExactlyInAnyOrderElementsOf(Arrays.asList(expectedKeys));
-  }
-
-  @Test
-  void testCommonPrefixesNoPrefixNoDelimiter() {
-    String prefix = "";
-    String delimiter = "";
-    List<BucketContents> bucketContents = createBucketContentsList();
-
-    Set<String> commonPrefixes = collapseCommonPrefixes(prefix, delimiter, bucketContents);
-    assertThat(commonPrefixes).hasSize(0);
-  }
-
-  @Test
-  void testCommonPrefixesPrefixNoDelimiter() {
-    String prefix = "prefixa";
-    String delimiter = "";
-    List<BucketContents> bucketContents = createBucketContentsList();
-
-    Set<String> commonPrefixes = collapseCommonPrefixes(prefix, delimiter, bucketContents);
-    assertThat(commonPrefixes).hasSize(0);
-  }
-
-  @Test
-  void testCommonPrefixesNoPrefixDelimiter() {
-    String prefix = "";
-    String delimiter = "/";
-    List<BucketContents> bucketContents = createBucketContentsList();
-
-    Set<String> commonPrefixes = collapseCommonPrefixes(prefix, delimiter, bucketContents);
-    assertThat(commonPrefixes).hasSize(5).contains("3330/", "foo/", "c/", "b/", "33309/");
-  }
-
-  @Test
-  void testCommonPrefixesPrefixDelimiter() {
-    String prefix = "3330";
-    String delimiter = "/";
-    List<BucketContents> bucketContents = createBucketContentsList();
-
-    Set<String> commonPrefixes = collapseCommonPrefixes(prefix, delimiter, bucketContents);
-    assertThat(commonPrefixes).hasSize(2).contains("3330/", "33309/");
-  }
-
-  List<BucketContents> createBucketContentsList() {
-    return createBucketContentsList(null);
-
-  }
-
-  List<BucketContents> createBucketContentsList(String prefix) {
-    List<BucketContents> list = new ArrayList<>();
-    for (String object : ALL_OBJECTS) {
-      if (StringUtils.isNotEmpty(prefix)) {
-        if (!object.startsWith(prefix)) {
-          continue;
-        }
-      }
-      list.add(createBucketContents(object));
-    }
-    return list;
-  }
-
-  BucketContents createBucketContents(String key) {
-    String lastModified = "lastModified";
-    String etag = "etag";
-    String size = "size";
-    String storageClass = "storageClass";
-    Owner owner = new Owner(0L, "name");
-    return new BucketContents(key, lastModified, etag, size, storageClass, owner);
-  }
-
-  static class Param {
-    final String prefix;
-    final String delimiter;
-    String[] expectedPrefixes = new String[0];
-    String[] expectedKeys = new String[0];
-
-    private Param(final String prefix, final String delimiter) {
-      this.prefix = prefix;
-      this.delimiter = delimiter;
-    }
-
-    Param prefixes(final String... expectedPrefixes) {
-      this.expectedPrefixes = expectedPrefixes;
-      return this;
-    }
-
-    Param keys(final String... expectedKeys) {
-      this.expectedKeys = expectedKeys;
-      return this;
-    }
-
-    @Override
-    public String toString() {
-      return String.format("prefix=%s, delimiter=%s", prefix, delimiter);
-    }
-  }
-
-  static Param param(final String prefix, final String delimiter) {
-    return new Param(prefix, delimiter);
-  }
 }
-
-
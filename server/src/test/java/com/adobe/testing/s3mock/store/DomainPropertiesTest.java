@@ -0,0 +1,46 @@
+/*
+ *  Copyright 2017-2022 Adobe.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *          http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package com.adobe.testing.s3mock.store;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import org.junit.jupiter.api.Test;
+import org.springframework.util.unit.DataSize;
+
+class DomainPropertiesTest {
+
+  @Test
+  void acceptsInlineThresholdsUpToTheMaximum() {
+    final DomainProperties properties = new DomainProperties();
+
+    properties.setInlineThreshold(DomainProperties.MAX_INLINE_THRESHOLD);
+
+    assertThat(properties.getInlineThreshold()).isEqualTo(DomainProperties.MAX_INLINE_THRESHOLD);
+  }
+
+  @Test
+  void rejectsInlineThresholdsOutOfRange() {
+    final DomainProperties properties = new DomainProperties();
+
+    assertThrows(IllegalArgumentException.class,
+        () -> properties.setInlineThreshold(DataSize.ofBytes(-1)));
+    assertThrows(IllegalArgumentException.class,
+        () -> properties.setInlineThreshold(DataSize.ofGigabytes(2)));
+    assertThat(properties.getInlineThreshold()).isEqualTo(DataSize.ofBytes(0));
+  }
+}
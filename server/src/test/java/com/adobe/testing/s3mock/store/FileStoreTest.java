@@ -21,6 +21,7 @@ import static java.util.stream.Collectors.toList;
 import static java.util.stream.IntStream.rangeClosed;
 import static org.assertj.core.api.Assertions.assertThat;
 import static org.assertj.core.util.Files.contentOf;
+import static org.springframework.http.HttpStatus.REQUESTED_RANGE_NOT_SATISFIABLE;
 
 import com.adobe.testing.s3mock.dto.Bucket;
 import com.adobe.testing.s3mock.dto.MultipartUpload;
@@ -30,17 +31,25 @@ import com.adobe.testing.s3mock.dto.Range;
 import com.adobe.testing.s3mock.dto.Tag;
 import com.adobe.testing.s3mock.util.DigestUtil;
 import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.List;
 import java.util.UUID;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import org.apache.commons.codec.digest.DigestUtils;
 import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
 import org.apache.commons.lang3.ArrayUtils;
 import org.apache.http.entity.ContentType;
 import org.junit.jupiter.api.AfterEach;
@@ -50,9 +59,10 @@ import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.boot.test.context.SpringBootTest;
 import org.springframework.boot.test.mock.mockito.MockBean;
 import org.springframework.http.MediaType;
+import org.springframework.util.unit.DataSize;
 
 @SpringBootTest(classes = {DomainConfiguration.class})
-class FileStoreTest {
+class FileStoreTest extends ObjectStoreTestBase<FileStore> {
 
   private static final String SIGNED_CONTENT =
       "24;chunk-signature=11707b33deb094881a16c70e9cbd5d79053a0bb235c25674e3cf0fed601683b5\r\n"
@@ -89,6 +99,21 @@ class FileStoreTest {
   @MockBean
   private KmsKeyStore kmsKeyStore;
 
+  /**
+   * Stores opened by a test, closed after it.
+   */
+  private final List<FileStore> openedStores = new ArrayList<>();
+
+  /**
+   * Temp root folders of the stores opened by a test, deleted after it.
+   */
+  private final List<File> tempRootFolders = new ArrayList<>();
+
+  @Override
+  FileStore createStore() {
+    return new FileStore(properties(new File(root, "store").getAbsolutePath(), false, BUCKET));
+  }
+
   /**
    * Creates a bucket and checks that it exists.
    *
@@ -187,6 +212,67 @@ class FileStoreTest {
         contentOf(returnedObject.getDataFile(), UTF_8));
   }
 
+  @Test
+  void shouldStoreFileMatchingContentMd5() throws Exception {
+    final File sourceFile = new File(TEST_FILE_PATH);
+    final String name = sourceFile.getName();
+    final String md5 = DigestUtil.getHexDigest(new FileInputStream(sourceFile));
+    final String contentMd5 = DigestUtil.getBase64Digest(new FileInputStream(sourceFile));
+
+    final S3Object returnedObject =
+        fileStore.putS3Object(TEST_BUCKET_NAME, name, null, null,
+            new FileInputStream(sourceFile), false, Collections.emptyMap(), null, null,
+            contentMd5);
+
+    assertThat(returnedObject.getEtag()).isEqualTo(md5);
+    assertThat(contentOf(returnedObject.getDataFile(), UTF_8))
+        .isEqualTo(contentOf(sourceFile, UTF_8));
+    assertThat(returnedObject.getDataFile().getParentFile().list())
+        .as("Temporary files should have been moved")
+        .containsExactlyInAnyOrder(returnedObject.getDataFile().getName(), "metadata");
+  }
+
+  @Test
+  void shouldNotStoreFileNotMatchingContentMd5() throws Exception {
+    final File sourceFile = new File(TEST_FILE_PATH);
+    final String name = sourceFile.getName();
+    final S3Object storedObject = fileStore.putS3Object(TEST_BUCKET_NAME, name, null, null,
+        new ByteArrayInputStream(UNSIGNED_CONTENT.getBytes(UTF_8)), false);
+
+    final S3Exception e = Assertions.assertThrows(S3Exception.class, () ->
+        fileStore.putS3Object(TEST_BUCKET_NAME, name, null, null,
+            new FileInputStream(sourceFile), false, Collections.emptyMap(), null, null,
+            DigestUtil.getBase64Digest(new ByteArrayInputStream(new byte[0]))));
+
+    assertThat(e.getStatus()).isEqualTo(400);
+    final S3Object returnedObject = fileStore.getS3Object(TEST_BUCKET_NAME, name);
+    assertThat(returnedObject.getEtag()).isEqualTo(storedObject.getEtag());
+    assertThat(contentOf(returnedObject.getDataFile(), UTF_8)).isEqualTo(UNSIGNED_CONTENT);
+    assertThat(returnedObject.getDataFile().getParentFile().list())
+        .as("Temporary files should have been deleted")
+        .containsExactlyInAnyOrder(returnedObject.getDataFile().getName(), "metadata");
+  }
+
+  @Test
+  void shouldNotCreateObjectFolderForDataNotMatchingContentMd5() throws Exception {
+    final DomainProperties properties = properties(null, false, TEST_BUCKET_NAME);
+    properties.setInlineThreshold(DataSize.ofBytes(16));
+    final FileStore store = openStore(properties);
+    final String contentMd5 = DigestUtil.getBase64Digest(new ByteArrayInputStream(new byte[0]));
+
+    Assertions.assertThrows(S3Exception.class, () ->
+        store.putS3Object(TEST_BUCKET_NAME, "small", null, null,
+            new ByteArrayInputStream("content".getBytes(UTF_8)), false,
+            Collections.emptyMap(), null, null, contentMd5));
+    Assertions.assertThrows(S3Exception.class, () ->
+        store.putS3Object(TEST_BUCKET_NAME, "large", null, null,
+            new ByteArrayInputStream("more than sixteen bytes".getBytes(UTF_8)), false,
+            Collections.emptyMap(), null, null, contentMd5));
+
+    assertThat(new File(store.getRootFolder(), TEST_BUCKET_NAME).list()).isEmpty();
+    assertThat(new File(store.getRootFolder(), ".uploads").list()).isEmpty();
+  }
+
   /**
    * Checks that an object can be stored in a bucket.
    *
@@ -317,6 +403,31 @@ class FileStoreTest {
         contentOf(returnedObject.getDataFile(), UTF_8));
   }
 
+  /**
+   * Checks that buckets and objects already present in a reused root folder are found.
+   *
+   * @throws Exception if an Exception occurred.
+   */
+  @Test
+  void shouldFindBucketsAndObjectsOfExistingRootFolder() throws Exception {
+    final File sourceFile = new File(TEST_FILE_PATH);
+    final String name = "/app/config/" + sourceFile.getName();
+
+    final S3Object storedObject = fileStore
+        .putS3Object(TEST_BUCKET_NAME, name, TEXT_PLAIN, ENCODING_GZIP,
+            new FileInputStream(sourceFile), false);
+
+    final FileStore reopenedStore =
+        openStore(properties(fileStore.getRootFolder().getAbsolutePath(), true));
+    assertThat(reopenedStore.doesBucketExist(TEST_BUCKET_NAME)).isTrue();
+    final S3Object returnedObject = reopenedStore.getS3Object(TEST_BUCKET_NAME, name);
+
+    assertThat(returnedObject.getName()).isEqualTo(name);
+    assertThat(returnedObject.getEtag()).isEqualTo(storedObject.getEtag());
+    assertThat(contentOf(sourceFile, UTF_8)).as("Files should be equal").isEqualTo(
+        contentOf(returnedObject.getDataFile(), UTF_8));
+  }
+
   /**
    * Checks that we can set and retrieve tags for a given file.
    *
@@ -343,6 +454,32 @@ class FileStoreTest {
         .isEqualTo("bar");
   }
 
+  @Test
+  void shouldReplaceTaggedObjectInsteadOfChangingIt() throws Exception {
+    final S3Object storedObject = fileStore.putS3Object(TEST_BUCKET_NAME, "tagged", TEXT_PLAIN,
+        ENCODING_GZIP, new ByteArrayInputStream(UNSIGNED_CONTENT.getBytes(UTF_8)), false);
+
+    fileStore.setObjectTags(TEST_BUCKET_NAME, "tagged",
+        Collections.singletonList(new Tag("foo", "bar")));
+
+    assertThat(storedObject.getTags()).isEmpty();
+    final S3Object returnedObject = fileStore.getS3Object(TEST_BUCKET_NAME, "tagged");
+    assertThat(returnedObject.getTags()).extracting(Tag::getKey).containsExactly("foo");
+    assertThat(contentOf(returnedObject.getDataFile(), UTF_8)).isEqualTo(UNSIGNED_CONTENT);
+  }
+
+  @Test
+  void shouldNotSetTagsOfUnknownObject() {
+    fileStore.createBucket(TEST_BUCKET_NAME);
+
+    final S3Exception e = Assertions.assertThrows(S3Exception.class, () ->
+        fileStore.setObjectTags(TEST_BUCKET_NAME, "unknown",
+            Collections.singletonList(new Tag("foo", "bar"))));
+
+    assertThat(e.getStatus()).isEqualTo(404);
+    assertThat(e.getCode()).isEqualTo("NoSuchKey");
+  }
+
   /**
    * Tests if an object can be copied from one to another bucket.
    *
@@ -371,6 +508,24 @@ class FileStoreTest {
         contentOf(copiedObject.getDataFile(), UTF_8));
   }
 
+  @Test
+  void shouldCopyObjectReusingDataAndEtag() throws Exception {
+    final S3Object sourceObject = fileStore.putS3Object(TEST_BUCKET_NAME, "source", TEXT_PLAIN,
+        ENCODING_GZIP, new ByteArrayInputStream("content".getBytes()), false);
+
+    fileStore.copyS3Object(TEST_BUCKET_NAME, "source", TEST_BUCKET_NAME, "destination");
+    final S3Object copiedObject = fileStore.getS3Object(TEST_BUCKET_NAME, "destination");
+
+    assertThat(copiedObject.getEtag()).isEqualTo(sourceObject.getEtag());
+    assertThat(copiedObject.getSize()).isEqualTo(sourceObject.getSize());
+    assertThat(Files.isSameFile(copiedObject.getDataFile().toPath(),
+        sourceObject.getDataFile().toPath())).as("Data file should be linked").isTrue();
+
+    fileStore.putS3Object(TEST_BUCKET_NAME, "source", TEXT_PLAIN, ENCODING_GZIP,
+        new ByteArrayInputStream("replaced".getBytes()), false);
+    assertThat(contentOf(copiedObject.getDataFile(), UTF_8)).isEqualTo("content");
+  }
+
   /**
    * Tests if an object can be copied from one to another bucket.
    *
@@ -427,6 +582,24 @@ class FileStoreTest {
     assertThat(s3Object).as("Object should be null!").isNull();
   }
 
+  @Test
+  void shouldKeepNestedObjectsWhenDeletingObject() throws Exception {
+    fileStore.putS3Object(TEST_BUCKET_NAME, "a", TEXT_PLAIN, ENCODING_GZIP,
+        new ByteArrayInputStream("a".getBytes()), false);
+    fileStore.putS3Object(TEST_BUCKET_NAME, "a/b", TEXT_PLAIN, ENCODING_GZIP,
+        new ByteArrayInputStream("a/b".getBytes()), false);
+
+    assertThat(fileStore.deleteObject(TEST_BUCKET_NAME, "a")).isTrue();
+
+    assertThat(fileStore.getS3Objects(TEST_BUCKET_NAME, null)).extracting(S3Object::getName)
+        .containsExactly("a/b");
+    final S3Object nested = fileStore.getS3Object(TEST_BUCKET_NAME, "a/b");
+    assertThat(contentOf(nested.getDataFile(), UTF_8)).isEqualTo("a/b");
+
+    assertThat(fileStore.deleteObject(TEST_BUCKET_NAME, "a/b")).isTrue();
+    assertThat(new File(fileStore.getRootFolder(), TEST_BUCKET_NAME).list()).isEmpty();
+  }
+
   /**
    * Checks if a bucket can be deleted.
    *
@@ -530,10 +703,8 @@ class FileStoreTest {
         DigestUtils.md5("Part2")
     );
 
-    assertThat(
-        Paths.get(fileStore.getRootFolder().getAbsolutePath(), TEST_BUCKET_NAME, fileName,
-                "fileData").toFile()
-            .exists()).as("File does not exist!").isTrue();
+    assertThat(fileStore.getS3Object(TEST_BUCKET_NAME, fileName).getDataFile().exists())
+        .as("File does not exist!").isTrue();
     assertThat(
         Paths.get(fileStore.getRootFolder().getAbsolutePath(), TEST_BUCKET_NAME, fileName,
                 "metadata").toFile()
@@ -603,6 +774,28 @@ class FileStoreTest {
     fileStore.abortMultipartUpload(TEST_BUCKET_NAME, fileName, uploadId);
   }
 
+  @Test
+  void returnsPartsWithTheirUploadedPartNumbers() throws IOException {
+    final String fileName = "PartFile";
+    final String uploadId = "12345";
+    fileStore.prepareMultipartUpload(TEST_BUCKET_NAME, fileName, DEFAULT_CONTENT_TYPE,
+        ENCODING_GZIP, uploadId, TEST_OWNER, TEST_OWNER);
+
+    fileStore.putPart(TEST_BUCKET_NAME, fileName, uploadId, "7",
+        new ByteArrayInputStream("Part7".getBytes()), false);
+    fileStore.putPart(TEST_BUCKET_NAME, fileName, uploadId, "3",
+        new ByteArrayInputStream("Part3".getBytes()), false);
+
+    final List<Part> parts =
+        fileStore.getMultipartUploadParts(TEST_BUCKET_NAME, fileName, uploadId);
+
+    assertThat(parts).extracting(Part::getPartNumber).containsExactly(3, 7);
+    assertThat(parts).extracting(Part::getETag)
+        .containsExactly(DigestUtils.md5Hex("Part3"), DigestUtils.md5Hex("Part7"));
+
+    fileStore.abortMultipartUpload(TEST_BUCKET_NAME, fileName, uploadId);
+  }
+
   private Part prepareExpectedPart(final int partNumber, final String content) {
     Part part = new Part();
     part.setETag(String.format("%s", DigestUtils.md5Hex(content)));
@@ -780,6 +973,26 @@ class FileStoreTest {
     fileStore.abortMultipartUpload(TEST_BUCKET_NAME, targetFile, uploadId);
   }
 
+  @Test
+  void copyPartCopiesRangeAndReturnsItsMd5() throws Exception {
+    final String sourceFile = UUID.randomUUID().toString();
+    final String uploadId = UUID.randomUUID().toString();
+    final String targetFile = UUID.randomUUID().toString();
+
+    fileStore.putS3Object(TEST_BUCKET_NAME, sourceFile, DEFAULT_CONTENT_TYPE, ENCODING_GZIP,
+        new ByteArrayInputStream("0123456789".getBytes()), false);
+    fileStore.prepareMultipartUpload(TEST_BUCKET_NAME, targetFile, DEFAULT_CONTENT_TYPE,
+        ENCODING_GZIP, uploadId, TEST_OWNER, TEST_OWNER);
+
+    final String etag = fileStore.copyPart(TEST_BUCKET_NAME, sourceFile, new Range(2, 5), "1",
+        TEST_BUCKET_NAME, targetFile, uploadId);
+
+    assertThat(etag).isEqualTo(DigestUtils.md5Hex("2345"));
+    assertThat(contentOf(Paths.get(fileStore.getRootFolder().getAbsolutePath(), TEST_BUCKET_NAME,
+        targetFile, uploadId, "1.part").toFile(), UTF_8)).isEqualTo("2345");
+    fileStore.abortMultipartUpload(TEST_BUCKET_NAME, targetFile, uploadId);
+  }
+
   @Test
   void missingUploadPreparation() {
     Range range = new Range(0, 0);
@@ -863,6 +1076,22 @@ class FileStoreTest {
     assertThat(result).hasSize(1);
   }
 
+  @Test
+  void keepsObjectsApartWhoseNamesDecodeToTheSameKey() throws Exception {
+    fileStore.createBucket(TEST_BUCKET_NAME);
+    fileStore.putS3Object(TEST_BUCKET_NAME, "a+b", TEXT_PLAIN, ENCODING_GZIP,
+        new ByteArrayInputStream("plus".getBytes()), false);
+    fileStore.putS3Object(TEST_BUCKET_NAME, "a b", TEXT_PLAIN, ENCODING_GZIP,
+        new ByteArrayInputStream("space".getBytes()), false);
+
+    assertThat(contentOf(fileStore.getS3Object(TEST_BUCKET_NAME, "a+b").getDataFile(), UTF_8))
+        .isEqualTo("plus");
+    assertThat(contentOf(fileStore.getS3Object(TEST_BUCKET_NAME, "a b").getDataFile(), UTF_8))
+        .isEqualTo("space");
+    assertThat(fileStore.getS3Objects(TEST_BUCKET_NAME, null)).extracting(S3Object::getName)
+        .containsExactly("a+b", "a b");
+  }
+
   @Test
   void multipartUploadPartsAreSortedNumerically() throws IOException {
     fileStore.createBucket(TEST_BUCKET_NAME);
@@ -887,8 +1116,658 @@ class FileStoreTest {
         .collect(toList()).toArray(new String[] {}));
   }
 
+  @Test
+  void storesMultipartUploadAsManifestOfParts() throws IOException {
+    final DomainProperties properties = properties(null, false);
+    properties.setMultipartAssembly(MultipartAssembly.MANIFEST);
+    final FileStore manifestStore = openStore(properties);
+    manifestStore.createBucket(TEST_BUCKET_NAME);
+    final String uploadId = UUID.randomUUID().toString();
+    final String filename = UUID.randomUUID().toString();
+    manifestStore.prepareMultipartUpload(TEST_BUCKET_NAME, filename, TEXT_PLAIN, ENCODING_GZIP,
+        uploadId, TEST_OWNER, TEST_OWNER);
+    for (int i = 1; i < 4; i++) {
+      manifestStore.putPart(TEST_BUCKET_NAME, filename, uploadId, String.valueOf(i),
+          new ByteArrayInputStream(("Part" + i).getBytes()), false);
+    }
+
+    final Part part1 = new Part();
+    part1.setPartNumber(1);
+    final Part part3 = new Part();
+    part3.setPartNumber(3);
+    manifestStore.completeMultipartUpload(TEST_BUCKET_NAME, filename, uploadId,
+        Arrays.asList(part1, part3));
+
+    final S3Object s3Object = manifestStore.getS3Object(TEST_BUCKET_NAME, filename);
+    assertThat(s3Object.dataFiles()).hasSize(2).allMatch(Files::exists);
+    assertThat(s3Object.getDataFile()).doesNotExist();
+    assertThat(s3Object.getSize()).isEqualTo("10");
+
+    manifestStore.copyS3Object(TEST_BUCKET_NAME, filename, TEST_BUCKET_NAME, "copy");
+    assertThat(contentOf(manifestStore.getS3Object(TEST_BUCKET_NAME, "copy").getDataFile(),
+        UTF_8)).isEqualTo("Part1Part3");
+
+    manifestStore.putS3Object(TEST_BUCKET_NAME, filename, TEXT_PLAIN, ENCODING_GZIP,
+        new ByteArrayInputStream("replaced".getBytes()), false);
+    assertThat(s3Object.dataFiles()).noneMatch(Files::exists);
+  }
+
+  @Test
+  void rejectsPartsOfCompletedManifestUpload() throws IOException {
+    final DomainProperties properties = properties(null, false);
+    properties.setMultipartAssembly(MultipartAssembly.MANIFEST);
+    final FileStore manifestStore = openStore(properties);
+    manifestStore.createBucket(TEST_BUCKET_NAME);
+    final String uploadId = UUID.randomUUID().toString();
+    final String filename = UUID.randomUUID().toString();
+    manifestStore.prepareMultipartUpload(TEST_BUCKET_NAME, filename, TEXT_PLAIN, ENCODING_GZIP,
+        uploadId, TEST_OWNER, TEST_OWNER);
+    manifestStore.putPart(TEST_BUCKET_NAME, filename, uploadId, "1",
+        new ByteArrayInputStream("Part1".getBytes()), false);
+    final Part part1 = new Part();
+    part1.setPartNumber(1);
+    manifestStore.completeMultipartUpload(TEST_BUCKET_NAME, filename, uploadId,
+        Collections.singletonList(part1));
+    manifestStore.putS3Object(TEST_BUCKET_NAME, "source", TEXT_PLAIN, ENCODING_GZIP,
+        new ByteArrayInputStream("source".getBytes()), false);
+
+    final S3Object s3Object = manifestStore.getS3Object(TEST_BUCKET_NAME, filename);
+    assertThat(s3Object.dataFiles()).noneMatch(part -> part.getParent().endsWith(uploadId));
+    Assertions.assertThrows(IllegalStateException.class, () -> manifestStore.putPart(
+        TEST_BUCKET_NAME, filename, uploadId, "1",
+        new ByteArrayInputStream("Late1".getBytes()), false));
+    Assertions.assertThrows(IllegalStateException.class, () -> manifestStore.copyPart(
+        TEST_BUCKET_NAME, "source", null, "1", TEST_BUCKET_NAME, filename, uploadId));
+    assertThat(contentOf(s3Object.dataFiles().get(0).toFile(), UTF_8)).isEqualTo("Part1");
+  }
+
+  @Test
+  void rejectsPartOfUnknownUpload() {
+    fileStore.createBucket(TEST_BUCKET_NAME);
+
+    IllegalStateException e = Assertions.assertThrows(IllegalStateException.class, () ->
+        fileStore.putPart(TEST_BUCKET_NAME, "file", UUID.randomUUID().toString(), "1",
+            new ByteArrayInputStream("Part1".getBytes()), false));
+
+    assertThat(e.getMessage()).isEqualTo("Missed preparing Multipart Request");
+  }
+
+  @Test
+  void storesIdenticalDataOnceIfDeduplicating() throws IOException {
+    final DomainProperties properties = properties(null, false, TEST_BUCKET_NAME, "other");
+    properties.setDeduplicateData(true);
+    final FileStore store = openStore(properties);
+    final S3Object first = store.putS3Object(TEST_BUCKET_NAME, "first", TEXT_PLAIN,
+        ENCODING_GZIP, new ByteArrayInputStream("content".getBytes()), false);
+    store.putS3Object("other", "second", TEXT_PLAIN, ENCODING_GZIP,
+        new ByteArrayInputStream("content".getBytes()), false);
+    store.copyS3Object(TEST_BUCKET_NAME, "first", TEST_BUCKET_NAME, "copy");
+
+    assertThat(new File(store.getRootFolder(), ".blobs").list())
+        .containsExactly(first.getDataBlob());
+    assertThat(store.getS3Object(TEST_BUCKET_NAME, "copy").getDataFile())
+        .isEqualTo(first.getDataFile());
+    assertThat(new File(store.getRootFolder(), TEST_BUCKET_NAME + "/first/fileData"))
+        .doesNotExist();
+  }
+
+  @Test
+  void keepsDeduplicatedDataReferencedByOtherObjects() throws IOException {
+    final DomainProperties properties = properties(null, false, TEST_BUCKET_NAME, "other");
+    properties.setDeduplicateData(true);
+    final FileStore store = openStore(properties);
+    store.putS3Object(TEST_BUCKET_NAME, "first", TEXT_PLAIN, ENCODING_GZIP,
+        new ByteArrayInputStream("content".getBytes()), false);
+    store.putS3Object("other", "second", TEXT_PLAIN, ENCODING_GZIP,
+        new ByteArrayInputStream("content".getBytes()), false);
+    store.copyS3Object(TEST_BUCKET_NAME, "first", TEST_BUCKET_NAME, "copy");
+
+    store.deleteObject(TEST_BUCKET_NAME, "first");
+    store.deleteBucket("other");
+
+    assertThat(contentOf(store.getS3Object(TEST_BUCKET_NAME, "copy").getDataFile(), UTF_8))
+        .isEqualTo("content");
+  }
+
+  @Test
+  void countsReferencesToDeduplicatedDataOnRestart() throws IOException {
+    final DomainProperties properties = properties(null, true, TEST_BUCKET_NAME);
+    properties.setDeduplicateData(true);
+    FileStore store = openStore(properties);
+    final S3Object first = store.putS3Object(TEST_BUCKET_NAME, "first", TEXT_PLAIN,
+        ENCODING_GZIP, new ByteArrayInputStream("content".getBytes()), false);
+    store.copyS3Object(TEST_BUCKET_NAME, "first", TEST_BUCKET_NAME, "copy");
+    store.deleteObject(TEST_BUCKET_NAME, "first");
+
+    store = restart(store, properties);
+    store.putS3Object(TEST_BUCKET_NAME, "copy", TEXT_PLAIN, ENCODING_GZIP,
+        new ByteArrayInputStream("replaced".getBytes()), false);
+
+    assertThat(new File(store.getRootFolder(), ".blobs").list())
+        .hasSize(1).doesNotContain(first.getDataBlob());
+  }
+
+  @Test
+  void storesSmallObjectsInMetadata() throws IOException {
+    final DomainProperties properties = properties(null, false, TEST_BUCKET_NAME);
+    properties.setInlineThreshold(DataSize.ofBytes(16));
+    final FileStore store = openStore(properties);
+
+    final S3Object small = store.putS3Object(TEST_BUCKET_NAME, "small", TEXT_PLAIN,
+        ENCODING_GZIP, new ByteArrayInputStream("content".getBytes()), false);
+
+    assertThat(small.getEtag()).isEqualTo(DigestUtils.md5Hex("content"));
+    assertThat(small.getSize()).isEqualTo("7");
+    assertThat(small.getInlineData()).isEqualTo("content".getBytes());
+    assertThat(small.getDataFile()).doesNotExist();
+  }
+
+  @Test
+  void storesObjectsLargerThanInlineThresholdInDataFiles() throws IOException {
+    final DomainProperties properties = properties(null, false, TEST_BUCKET_NAME);
+    properties.setInlineThreshold(DataSize.ofBytes(16));
+    final FileStore store = openStore(properties);
+
+    final S3Object large = store.putS3Object(TEST_BUCKET_NAME, "large", TEXT_PLAIN,
+        ENCODING_GZIP, new ByteArrayInputStream("more than sixteen bytes".getBytes()), false);
+
+    assertThat(large.getInlineData()).isNull();
+    assertThat(contentOf(large.getDataFile(), UTF_8)).isEqualTo("more than sixteen bytes");
+  }
+
+  @Test
+  void copiesPartsOfSmallObjects() throws IOException {
+    final DomainProperties properties = properties(null, false, TEST_BUCKET_NAME);
+    properties.setInlineThreshold(DataSize.ofBytes(16));
+    final FileStore store = openStore(properties);
+    store.putS3Object(TEST_BUCKET_NAME, "small", TEXT_PLAIN, ENCODING_GZIP,
+        new ByteArrayInputStream("content".getBytes()), false);
+    store.prepareMultipartUpload(TEST_BUCKET_NAME, "multipart", TEXT_PLAIN, ENCODING_GZIP,
+        "upload", TEST_OWNER, TEST_OWNER);
+
+    assertThat(store.copyPart(TEST_BUCKET_NAME, "small", new Range(1, 3), "1",
+        TEST_BUCKET_NAME, "multipart", "upload")).isEqualTo(DigestUtils.md5Hex("ont"));
+  }
+
+  @Test
+  void copiesPartsOfSmallObjectsUpToTheirEnd() throws IOException {
+    final DomainProperties properties = properties(null, false, TEST_BUCKET_NAME);
+    properties.setInlineThreshold(DataSize.ofBytes(16));
+    final FileStore store = openStore(properties);
+    store.putS3Object(TEST_BUCKET_NAME, "small", TEXT_PLAIN, ENCODING_GZIP,
+        new ByteArrayInputStream("content".getBytes()), false);
+    store.prepareMultipartUpload(TEST_BUCKET_NAME, "multipart", TEXT_PLAIN, ENCODING_GZIP,
+        "upload", TEST_OWNER, TEST_OWNER);
+
+    assertThat(store.copyPart(TEST_BUCKET_NAME, "small", new Range(5, 100), "1",
+        TEST_BUCKET_NAME, "multipart", "upload")).isEqualTo(DigestUtils.md5Hex("nt"));
+    final S3Exception e = Assertions.assertThrows(S3Exception.class, () -> store.copyPart(
+        TEST_BUCKET_NAME, "small", new Range(7, 100), "2", TEST_BUCKET_NAME, "multipart",
+        "upload"));
+    assertThat(e.getStatus()).isEqualTo(REQUESTED_RANGE_NOT_SATISFIABLE.value());
+  }
+
+  @Test
+  void rejectsPartRangesStartingPastTheEndOfFiles() throws IOException {
+    final FileStore store = openStore(properties(null, false, TEST_BUCKET_NAME));
+    store.putS3Object(TEST_BUCKET_NAME, "data", TEXT_PLAIN, null,
+        new ByteArrayInputStream("content".getBytes()), false);
+    store.prepareMultipartUpload(TEST_BUCKET_NAME, "multipart", TEXT_PLAIN, null,
+        "upload", TEST_OWNER, TEST_OWNER);
+
+    final S3Exception e = Assertions.assertThrows(S3Exception.class, () -> store.copyPart(
+        TEST_BUCKET_NAME, "data", new Range(7, 100), "1", TEST_BUCKET_NAME, "multipart",
+        "upload"));
+    assertThat(e.getStatus()).isEqualTo(REQUESTED_RANGE_NOT_SATISFIABLE.value());
+  }
+
+  @Test
+  void readsCopiesOfSmallObjectsOnRestart() throws IOException {
+    final DomainProperties properties = properties(null, true, TEST_BUCKET_NAME);
+    properties.setInlineThreshold(DataSize.ofBytes(16));
+    FileStore store = openStore(properties);
+    store.putS3Object(TEST_BUCKET_NAME, "small", TEXT_PLAIN, ENCODING_GZIP,
+        new ByteArrayInputStream("content".getBytes()), false);
+    store.copyS3Object(TEST_BUCKET_NAME, "small", TEST_BUCKET_NAME, "copy");
+
+    store = restart(store, properties);
+
+    final ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+    store.transferS3ObjectData(store.getS3Object(TEST_BUCKET_NAME, "copy"), 2, 3, outputStream);
+    assertThat(outputStream.toString("UTF-8")).isEqualTo("nte");
+  }
+
+  @Test
+  void compressesDataFilesInBlocks() throws IOException {
+    final byte[] data = compressibleData();
+    final DomainProperties properties = properties(null, false, TEST_BUCKET_NAME);
+    properties.setCompressData(true);
+    final FileStore store = openStore(properties);
+
+    final S3Object s3Object = store.putS3Object(TEST_BUCKET_NAME, "data", TEXT_PLAIN,
+        ENCODING_GZIP, new ByteArrayInputStream(data), false);
+
+    assertThat(s3Object.isCompressed()).isTrue();
+    assertThat(s3Object.getEtag()).isEqualTo(DigestUtils.md5Hex(data));
+    assertThat(s3Object.getSize()).isEqualTo(String.valueOf(data.length));
+    assertThat(s3Object.getDataFile().length()).isLessThan(data.length / 4);
+  }
+
+  @Test
+  void copiesPartsOfCompressedData() throws IOException {
+    final byte[] data = compressibleData();
+    final DomainProperties properties = properties(null, false, TEST_BUCKET_NAME);
+    properties.setCompressData(true);
+    final FileStore store = openStore(properties);
+    store.putS3Object(TEST_BUCKET_NAME, "data", TEXT_PLAIN, ENCODING_GZIP,
+        new ByteArrayInputStream(data), false);
+    store.prepareMultipartUpload(TEST_BUCKET_NAME, "multipart", TEXT_PLAIN, ENCODING_GZIP,
+        "upload", TEST_OWNER, TEST_OWNER);
+
+    assertThat(store.copyPart(TEST_BUCKET_NAME, "data", new Range(70_000, 139_999), "1",
+        TEST_BUCKET_NAME, "multipart", "upload"))
+        .isEqualTo(DigestUtils.md5Hex(Arrays.copyOfRange(data, 70_000, 140_000)));
+  }
+
+  @Test
+  void readsRangesOfCompressedCopiesOnRestart() throws IOException {
+    final byte[] data = compressibleData();
+    final DomainProperties properties = properties(null, true, TEST_BUCKET_NAME);
+    properties.setCompressData(true);
+    FileStore store = openStore(properties);
+    store.putS3Object(TEST_BUCKET_NAME, "data", TEXT_PLAIN, ENCODING_GZIP,
+        new ByteArrayInputStream(data), false);
+    store.copyS3ObjectEncrypted(TEST_BUCKET_NAME, "data", TEST_BUCKET_NAME, "copy", "aws:kms",
+        "key");
+
+    store = restart(store, properties);
+
+    final S3Object copy = store.getS3Object(TEST_BUCKET_NAME, "copy");
+    assertThat(copy.getSize()).isEqualTo(String.valueOf(data.length));
+    final ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+    store.transferS3ObjectData(copy, 100_000, 50_000, outputStream);
+    assertThat(outputStream.toByteArray())
+        .isEqualTo(Arrays.copyOfRange(data, 100_000, 150_000));
+  }
+
+  @Test
+  void placesObjectsInRootFoldersByKey() throws IOException {
+    final Path root1 = Files.createTempDirectory("s3mockRoot1");
+    final Path root2 = Files.createTempDirectory("s3mockRoot2");
+    final FileStore store = openStore(properties(root1 + "," + root2, false, TEST_BUCKET_NAME));
+
+    for (int i = 0; i < 20; i++) {
+      store.putS3Object(TEST_BUCKET_NAME, "key" + i, TEXT_PLAIN, ENCODING_GZIP,
+          new ByteArrayInputStream(("content" + i).getBytes()), false);
+    }
+
+    assertThat(root1.resolve(TEST_BUCKET_NAME).toFile().list()).isNotEmpty();
+    assertThat(root2.resolve(TEST_BUCKET_NAME).toFile().list()).isNotEmpty();
+  }
+
+  @Test
+  void findsObjectsOfAllRootFoldersOnRestart() throws IOException {
+    final Path root1 = Files.createTempDirectory("s3mockRoot1");
+    final Path root2 = Files.createTempDirectory("s3mockRoot2");
+    final DomainProperties properties = properties(root1 + "," + root2, true, TEST_BUCKET_NAME);
+    FileStore store = openStore(properties);
+    for (int i = 0; i < 20; i++) {
+      store.putS3Object(TEST_BUCKET_NAME, "key" + i, TEXT_PLAIN, ENCODING_GZIP,
+          new ByteArrayInputStream(("content" + i).getBytes()), false);
+    }
+    store.prepareMultipartUpload(TEST_BUCKET_NAME, "multipart", TEXT_PLAIN, ENCODING_GZIP,
+        "upload", TEST_OWNER, TEST_OWNER);
+    store.putPart(TEST_BUCKET_NAME, "multipart", "upload", "1",
+        new ByteArrayInputStream("part".getBytes()), false);
+    store.completeMultipartUpload(TEST_BUCKET_NAME, "multipart", "upload", getParts(1));
+
+    properties.setRetainFilesOnExit(false);
+    store = restart(store, properties);
+
+    assertThat(store.getS3Objects(TEST_BUCKET_NAME, null)).hasSize(21);
+    final ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+    store.transferS3ObjectData(store.getS3Object(TEST_BUCKET_NAME, "multipart"), 0, 4,
+        outputStream);
+    assertThat(outputStream.toString("UTF-8")).isEqualTo("part");
+  }
+
+  @Test
+  void deletesBucketsFromAllRootFolders() throws IOException {
+    final Path root1 = Files.createTempDirectory("s3mockRoot1");
+    final Path root2 = Files.createTempDirectory("s3mockRoot2");
+    final FileStore store = openStore(properties(root1 + "," + root2, false, TEST_BUCKET_NAME));
+    for (int i = 0; i < 20; i++) {
+      store.putS3Object(TEST_BUCKET_NAME, "key" + i, TEXT_PLAIN, ENCODING_GZIP,
+          new ByteArrayInputStream(("content" + i).getBytes()), false);
+    }
+
+    assertThat(store.deleteBucket(TEST_BUCKET_NAME)).isTrue();
+    assertThat(root1.resolve(TEST_BUCKET_NAME)).doesNotExist();
+    assertThat(root2.resolve(TEST_BUCKET_NAME)).doesNotExist();
+
+    store.close();
+    assertThat(root1).doesNotExist();
+    assertThat(root2).doesNotExist();
+  }
+
+  @Test
+  void forcesConcurrentWritesToDiskInGroupCommits() throws Exception {
+    final DomainProperties properties = properties(null, false, TEST_BUCKET_NAME);
+    properties.setDurability(Durability.GROUP_COMMIT);
+    final FileStore store = openStore(properties);
+
+    final List<S3Object> stored = putConcurrently(store, 32);
+
+    for (final S3Object s3Object : stored) {
+      assertThat(s3Object.getEtag()).isEqualTo(DigestUtils.md5Hex(s3Object.getName()));
+      assertThat(s3Object.getDataFile().getParentFile().list())
+          .containsExactlyInAnyOrder("metadata", s3Object.getDataFile().getName());
+    }
+  }
+
+  @Test
+  void findsGroupCommittedObjectsOnRestart() throws Exception {
+    final DomainProperties properties = properties(null, true, TEST_BUCKET_NAME);
+    properties.setDurability(Durability.GROUP_COMMIT);
+    FileStore store = openStore(properties);
+    putConcurrently(store, 32);
+
+    properties.setDurability(Durability.FSYNC);
+    store = restart(store, properties);
+
+    assertThat(store.getS3Objects(TEST_BUCKET_NAME, null)).hasSize(32);
+  }
+
+  @Test
+  void replacesDataFilesWithoutDisturbingReaders() throws IOException {
+    final FileStore store = openStore(properties(null, false, TEST_BUCKET_NAME));
+    final S3Object old = store.putS3Object(TEST_BUCKET_NAME, "key", TEXT_PLAIN, ENCODING_GZIP,
+        new ByteArrayInputStream("old content".getBytes()), false);
+
+    final S3Object replacing;
+    try (FileInputStream reader = new FileInputStream(old.getDataFile())) {
+      replacing = store.putS3Object(TEST_BUCKET_NAME, "key", TEXT_PLAIN, ENCODING_GZIP,
+          new ByteArrayInputStream("new content".getBytes()), false);
+
+      assertThat(IOUtils.toString(reader, UTF_8)).isEqualTo("old content");
+    }
+    assertThat(replacing.getDataFile()).isNotEqualTo(old.getDataFile());
+    assertThat(old.getDataFile()).doesNotExist();
+    assertThat(contentOf(replacing.getDataFile(), UTF_8)).isEqualTo("new content");
+  }
+
+  @Test
+  void keepsOpenedDataFileReadableWhenObjectIsReplaced() throws IOException {
+    final FileStore store = openStore(properties(null, false, TEST_BUCKET_NAME));
+    store.putS3Object(TEST_BUCKET_NAME, "key", TEXT_PLAIN, ENCODING_GZIP,
+        new ByteArrayInputStream("old content".getBytes()), false);
+
+    try (S3ObjectData data = store.openS3ObjectData(TEST_BUCKET_NAME, "key")) {
+      store.putS3Object(TEST_BUCKET_NAME, "key", TEXT_PLAIN, ENCODING_GZIP,
+          new ByteArrayInputStream("new content".getBytes()), false);
+      store.deleteObject(TEST_BUCKET_NAME, "key");
+
+      final ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+      data.transferTo(4, 7, outputStream);
+      assertThat(outputStream.toString()).isEqualTo("content");
+      assertThat(data.getS3Object().getDataFile()).doesNotExist();
+    }
+    assertThat(store.openS3ObjectData(TEST_BUCKET_NAME, "key")).isNull();
+  }
+
+  @Test
+  void deletesStaleDataFilesOnRestart() throws IOException {
+    final DomainProperties properties = properties(null, true, TEST_BUCKET_NAME);
+    FileStore store = openStore(properties);
+    final S3Object stored = store.putS3Object(TEST_BUCKET_NAME, "key", TEXT_PLAIN,
+        ENCODING_GZIP, new ByteArrayInputStream("content".getBytes()), false);
+    final File folder = stored.getDataFile().getParentFile();
+    Files.write(folder.toPath().resolve("fileData.stale"), "stale".getBytes());
+
+    store = restart(store, properties);
+
+    assertThat(folder.list()).containsExactlyInAnyOrder("metadata",
+        stored.getDataFile().getName());
+    assertThat(contentOf(store.getS3Object(TEST_BUCKET_NAME, "key").getDataFile(), UTF_8))
+        .isEqualTo("content");
+  }
+
+  @Test
+  void serializesConcurrentChangesOfTheSameKey() throws Exception {
+    final FileStore store = openStore(properties(null, false, TEST_BUCKET_NAME));
+
+    changeConcurrently(store, "key", 64);
+
+    final S3Object indexed = store.getS3Object(TEST_BUCKET_NAME, "key");
+    assertThat(indexed.getEtag()).isEqualTo(DigestUtils.md5Hex(contentOf(indexed.getDataFile(),
+        UTF_8)));
+    assertThat(indexed.getDataFile().getParentFile().list())
+        .containsExactlyInAnyOrder("metadata", indexed.getDataFile().getName());
+  }
+
+  @Test
+  void persistsTheLastOfConcurrentChangesOfTheSameKey() throws Exception {
+    final DomainProperties properties = properties(null, true, TEST_BUCKET_NAME);
+    FileStore store = openStore(properties);
+    changeConcurrently(store, "key", 64);
+    final S3Object indexed = store.getS3Object(TEST_BUCKET_NAME, "key");
+
+    store = restart(store, properties);
+
+    final S3Object loaded = store.getS3Object(TEST_BUCKET_NAME, "key");
+    assertThat(loaded.getEtag()).isEqualTo(indexed.getEtag());
+    assertThat(loaded.getDataFile()).isEqualTo(indexed.getDataFile());
+    assertThat(loaded.getTags()).isEqualTo(indexed.getTags());
+  }
+
+  @Test
+  void restoresObjectsFromMetadataJournal() throws IOException {
+    final DomainProperties properties = properties(null, true, TEST_BUCKET_NAME);
+    properties.setJournalMetadata(true);
+    final FileStore store = openStore(properties);
+    final S3Object kept = store.putS3Object(TEST_BUCKET_NAME, "kept", TEXT_PLAIN, ENCODING_GZIP,
+        new ByteArrayInputStream("kept".getBytes()), false);
+    store.putS3Object(TEST_BUCKET_NAME, "deleted", TEXT_PLAIN, ENCODING_GZIP,
+        new ByteArrayInputStream("deleted".getBytes()), false);
+    store.setObjectTags(TEST_BUCKET_NAME, "kept", Collections.singletonList(new Tag("key", "v")));
+    store.deleteObject(TEST_BUCKET_NAME, "deleted");
+
+    // the metadata files aren't read when replaying the journal
+    Files.delete(kept.getDataFile().toPath().resolveSibling("metadata"));
+    final FileStore replayed = reopenAfterCrash(store, properties);
+
+    assertThat(replayed.getS3Objects(TEST_BUCKET_NAME, null)).extracting(S3Object::getName)
+        .containsExactly("kept");
+    final S3Object replayedObject = replayed.getS3Object(TEST_BUCKET_NAME, "kept");
+    assertThat(replayedObject.getTags()).extracting(Tag::getKey).containsExactly("key");
+    assertThat(contentOf(replayedObject.getDataFile(), UTF_8)).isEqualTo("kept");
+  }
+
+  @Test
+  void loadsChangesMadeWithoutJournalWhenJournalIsTurnedOnAgain() throws IOException {
+    final DomainProperties properties = properties(null, true, TEST_BUCKET_NAME);
+    properties.setJournalMetadata(true);
+    final FileStore journaled = openStore(properties);
+    journaled.putS3Object(TEST_BUCKET_NAME, "deleted", TEXT_PLAIN, ENCODING_GZIP,
+        new ByteArrayInputStream("deleted".getBytes()), false);
+
+    properties.setJournalMetadata(false);
+    final FileStore unjournaled = restart(journaled, properties);
+    unjournaled.deleteObject(TEST_BUCKET_NAME, "deleted");
+    unjournaled.putS3Object(TEST_BUCKET_NAME, "added", TEXT_PLAIN, ENCODING_GZIP,
+        new ByteArrayInputStream("added".getBytes()), false);
+    assertThat(new File(unjournaled.getRootFolder(), ".journal")).doesNotExist();
+
+    properties.setJournalMetadata(true);
+    final FileStore rejournaled = restart(unjournaled, properties);
+    assertThat(rejournaled.getS3Objects(TEST_BUCKET_NAME, null)).extracting(S3Object::getName)
+        .containsExactly("added");
+
+    final FileStore restarted = restart(rejournaled, properties);
+    assertThat(restarted.getS3Objects(TEST_BUCKET_NAME, null)).extracting(S3Object::getName)
+        .containsExactly("added");
+    assertThat(contentOf(restarted.getS3Object(TEST_BUCKET_NAME, "added").getDataFile(), UTF_8))
+        .isEqualTo("added");
+  }
+
+  @Test
+  void restoresMultipartUploadsFromMetadataJournal() throws IOException {
+    final DomainProperties properties = properties(null, true, TEST_BUCKET_NAME);
+    properties.setJournalMetadata(true);
+    final FileStore store = openStore(properties);
+    store.prepareMultipartUpload(TEST_BUCKET_NAME, "multipart", TEXT_PLAIN, ENCODING_GZIP,
+        "upload", TEST_OWNER, TEST_OWNER);
+    store.putPart(TEST_BUCKET_NAME, "multipart", "upload", "1",
+        new ByteArrayInputStream("part".getBytes()), false);
+
+    final FileStore replayed = reopenAfterCrash(store, properties);
+
+    assertThat(replayed.listMultipartUploads(TEST_BUCKET_NAME))
+        .extracting(MultipartUpload::getKey).containsExactly("multipart");
+    assertThat(replayed.getMultipartUploadParts(TEST_BUCKET_NAME, "multipart", "upload"))
+        .extracting(Part::getETag).containsExactly(DigestUtils.md5Hex("part"));
+  }
+
+  @Test
+  void snapshotsMetadataJournalOnClose() throws IOException {
+    final DomainProperties properties = properties(null, true, TEST_BUCKET_NAME);
+    properties.setJournalMetadata(true);
+    FileStore store = openStore(properties);
+    store.prepareMultipartUpload(TEST_BUCKET_NAME, "multipart", TEXT_PLAIN, ENCODING_GZIP,
+        "upload", TEST_OWNER, TEST_OWNER);
+    store.putPart(TEST_BUCKET_NAME, "multipart", "upload", "1",
+        new ByteArrayInputStream("part".getBytes()), false);
+    store.completeMultipartUpload(TEST_BUCKET_NAME, "multipart", "upload", getParts(1));
+
+    store = restart(store, properties);
+
+    assertThat(new File(store.getRootFolder(), ".journal").list()).hasSize(2);
+    assertThat(store.listMultipartUploads(TEST_BUCKET_NAME)).isEmpty();
+    assertThat(contentOf(store.getS3Object(TEST_BUCKET_NAME, "multipart").getDataFile(), UTF_8))
+        .isEqualTo("part");
+  }
+
+  @Test
+  void closeDeletesRootFolder() throws IOException {
+    final FileStore store = openStore(properties(null, false));
+    store.putS3Object(TEST_BUCKET_NAME, "a/b", TEXT_PLAIN, ENCODING_GZIP,
+        new ByteArrayInputStream("content".getBytes()), false);
+
+    store.close();
+
+    assertThat(store.getRootFolder()).doesNotExist();
+  }
+
+  @Test
+  void closeRetainsFilesIfConfigured() throws IOException {
+    final FileStore store = openStore(properties(null, true));
+    store.putS3Object(TEST_BUCKET_NAME, "a/b", TEXT_PLAIN, ENCODING_GZIP,
+        new ByteArrayInputStream("content".getBytes()), false);
+
+    store.close();
+
+    assertThat(store.getS3Object(TEST_BUCKET_NAME, "a/b").getDataFile()).exists();
+  }
+
+  private static byte[] compressibleData() {
+    final StringBuilder text = new StringBuilder();
+    for (int i = 0; text.length() < 3 * CompressedDataFile.BLOCK_SIZE; i++) {
+      text.append("{\"line\":").append(i).append(",\"value\":\"some text\"}\n");
+    }
+    return text.toString().getBytes(UTF_8);
+  }
+
+  /**
+   * Puts objects from several threads at once, each with its key as content.
+   */
+  private static List<S3Object> putConcurrently(final FileStore store, final int objects)
+      throws Exception {
+    final ExecutorService executor = Executors.newFixedThreadPool(8);
+    try {
+      final List<Future<S3Object>> puts = new ArrayList<>();
+      for (int i = 0; i < objects; i++) {
+        final String key = "key" + i;
+        puts.add(executor.submit(() -> store.putS3Object(TEST_BUCKET_NAME, key, TEXT_PLAIN,
+            ENCODING_GZIP, new ByteArrayInputStream(key.getBytes()), false)));
+      }
+      final List<S3Object> stored = new ArrayList<>();
+      for (final Future<S3Object> put : puts) {
+        stored.add(put.get());
+      }
+      return stored;
+    } finally {
+      executor.shutdown();
+    }
+  }
+
+  /**
+   * Replaces the data and the tags of an object from several threads at once.
+   */
+  private static void changeConcurrently(final FileStore store, final String key,
+      final int changes) throws Exception {
+    store.putS3Object(TEST_BUCKET_NAME, key, TEXT_PLAIN, ENCODING_GZIP,
+        new ByteArrayInputStream("initial".getBytes()), false);
+    final ExecutorService executor = Executors.newFixedThreadPool(8);
+    try {
+      final List<Future<?>> futures = new ArrayList<>();
+      for (int i = 0; i < changes; i++) {
+        final String content = "content" + i;
+        futures.add(executor.submit(() -> store.putS3Object(TEST_BUCKET_NAME, key, TEXT_PLAIN,
+            ENCODING_GZIP, new ByteArrayInputStream(content.getBytes()), false)));
+        futures.add(executor.submit(() -> {
+          store.setObjectTags(TEST_BUCKET_NAME, key,
+              Collections.singletonList(new Tag("tag", content)));
+          return null;
+        }));
+      }
+      for (final Future<?> future : futures) {
+        future.get();
+      }
+    } finally {
+      executor.shutdown();
+    }
+  }
+
+  /**
+   * Opens a store that is closed after the test, deleting its temp root folder.
+   */
+  private FileStore openStore(final DomainProperties properties) {
+    final FileStore store = new FileStore(properties);
+    openedStores.add(store);
+    if (properties.getRoot() == null) {
+      tempRootFolders.add(store.getRootFolder());
+      properties.setRoot(store.getRootFolder().getAbsolutePath());
+    }
+    return store;
+  }
+
+  /**
+   * Closes a store and opens its root folder again, as after a restart.
+   */
+  private FileStore restart(final FileStore store, final DomainProperties properties) {
+    store.close();
+    openedStores.remove(store);
+    return openStore(properties);
+  }
+
+  /**
+   * Opens the root folder of a store again without closing the store, as after a crash.
+   */
+  private FileStore reopenAfterCrash(final FileStore store, final DomainProperties properties) {
+    return openStore(properties);
+  }
+
+  private static DomainProperties properties(final String root,
+      final boolean retainFilesOnExit, final String... initialBuckets) {
+    final DomainProperties properties = new DomainProperties();
+    properties.setRoot(root);
+    properties.setRetainFilesOnExit(retainFilesOnExit);
+    properties.setInitialBuckets(Arrays.asList(initialBuckets));
+    return properties;
+  }
+
   /**
-   * Deletes all existing buckets.
+   * Deletes all existing buckets, and closes the stores opened by the test.
    *
    * @throws Exception if bucket could not be deleted.
    */
@@ -897,6 +1776,8 @@ class FileStoreTest {
     for (final Bucket bucket : fileStore.listBuckets()) {
       fileStore.deleteBucket(bucket.getName());
     }
+    openedStores.forEach(FileStore::close);
+    tempRootFolders.forEach(FileUtils::deleteQuietly);
   }
 
 }
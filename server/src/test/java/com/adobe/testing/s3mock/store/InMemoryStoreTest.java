@@ -0,0 +1,66 @@
+/*
+ *  Copyright 2017-2022 Adobe.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *          http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package com.adobe.testing.s3mock.store;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.io.IOException;
+import java.util.Collections;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+class InMemoryStoreTest extends ObjectStoreTestBase<InMemoryStore> {
+
+  @Override
+  InMemoryStore createStore() {
+    return new InMemoryStore(1024 * 1024, Collections.singletonList(BUCKET));
+  }
+
+  @Test
+  void keepsStoredObjectsIndexed() throws IOException {
+    final S3Object s3Object = put("key", DATA);
+
+    assertThat(store.getS3Object(BUCKET, "key")).isSameAs(s3Object);
+  }
+
+  @Test
+  void packsSmallObjectsIntoSmallerChunks() throws IOException {
+    // the capacity of 1 MiB holds 16 chunks of 64 KiB
+    for (int i = 0; i < 1000; i++) {
+      put("key" + i, ("data" + i).getBytes());
+    }
+
+    assertThat(read(store.getS3Object(BUCKET, "key999"), 0, 7)).isEqualTo("data999".getBytes());
+    assertThat(read(store.getS3Object(BUCKET, "key0"), 0, 5)).isEqualTo("data0".getBytes());
+  }
+
+  @Test
+  void reusesMemoryOfDeletedObjects() throws IOException {
+    for (int i = 0; i < 20; i++) {
+      put("key" + i, DATA);
+      store.deleteObject(BUCKET, "key" + i);
+    }
+    for (int i = 0; i < 4; i++) {
+      put("key" + i, DATA);
+    }
+
+    final S3Exception e = Assertions.assertThrows(S3Exception.class, () -> put("full", DATA));
+    assertThat(e.getStatus()).isEqualTo(507);
+    assertThat(store.getS3Object(BUCKET, "full")).isNull();
+    assertThat(read(store.getS3Object(BUCKET, "key3"), 0, DATA.length)).isEqualTo(DATA);
+  }
+}
@@ -27,7 +27,7 @@ import org.springframework.boot.test.mock.mockito.MockBean;
 class KmsKeyStoreTest {
 
   @MockBean
-  private FileStore fileStore;
+  private ObjectStore fileStore;
 
   @Autowired
   private KmsKeyStore kmsKeyStore;
@@ -0,0 +1,239 @@
+/*
+ *  Copyright 2017-2022 Adobe.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *          http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package com.adobe.testing.s3mock.store;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.util.Arrays;
+import java.util.NavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.MethodSource;
+
+class ObjectListingTest {
+
+  private static final String[] ALL_OBJECTS =
+      new String[] {"3330/0", "33309/0", "a",
+          "b", "b/1", "b/1/1", "b/1/2", "b/2",
+          "c/1", "c/1/1",
+          "d:1", "d:1:1",
+          "eor.txt", "foo/eor.txt"};
+
+  @Test
+  void listsAllKeysInOrder() {
+    final ObjectListing listing = ObjectListing.of(index(), null, null, null, 1000);
+
+    assertThat(listing.getContents().keySet()).containsExactly(ALL_OBJECTS);
+    assertThat(listing.isTruncated()).isFalse();
+  }
+
+  @Test
+  void listsKeysWithPrefix() {
+    final ObjectListing listing = ObjectListing.of(index(), "b/", null, null, 1000);
+
+    assertThat(listing.getContents().keySet()).containsExactly("b/1", "b/1/1", "b/1/2", "b/2");
+    assertThat(listing.isTruncated()).isFalse();
+  }
+
+  @Test
+  void listsKeysAfterStartAfter() {
+    final ObjectListing listing = ObjectListing.of(index(), "b", null, "b/1/1", 1000);
+
+    assertThat(listing.getContents().keySet()).containsExactly("b/1/2", "b/2");
+  }
+
+  @Test
+  void ignoresStartAfterBeforePrefix() {
+    final ObjectListing listing = ObjectListing.of(index(), "c/", null, "a", 1000);
+
+    assertThat(listing.getContents().keySet()).containsExactly("c/1", "c/1/1");
+  }
+
+  @Test
+  void truncatesAtMaxKeys() {
+    final ObjectListing listing = ObjectListing.of(index(), "b", null, null, 2);
+
+    assertThat(listing.getContents().keySet()).containsExactly("b", "b/1");
+    assertThat(listing.isTruncated()).isTrue();
+  }
+
+  @Test
+  void isNotTruncatedIfMaxKeysMatchesExactly() {
+    final ObjectListing listing = ObjectListing.of(index(), "c/", null, null, 2);
+
+    assertThat(listing.getContents().keySet()).containsExactly("c/1", "c/1/1");
+    assertThat(listing.isTruncated()).isFalse();
+  }
+
+  @Test
+  void isTruncatedWithZeroMaxKeys() {
+    final ObjectListing listing = ObjectListing.of(index(), null, null, null, 0);
+
+    assertThat(listing.getContents()).isEmpty();
+    assertThat(listing.isTruncated()).isTrue();
+  }
+
+  /**
+   * Parameter factory.
+   * Taken from ListObjectIT to make sure we unit test against the same data.
+   */
+  public static Iterable<Param> data() {
+    return Arrays.asList(
+        param(null, null).keys(ALL_OBJECTS),
+        param("", null).keys(ALL_OBJECTS),
+        param(null, "").keys(ALL_OBJECTS),
+        param(null, "/").keys("a", "b", "d:1", "d:1:1", "eor.txt")
+            .prefixes("3330/", "33309/", "b/", "c/", "foo/"),
+        param("", "").keys(ALL_OBJECTS),
+        param("/", null),
+        param("b", null).keys("b", "b/1", "b/1/1", "b/1/2", "b/2"),
+        param("b/", null).keys("b/1", "b/1/1", "b/1/2", "b/2"),
+        param("b", "").keys("b", "b/1", "b/1/1", "b/1/2", "b/2"),
+        param("b", "/").keys("b").prefixes("b/"),
+        param("b/", "/").keys("b/1", "b/2").prefixes("b/1/"),
+        param("b/1", "/").keys("b/1").prefixes("b/1/"),
+        param("b/1/", "/").keys("b/1/1", "b/1/2"),
+        param("c", "/").prefixes("c/"),
+        param("c/", "/").keys("c/1").prefixes("c/1/"),
+        param("eor", "/").keys("eor.txt"),
+        param("3330", "/").prefixes("3330/", "33309/")
+    );
+  }
+
+  @ParameterizedTest
+  @MethodSource("data")
+  void collapsesCommonPrefixes(final Param parameters) {
+    final ObjectListing listing =
+        ObjectListing.of(index(), parameters.prefix, parameters.delimiter, null, 1000);
+
+    assertThat(listing.getCommonPrefixes())
+        .as("Returned prefixes are correct")
+        .containsExactly(parameters.expectedPrefixes);
+    assertThat(listing.getContents().keySet())
+        .as("Returned keys are correct")
+        .containsExactly(parameters.expectedKeys);
+    assertThat(listing.isTruncated()).isFalse();
+  }
+
+  @Test
+  void countsCommonPrefixesTowardsMaxKeys() {
+    final ObjectListing listing = ObjectListing.of(index(), null, "/", null, 3);
+
+    assertThat(listing.getContents().keySet()).containsExactly("a");
+    assertThat(listing.getCommonPrefixes()).containsExactly("3330/", "33309/");
+    assertThat(listing.isTruncated()).isTrue();
+    assertThat(listing.getNextMarker()).isEqualTo("a");
+  }
+
+  @Test
+  void continuesBehindCommonPrefix() {
+    final ObjectListing first = ObjectListing.of(index(), null, "/", null, 4);
+
+    assertThat(first.getCommonPrefixes()).containsExactly("3330/", "33309/");
+    assertThat(first.getContents().keySet()).containsExactly("a", "b");
+    assertThat(first.getNextMarker()).isEqualTo("b");
+
+    final ObjectListing second = ObjectListing.of(index(), null, "/", first.getNextMarker(), 2);
+
+    assertThat(second.getCommonPrefixes()).containsExactly("b/", "c/");
+    assertThat(second.getContents()).isEmpty();
+    assertThat(second.getNextMarker()).isEqualTo("c/");
+
+    final ObjectListing third = ObjectListing.of(index(), null, "/", second.getNextMarker(), 5);
+
+    assertThat(third.getContents().keySet()).containsExactly("d:1", "d:1:1", "eor.txt");
+    assertThat(third.getCommonPrefixes()).containsExactly("foo/");
+    assertThat(third.isTruncated()).isFalse();
+    assertThat(third.getNextMarker()).isNull();
+  }
+
+  @Test
+  void skipsCommonPrefixOfStartAfter() {
+    final ObjectListing listing = ObjectListing.of(index(), "b", "/", "b/1", 1000);
+
+    assertThat(listing.getContents()).isEmpty();
+    assertThat(listing.getCommonPrefixes()).isEmpty();
+  }
+
+  @Test
+  void listsNamesDecodingToTheSameKeyApart() {
+    final NavigableMap<String, S3Object> index =
+        new ConcurrentSkipListMap<>(ObjectListing.KEY_ORDER);
+    for (final String name : new String[] {"a b", "a%2Bb", "a+b", "a+c", "a/b", "a%2Fb"}) {
+      index.put(name, new S3Object());
+    }
+
+    final ObjectListing listing = ObjectListing.of(index, "a", "/", null, 1000);
+
+    assertThat(listing.getContents().keySet()).containsExactly("a+b", "a b", "a+c", "a%2Bb");
+    assertThat(listing.getCommonPrefixes()).containsExactly("a/");
+    assertThat(ObjectListing.of(index, "a", "/", "a b", 1000).getContents().keySet())
+        .containsExactly("a+c", "a%2Bb");
+    assertThat(ObjectListing.of(index, "a/", null, null, 1000).getContents().keySet())
+        .containsExactly("a%2Fb", "a/b");
+  }
+
+  @Test
+  void computesPrefixEnd() {
+    assertThat(ObjectListing.prefixEnd("b/")).isEqualTo("b0");
+    assertThat(ObjectListing.prefixEnd("b" + Character.MAX_VALUE)).isEqualTo("c");
+    assertThat(ObjectListing.prefixEnd(String.valueOf(Character.MAX_VALUE))).isNull();
+  }
+
+  private static NavigableMap<String, S3Object> index() {
+    final NavigableMap<String, S3Object> index =
+        new ConcurrentSkipListMap<>(ObjectListing.KEY_ORDER);
+    for (final String key : ALL_OBJECTS) {
+      final S3Object s3Object = new S3Object();
+      s3Object.setName(key);
+      index.put(key, s3Object);
+    }
+    return index;
+  }
+
+  static class Param {
+    final String prefix;
+    final String delimiter;
+    String[] expectedPrefixes = new String[0];
+    String[] expectedKeys = new String[0];
+
+    private Param(final String prefix, final String delimiter) {
+      this.prefix = prefix;
+      this.delimiter = delimiter;
+    }
+
+    Param prefixes(final String... expectedPrefixes) {
+      this.expectedPrefixes = expectedPrefixes;
+      return this;
+    }
+
+    Param keys(final String... expectedKeys) {
+      this.expectedKeys = expectedKeys;
+      return this;
+    }
+
+    @Override
+    public String toString() {
+      return String.format("prefix=%s, delimiter=%s", prefix, delimiter);
+    }
+  }
+
+  static Param param(final String prefix, final String delimiter) {
+    return new Param(prefix, delimiter);
+  }
+}
@@ -0,0 +1,244 @@
+/*
+ *  Copyright 2017-2022 Adobe.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *          http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package com.adobe.testing.s3mock.store;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import com.adobe.testing.s3mock.dto.CopyObjectResult;
+import com.adobe.testing.s3mock.dto.Owner;
+import com.adobe.testing.s3mock.dto.Part;
+import com.adobe.testing.s3mock.dto.Range;
+import com.adobe.testing.s3mock.dto.Tag;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Random;
+import org.apache.commons.codec.binary.Base64;
+import org.apache.commons.codec.digest.DigestUtils;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/**
+ * Tests of the behavior all {@link ObjectStore} engines share. The test of each engine extends it
+ * and creates its store.
+ *
+ * @param <T> the type of the store.
+ */
+abstract class ObjectStoreTestBase<T extends ObjectStore> {
+
+  static final String BUCKET = "bucket";
+
+  static final Owner OWNER = new Owner(123, "s3-mock-file-store");
+
+  static final byte[] DATA = new byte[200_000];
+
+  static {
+    new Random(42).nextBytes(DATA);
+  }
+
+  /**
+   * Temporary folder the store may keep its files in.
+   */
+  @TempDir
+  File root;
+
+  /**
+   * The store under test, closed after each test.
+   */
+  T store;
+
+  /**
+   * Creates the store under test, holding the bucket {@link #BUCKET}.
+   */
+  abstract T createStore();
+
+  @BeforeEach
+  void openStoreUnderTest() {
+    store = createStore();
+  }
+
+  @AfterEach
+  void closeStoreUnderTest() {
+    store.close();
+  }
+
+  @Test
+  void storesObject() throws IOException {
+    final S3Object s3Object = put("key", DATA);
+
+    assertThat(s3Object.getEtag()).isEqualTo(DigestUtils.md5Hex(DATA));
+    assertThat(s3Object.getSize()).isEqualTo(String.valueOf(DATA.length));
+    assertThat(store.getS3Object(BUCKET, "key").getEtag()).isEqualTo(s3Object.getEtag());
+    assertThat(read(s3Object, 0, DATA.length)).isEqualTo(DATA);
+    assertThat(read(s3Object, 65_000, 70_000))
+        .isEqualTo(Arrays.copyOfRange(DATA, 65_000, 135_000));
+    assertThat(store.listObjects(BUCKET, null, null, null, 10).getContents()).containsKey("key");
+  }
+
+  @Test
+  void rejectsDataNotMatchingContentMd5() {
+    final S3Exception e = Assertions.assertThrows(S3Exception.class, () ->
+        store.putS3Object(BUCKET, "key", null, null, new ByteArrayInputStream(DATA), false,
+            Collections.emptyMap(), null, null, Base64.encodeBase64String(DigestUtils.md5("x"))));
+
+    assertThat(e.getCode()).isEqualTo("BadRequest");
+    assertThat(store.getS3Object(BUCKET, "key")).isNull();
+  }
+
+  @Test
+  void handlesUnknownKeys() throws IOException {
+    assertThat(store.getS3Object(BUCKET, "unknown")).isNull();
+    assertThat(store.openS3ObjectData(BUCKET, "unknown")).isNull();
+    assertThat(store.deleteObject(BUCKET, "unknown")).isFalse();
+    assertThat(store.copyS3ObjectEncrypted(BUCKET, "unknown", BUCKET, "copy", null, null,
+        Collections.emptyMap())).isNull();
+    assertThat(store.getS3Object(BUCKET, "copy")).isNull();
+  }
+
+  @Test
+  void copiesObject() throws IOException {
+    final S3Object source = put("source", DATA);
+
+    store.copyS3ObjectEncrypted(BUCKET, "source", BUCKET, "copy", null, null,
+        Collections.emptyMap());
+    store.deleteObject(BUCKET, "source");
+
+    final S3Object copy = store.getS3Object(BUCKET, "copy");
+    assertThat(copy.getEtag()).isEqualTo(source.getEtag());
+    assertThat(read(copy, 0, DATA.length)).isEqualTo(DATA);
+  }
+
+  @Test
+  void copiesObjectComputingEtagOfNewKmsKey() throws IOException {
+    put("source", DATA);
+
+    final CopyObjectResult result = store.copyS3ObjectEncrypted(BUCKET, "source", BUCKET, "copy",
+        "aws:kms", "key-id", null);
+
+    final byte[] salted = new byte[6 + DATA.length];
+    System.arraycopy("key-id".getBytes(), 0, salted, 0, 6);
+    System.arraycopy(DATA, 0, salted, 6, DATA.length);
+    final S3Object copy = store.getS3Object(BUCKET, "copy");
+    assertThat(result.getEtag()).contains(DigestUtils.md5Hex(salted));
+    assertThat(copy.getEtag()).isEqualTo(DigestUtils.md5Hex(salted));
+    assertThat(read(copy, 0, DATA.length)).isEqualTo(DATA);
+  }
+
+  @Test
+  void assemblesMultipartUploadFromParts() throws IOException {
+    put("source", DATA);
+    store.prepareMultipartUpload(BUCKET, "key", null, null, "upload", OWNER, OWNER,
+        Collections.emptyMap());
+    final String etag1 = store.putPart(BUCKET, "key", "upload", "1",
+        new ByteArrayInputStream(Arrays.copyOf(DATA, 100_000)), false);
+    final String etag2 = store.copyPart(BUCKET, "source", new Range(100_000, 199_999), "2",
+        BUCKET, "key", "upload");
+
+    assertThat(etag2).isEqualTo(DigestUtils.md5Hex(Arrays.copyOfRange(DATA, 100_000, 200_000)));
+    assertThat(store.getMultipartUploadParts(BUCKET, "key", "upload"))
+        .extracting(Part::getETag).containsExactly(etag1, etag2);
+
+    final String etag = store.completeMultipartUpload(BUCKET, "key", "upload",
+        Arrays.asList(part(1), part(2)), null, null);
+
+    final S3Object s3Object = store.getS3Object(BUCKET, "key");
+    assertThat(etag).endsWith("-2").isEqualTo(s3Object.getEtag());
+    assertThat(read(s3Object, 0, DATA.length)).isEqualTo(DATA);
+    assertThat(store.listMultipartUploads(BUCKET)).isEmpty();
+  }
+
+  @Test
+  void boundsPartRangesByTheSource() throws IOException {
+    put("source", DATA);
+    store.prepareMultipartUpload(BUCKET, "key", null, null, "upload", OWNER, OWNER,
+        Collections.emptyMap());
+
+    final String etag = store.copyPart(BUCKET, "source", new Range(199_990, 300_000), "1",
+        BUCKET, "key", "upload");
+    final S3Exception e = Assertions.assertThrows(S3Exception.class, () -> store.copyPart(
+        BUCKET, "source", new Range(200_000, 300_000), "2", BUCKET, "key", "upload"));
+
+    assertThat(etag).isEqualTo(DigestUtils.md5Hex(Arrays.copyOfRange(DATA, 199_990, 200_000)));
+    assertThat(e.getStatus()).isEqualTo(416);
+    assertThat(e.getCode()).isEqualTo("InvalidRange");
+  }
+
+  @Test
+  void keepsOpenedDataReadableWhenObjectIsReplaced() throws IOException {
+    put("key", DATA);
+
+    try (S3ObjectData data = store.openS3ObjectData(BUCKET, "key")) {
+      put("key", "new".getBytes());
+      store.deleteObject(BUCKET, "key");
+
+      final ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+      data.transferTo(0, DATA.length, outputStream);
+      assertThat(outputStream.toByteArray()).isEqualTo(DATA);
+    }
+    assertThat(store.openS3ObjectData(BUCKET, "key")).isNull();
+  }
+
+  @Test
+  void tagsCopyOfObject() throws IOException {
+    put("key", DATA);
+    final S3Object s3Object = store.getS3Object(BUCKET, "key");
+
+    store.setObjectTags(BUCKET, "key", Collections.singletonList(new Tag("key", "value")));
+
+    assertThat(s3Object.getTags()).isNullOrEmpty();
+    final S3Object tagged = store.getS3Object(BUCKET, "key");
+    assertThat(tagged.getTags()).extracting(Tag::getValue).containsExactly("value");
+    assertThat(tagged.getEtag()).isEqualTo(s3Object.getEtag());
+    assertThat(read(tagged, 0, DATA.length)).isEqualTo(DATA);
+  }
+
+  @Test
+  void rejectsTagsOfUnknownObject() {
+    final S3Exception unknownKey = Assertions.assertThrows(S3Exception.class, () ->
+        store.setObjectTags(BUCKET, "unknown", Collections.singletonList(new Tag("key", "v"))));
+    final S3Exception unknownBucket = Assertions.assertThrows(S3Exception.class, () ->
+        store.setObjectTags("unknown", "key", Collections.singletonList(new Tag("key", "v"))));
+
+    assertThat(unknownKey.getStatus()).isEqualTo(404);
+    assertThat(unknownKey.getCode()).isEqualTo("NoSuchKey");
+    assertThat(unknownBucket.getStatus()).isEqualTo(404);
+  }
+
+  S3Object put(final String key, final byte[] data) throws IOException {
+    return store.putS3Object(BUCKET, key, null, null, new ByteArrayInputStream(data), false,
+        Collections.emptyMap(), null, null, null);
+  }
+
+  byte[] read(final S3Object s3Object, final long position, final long count)
+      throws IOException {
+    final ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+    store.transferS3ObjectData(s3Object, position, count, outputStream);
+    return outputStream.toByteArray();
+  }
+
+  static Part part(final int partNumber) {
+    final Part part = new Part();
+    part.setPartNumber(partNumber);
+    return part;
+  }
+}
@@ -0,0 +1,163 @@
+/*
+ *  Copyright 2017-2022 Adobe.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *          http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package com.adobe.testing.s3mock.store;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import com.adobe.testing.s3mock.dto.Tag;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Random;
+import org.apache.commons.codec.digest.DigestUtils;
+import org.apache.commons.io.FileUtils;
+import org.junit.jupiter.api.Test;
+
+class SegmentStoreTest extends ObjectStoreTestBase<SegmentStore> {
+
+  @Override
+  SegmentStore createStore() {
+    return open(256 * 1024);
+  }
+
+  @Test
+  void appendsObjectsToOneSegment() throws IOException {
+    final S3Object s3Object = put("key", DATA);
+    put("other", "other".getBytes());
+
+    assertThat(store.getS3Object(BUCKET, "key")).isSameAs(s3Object);
+    assertThat(read(s3Object, 0, DATA.length)).isEqualTo(DATA);
+    assertThat(read(store.getS3Object(BUCKET, "other"), 0, 5)).isEqualTo("other".getBytes());
+    assertThat(root.list()).containsExactly("segment-00000001.log");
+  }
+
+  @Test
+  void appendsLargeObjects() throws IOException {
+    reopenEmpty(1024 * 1024);
+    final byte[] data = new byte[3 * 1024 * 1024 + 17];
+    new Random(7).nextBytes(data);
+
+    final S3Object s3Object = put("key", data);
+
+    assertThat(s3Object.getEtag()).isEqualTo(DigestUtils.md5Hex(data));
+    assertThat(read(s3Object, 0, data.length)).isEqualTo(data);
+  }
+
+  @Test
+  void appendsObjectsOfBufferedSizeAndOneByteMore() throws IOException {
+    reopenEmpty(64 * 1024 * 1024);
+    final byte[] data = new byte[1024 * 1024 + 1];
+    new Random(11).nextBytes(data);
+    final byte[] buffered = Arrays.copyOf(data, data.length - 1);
+
+    final S3Object bufferedObject = put("buffered", buffered);
+    final S3Object s3Object = put("key", data);
+
+    assertThat(read(bufferedObject, 0, buffered.length)).isEqualTo(buffered);
+    assertThat(read(s3Object, 0, data.length)).isEqualTo(data);
+    assertThat(s3Object.getEtag()).isEqualTo(DigestUtils.md5Hex(data));
+    assertThat(root.list()).containsExactly("segment-00000001.log");
+  }
+
+  @Test
+  void recoversIndexFromSegments() throws IOException {
+    put("kept", DATA);
+    put("deleted", DATA);
+    put("replaced", DATA);
+    put("replaced", "new".getBytes());
+    store.deleteObject(BUCKET, "deleted");
+    store.setObjectTags(BUCKET, "kept", Collections.singletonList(new Tag("key", "value")));
+    store.createBucket("removed");
+    store.deleteBucket("removed");
+    store.close();
+
+    store = open(256 * 1024);
+
+    assertThat(store.listBuckets()).extracting("name").containsExactly(BUCKET);
+    assertThat(store.getS3Objects(BUCKET, null)).extracting(S3Object::getName)
+        .containsExactly("kept", "replaced");
+    final S3Object kept = store.getS3Object(BUCKET, "kept");
+    assertThat(kept.getTags()).extracting(Tag::getKey).containsExactly("key");
+    assertThat(read(kept, 0, DATA.length)).isEqualTo(DATA);
+    assertThat(read(store.getS3Object(BUCKET, "replaced"), 0, 3)).isEqualTo("new".getBytes());
+  }
+
+  @Test
+  void compactsSegmentsOfReplacedObjects() throws IOException {
+    for (int i = 0; i < 10; i++) {
+      put("replaced", DATA);
+      put("key" + i, DATA);
+      store.deleteObject(BUCKET, "key" + i);
+    }
+    put("kept", DATA);
+    assertThat(root.list()).hasSizeGreaterThan(10);
+
+    store.compact();
+
+    assertThat(root.list()).hasSizeLessThan(4);
+    assertThat(read(store.getS3Object(BUCKET, "replaced"), 0, DATA.length)).isEqualTo(DATA);
+    store.close();
+
+    store = open(256 * 1024);
+    assertThat(store.getS3Objects(BUCKET, null)).extracting(S3Object::getName)
+        .containsExactly("kept", "replaced");
+    assertThat(read(store.getS3Object(BUCKET, "replaced"), 0, DATA.length)).isEqualTo(DATA);
+  }
+
+  @Test
+  void tagsObjectsWithoutCopyingData() throws IOException {
+    put("key", DATA);
+
+    store.setObjectTags(BUCKET, "key", Collections.singletonList(new Tag("key", "value")));
+    store.setObjectTags(BUCKET, "key", Collections.singletonList(new Tag("key", "other")));
+
+    assertThat(root.list()).containsExactly("segment-00000001.log");
+    final S3Object s3Object = store.getS3Object(BUCKET, "key");
+    assertThat(s3Object.getTags()).extracting(Tag::getValue).containsExactly("other");
+    assertThat(read(s3Object, 0, DATA.length)).isEqualTo(DATA);
+  }
+
+  @Test
+  void keepsTagsOfCompactedObjects() throws IOException {
+    put("replaced", DATA);
+    put("tagged", "tagged".getBytes());
+    store.setObjectTags(BUCKET, "tagged", Collections.singletonList(new Tag("key", "value")));
+    put("replaced", DATA);
+
+    store.compact();
+    store.close();
+
+    store = open(256 * 1024);
+    final S3Object s3Object = store.getS3Object(BUCKET, "tagged");
+    assertThat(s3Object.getTags()).extracting(Tag::getValue).containsExactly("value");
+    assertThat(read(s3Object, 0, 6)).isEqualTo("tagged".getBytes());
+  }
+
+  private SegmentStore open(final long segmentSize) {
+    return new SegmentStore(root.getAbsolutePath(), true, Collections.singletonList(BUCKET),
+        segmentSize);
+  }
+
+  /**
+   * Replaces the store under test by one with an empty root folder and another segment size.
+   */
+  private void reopenEmpty(final long segmentSize) throws IOException {
+    store.close();
+    FileUtils.cleanDirectory(root);
+    store = open(segmentSize);
+  }
+}
@@ -0,0 +1,106 @@
+/*
+ *  Copyright 2017-2022 Adobe.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *          http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package com.adobe.testing.s3mock.store;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class SegmentTest {
+
+  private static final long SIZE = 64 * 1024;
+
+  @TempDir
+  File root;
+
+  @Test
+  void appendsRecordsWhileReservedDataIsWritten() throws IOException {
+    final Segment segment = Segment.create(root.toPath(), 1, SIZE);
+    final Segment.Reservation reservation =
+        segment.reserve(Segment.OBJECT, "bucket", "reserved", 4, "first".getBytes(UTF_8));
+    segment.append(Segment.OBJECT, "bucket", "appended", 5, data("after"),
+        "second".getBytes(UTF_8));
+    assertThat(segment.hasReservations()).isTrue();
+
+    reservation.write(data("data"));
+    reservation.commit();
+
+    assertThat(segment.hasReservations()).isFalse();
+    final Segment reopened = reopen(segment);
+    final List<Segment.Record> records = recover(reopened);
+    assertThat(records).extracting(Segment.Record::getType)
+        .containsExactly(Segment.OBJECT, Segment.OBJECT);
+    assertThat(records).extracting(Segment.Record::getKey).containsExactly("reserved", "appended");
+    assertThat(new String(records.get(0).getMetadata(), UTF_8)).isEqualTo("first");
+    assertThat(read(reopened, records.get(0))).isEqualTo("data");
+    assertThat(read(reopened, records.get(1))).isEqualTo("after");
+    reopened.close();
+  }
+
+  @Test
+  void skipsAbandonedReservations() throws IOException {
+    final Segment segment = Segment.create(root.toPath(), 1, SIZE);
+    segment.reserve(Segment.OBJECT, "bucket", "abandoned", 4, new byte[0]).close();
+    segment.append(Segment.OBJECT, "bucket", "appended", 5, data("after"), new byte[0]);
+
+    assertThat(segment.hasReservations()).isFalse();
+    final Segment reopened = reopen(segment);
+    assertThat(recover(reopened)).extracting(Segment.Record::getType)
+        .containsExactly(Segment.RESERVED, Segment.OBJECT);
+    reopened.close();
+  }
+
+  @Test
+  void rejectsDataExceedingReservation() throws IOException {
+    final Segment segment = Segment.create(root.toPath(), 1, SIZE);
+    try (Segment.Reservation reservation =
+        segment.reserve(Segment.OBJECT, "bucket", "key", 4, new byte[0])) {
+      Assertions.assertThrows(IOException.class, () -> reservation.write(data("longer")));
+    }
+    segment.close();
+  }
+
+  private static Segment.DataWriter data(final String data) {
+    return target -> target.write(ByteBuffer.wrap(data.getBytes(UTF_8)));
+  }
+
+  private Segment reopen(final Segment segment) throws IOException {
+    segment.close();
+    return Segment.open(root.toPath().resolve("segment-00000001.log"));
+  }
+
+  private static List<Segment.Record> recover(final Segment segment) throws IOException {
+    final List<Segment.Record> records = new ArrayList<>();
+    segment.recover(records::add);
+    return records;
+  }
+
+  private static String read(final Segment segment, final Segment.Record record)
+      throws IOException {
+    final ByteBuffer buffer = ByteBuffer.allocate((int) record.getDataLength());
+    segment.getChannel().read(buffer, record.getLocation().getDataOffset());
+    return new String(buffer.array(), UTF_8);
+  }
+}
@@ -0,0 +1,61 @@
+/*
+ *  Copyright 2017-2021 Adobe.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *          http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package com.adobe.testing.s3mock.util;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.assertj.core.api.Assertions.assertThat;
+
+import org.junit.jupiter.api.Test;
+
+class ContinuationTokensTest {
+
+  private final ContinuationTokens continuationTokens =
+      new ContinuationTokens("secret".getBytes(UTF_8));
+
+  @Test
+  void resolvesCreatedToken() {
+    final String token = continuationTokens.create("bucket", "b/1/ä");
+
+    assertThat(continuationTokens.resolve("bucket", token)).isEqualTo("b/1/ä");
+    assertThat(new ContinuationTokens("secret".getBytes(UTF_8)).resolve("bucket", token))
+        .as("token is valid for another instance with the same secret")
+        .isEqualTo("b/1/ä");
+  }
+
+  @Test
+  void rejectsTokenOfOtherBucket() {
+    final String token = continuationTokens.create("bucket", "key");
+
+    assertThat(continuationTokens.resolve("otherBucket", token)).isNull();
+  }
+
+  @Test
+  void rejectsTokenOfOtherSecret() {
+    final String token = new ContinuationTokens().create("bucket", "key");
+
+    assertThat(continuationTokens.resolve("bucket", token)).isNull();
+  }
+
+  @Test
+  void rejectsTamperedToken() {
+    final String token = continuationTokens.create("bucket", "key");
+    final String tampered = (token.startsWith("A") ? "B" : "A") + token.substring(1);
+
+    assertThat(continuationTokens.resolve("bucket", tampered)).isNull();
+    assertThat(continuationTokens.resolve("bucket", "not a token")).isNull();
+  }
+}
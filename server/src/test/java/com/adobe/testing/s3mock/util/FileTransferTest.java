@@ -0,0 +1,68 @@
+/*
+ *  Copyright 2017-2021 Adobe.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *          http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package com.adobe.testing.s3mock.util;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.List;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class FileTransferTest {
+
+  @TempDir
+  Path tempDir;
+
+  @Test
+  void transfersWholeFile() throws IOException {
+    final Path file = Files.write(tempDir.resolve("file"), "0123456789".getBytes(UTF_8));
+    final ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+
+    FileTransfer.transfer(file, 0, 10, outputStream);
+
+    assertThat(outputStream.toString("UTF-8")).isEqualTo("0123456789");
+  }
+
+  @Test
+  void transfersRegion() throws IOException {
+    final Path file = Files.write(tempDir.resolve("file"), "0123456789".getBytes(UTF_8));
+    final ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+
+    FileTransfer.transfer(file, 3, 4, outputStream);
+
+    assertThat(outputStream.toString("UTF-8")).isEqualTo("3456");
+  }
+
+  @Test
+  void transfersRegionOfConcatenatedFiles() throws IOException {
+    final List<Path> files = Arrays.asList(
+        Files.write(tempDir.resolve("file1"), "0123".getBytes(UTF_8)),
+        Files.write(tempDir.resolve("file2"), "4567".getBytes(UTF_8)),
+        Files.write(tempDir.resolve("file3"), "89".getBytes(UTF_8)));
+    final ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+
+    FileTransfer.transfer(files, 2, 7, outputStream);
+
+    assertThat(outputStream.toString("UTF-8")).isEqualTo("2345678");
+  }
+}